@@ -0,0 +1,212 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// ReadAheadDescriptor - wraps a FileDescriptor and reads from it on a
+// separate thread, so that the network is drained while the data already
+// received is being processed.  Incoming data is kept in a bounded number
+// of chunks.  When they are all full the reader thread stops reading and
+// TCP flow control pushes back on the sender.  Writes go straight through
+// to the underlying descriptor.
+//
+
+package com.tigervnc.network;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.util.LinkedList;
+
+import com.tigervnc.rdr.Exception;
+import com.tigervnc.rfb.LogWriter;
+
+public class ReadAheadDescriptor implements FileDescriptor {
+
+  static final int chunkSize = 16384;
+  static final Integer pollTimeout = Integer.valueOf(500);
+
+  public ReadAheadDescriptor(FileDescriptor fd_, int maxBytes)
+  {
+    fd = fd_;
+    queue = new LinkedList<Chunk>();
+    freeChunks = new LinkedList<Chunk>();
+
+    int nChunks = Math.max(maxBytes / chunkSize, 2);
+    for (int i = 0; i < nChunks; i++)
+      freeChunks.add(new Chunk());
+
+    vlog.debug("Reading ahead up to "+(nChunks * chunkSize / 1024)+" KB");
+
+    thread = new ReaderThread();
+    thread.start();
+  }
+
+  // read() returns data which the reader thread has already received.
+  // Like SocketDescriptor it returns -1 if there is nothing available and
+  // 0 at the end of the stream.
+
+  public synchronized int read(byte[] buf, int bufPtr, int length)
+    throws Exception
+  {
+    int n = 0;
+    while (n < length && !queue.isEmpty()) {
+      Chunk chunk = queue.getFirst();
+      int len = Math.min(length - n, chunk.end - chunk.ptr);
+      System.arraycopy(chunk.data, chunk.ptr, buf, bufPtr + n, len);
+      chunk.ptr += len;
+      n += len;
+
+      if (chunk.ptr == chunk.end) {
+        queue.removeFirst();
+        freeChunks.add(chunk);
+        notifyAll();
+      }
+    }
+
+    if (n > 0)
+      return n;
+
+    if (error != null)
+      throw error;
+    if (eof)
+      return 0;
+    return -1;
+  }
+
+  public int write(byte[] buf, int bufPtr, int length) throws Exception {
+    return fd.write(buf, bufPtr, length);
+  }
+
+  // select() for reading waits for the reader thread rather than the
+  // network.
+
+  public int select(int interestOps, Integer timeout) throws Exception {
+    if ((interestOps & SelectionKey.OP_READ) == 0)
+      return fd.select(interestOps, timeout);
+
+    synchronized(this) {
+      long deadline = 0;
+      if (timeout != null && timeout.intValue() > 0)
+        deadline = System.currentTimeMillis() + timeout.intValue();
+
+      while (queue.isEmpty() && error == null && !eof) {
+        if (timeout != null && timeout.intValue() == 0)
+          return 0;
+
+        long wait = 0;
+        if (deadline != 0) {
+          wait = deadline - System.currentTimeMillis();
+          if (wait <= 0)
+            return 0;
+        }
+
+        try {
+          wait(wait);
+        } catch (InterruptedException e) {
+          throw new Exception(e.getMessage());
+        }
+      }
+      return 1;
+    }
+  }
+
+  public void close() throws IOException {
+    synchronized(this) {
+      stopRequested = true;
+      notifyAll();
+    }
+    fd.close();
+  }
+
+  public FileDescriptor getUnderlying() { return fd; }
+
+  class Chunk {
+    byte[] data = new byte[chunkSize];
+    int ptr;
+    int end;
+  }
+
+  class ReaderThread extends Thread {
+
+    public ReaderThread() {
+      super("ReadAheadThread");
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      try {
+        while (true) {
+          Chunk chunk;
+
+          synchronized(ReadAheadDescriptor.this) {
+            while (freeChunks.isEmpty() && !stopRequested) {
+              try {
+                ReadAheadDescriptor.this.wait();
+              } catch (InterruptedException e) { }
+            }
+            if (stopRequested)
+              return;
+            chunk = freeChunks.removeFirst();
+          }
+
+          int n;
+          do {
+            // Wake up now and again to see if we've been closed
+            while (fd.select(SelectionKey.OP_READ, pollTimeout) <= 0) {
+              if (stopRequested)
+                return;
+            }
+            n = fd.read(chunk.data, 0, chunkSize);
+          } while (n < 0);
+
+          synchronized(ReadAheadDescriptor.this) {
+            if (n == 0) {
+              eof = true;
+              freeChunks.add(chunk);
+              ReadAheadDescriptor.this.notifyAll();
+              return;
+            }
+
+            chunk.ptr = 0;
+            chunk.end = n;
+            queue.add(chunk);
+            ReadAheadDescriptor.this.notifyAll();
+          }
+        }
+      } catch (RuntimeException e) {
+        synchronized(ReadAheadDescriptor.this) {
+          if (!stopRequested)
+            error = e;
+          ReadAheadDescriptor.this.notifyAll();
+        }
+      }
+    }
+  }
+
+  private FileDescriptor fd;
+  private ReaderThread thread;
+
+  // access to the following must be synchronized:
+  private LinkedList<Chunk> queue;
+  private LinkedList<Chunk> freeChunks;
+  private boolean eof;
+  private volatile boolean stopRequested;
+  private RuntimeException error;
+
+  static LogWriter vlog = new LogWriter("ReadAheadDescriptor");
+}
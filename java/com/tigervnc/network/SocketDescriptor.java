@@ -26,6 +26,7 @@ import java.nio.channels.spi.SelectorProvider;
 
 import java.util.Set;
 import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.tigervnc.rdr.Exception;
 
@@ -74,45 +75,97 @@ public class SocketDescriptor implements FileDescriptor {
     return SelectorProvider.provider();
   }
 
-  synchronized public int read(byte[] buf, int bufPtr, int length) throws Exception {
+  // read() and write() go through a direct buffer which is kept for the
+  // life of the socket.  A heap buffer would make the channel copy via a
+  // temporary direct buffer of its own, and allocating one on every call
+  // generates a lot of garbage at high data rates.
+  //
+  // Reading and writing lock separately so that a thread blocked waiting
+  // for incoming data doesn't hold up one that is sending.  The locks are
+  // ReentrantLocks rather than monitors because a virtual thread that
+  // blocks while holding a monitor can't give up its carrier thread.
+
+  public int read(byte[] buf, int bufPtr, int length) throws Exception {
+    readLock.lock();
+    try {
+      return readLocked(buf, bufPtr, length);
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  private int readLocked(byte[] buf, int bufPtr, int length) {
     int n;
-    ByteBuffer b = ByteBuffer.allocate(length);
+    readBuffer.clear();
+    if (length < readBuffer.capacity())
+      readBuffer.limit(length);
     try {
-      n = channel.read(b);
+      n = channel.read(readBuffer);
     } catch (java.io.IOException e) {
       throw new Exception(e.getMessage());
     }
     if (n <= 0)
       return (n == 0) ? -1 : 0;
-    b.flip();
-    b.get(buf, bufPtr, n);
-    b.clear();
+    readBuffer.flip();
+    readBuffer.get(buf, bufPtr, n);
     return n;
 
   }
 
-  synchronized public int write(byte[] buf, int bufPtr, int length) throws Exception {
+  public int write(byte[] buf, int bufPtr, int length) throws Exception {
+    writeLock.lock();
+    try {
+      return writeLocked(buf, bufPtr, length);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private int writeLocked(byte[] buf, int bufPtr, int length) {
     int n;
-    ByteBuffer b = ByteBuffer.allocate(length);
-    b.put(buf, bufPtr, length);
-    b.flip();
+    writeBuffer.clear();
+    if (length > writeBuffer.capacity())
+      length = writeBuffer.capacity();
+    writeBuffer.put(buf, bufPtr, length);
+    writeBuffer.flip();
     try {
-      n = channel.write(b);
+      n = channel.write(writeBuffer);
     } catch (java.io.IOException e) {
       throw new Exception(e.getMessage());
     }
-    b.clear();
     return n;
   }
 
-  synchronized public int select(int interestOps, Integer timeout) throws Exception {
-    int n;
-    Selector selector;
-    if ((interestOps & SelectionKey.OP_READ) != 0) {
-      selector = readSelector;
-    } else {
-      selector = writeSelector;
+  // In blocking mode select() doesn't wait: it says the socket is ready
+  // and leaves the waiting to read() or write().  Polling for incoming data
+  // with a timeout of zero checks whether any has arrived.
+
+  public int select(int interestOps, Integer timeout) throws Exception {
+    boolean reading = ((interestOps & SelectionKey.OP_READ) != 0);
+    ReentrantLock lock = reading ? readSelectLock : writeSelectLock;
+    lock.lock();
+    try {
+      if (blocking) {
+        if (reading && timeout != null && timeout.intValue() == 0)
+          return (available() > 0) ? 1 : 0;
+        return 1;
+      }
+      return selectLocked(reading ? readSelector : writeSelector, timeout);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private int available() {
+    try {
+      return channel.socket().getInputStream().available();
+    } catch (java.io.IOException e) {
+      throw new Exception(e.getMessage());
     }
+  }
+
+  private int selectLocked(Selector selector, Integer timeout) {
+    int n;
     selector.selectedKeys().clear();
     try {
       if (timeout == null) {
@@ -214,6 +267,40 @@ public class SocketDescriptor implements FileDescriptor {
     channel.configureBlocking(block);
   }
 
+  // setBlocking() puts the socket in blocking mode, or back again.  A
+  // connection run on a virtual thread uses blocking mode, so that waiting
+  // for the network parks the thread in read() or write().  Waiting in a
+  // Selector would tie up a carrier thread, and a channel can only block
+  // once it is no longer registered with one, so the selectors are closed
+  // until the socket is put back in non-blocking mode.
+
+  public void setBlocking(boolean block) throws Exception {
+    readSelectLock.lock();
+    writeSelectLock.lock();
+    readLock.lock();
+    writeLock.lock();
+    try {
+      if (block == blocking)
+        return;
+      if (block) {
+        closeSelectors();
+        channel.configureBlocking(true);
+      } else {
+        openSelectors();
+      }
+      blocking = block;
+    } catch (java.io.IOException e) {
+      throw new Exception(e.getMessage());
+    } finally {
+      writeLock.unlock();
+      readLock.unlock();
+      writeSelectLock.unlock();
+      readSelectLock.unlock();
+    }
+  }
+
+  public boolean isBlocking() { return blocking; }
+
   protected synchronized void implCloseSelectableChannel() throws IOException {
     channel.close();
     notifyAll();
@@ -223,17 +310,19 @@ public class SocketDescriptor implements FileDescriptor {
     try {
       if (channel != null)
         channel.close();
-      if (readSelector != null)
-        readSelector.close();
-      if (writeSelector != null)
-        writeSelector.close();
+      closeSelectors();
       channel = channel_;
-      channel.configureBlocking(false);
-      writeSelector = Selector.open();
-      readSelector = Selector.open();
+      blocking = false;
+      openSelectors();
     } catch (java.io.IOException e) {
       throw new Exception(e.getMessage());
     }
+  }
+
+  private void openSelectors() throws IOException {
+    channel.configureBlocking(false);
+    writeSelector = Selector.open();
+    readSelector = Selector.open();
     try {
       channel.register(writeSelector, SelectionKey.OP_WRITE);
       channel.register(readSelector, SelectionKey.OP_READ);
@@ -242,8 +331,27 @@ public class SocketDescriptor implements FileDescriptor {
     }
   }
 
+  // Closing a selector deregisters the channel from it straight away
+  private void closeSelectors() throws IOException {
+    if (readSelector != null)
+      readSelector.close();
+    if (writeSelector != null)
+      writeSelector.close();
+    readSelector = null;
+    writeSelector = null;
+  }
+
   protected SocketChannel channel;
   protected Selector writeSelector;
   protected Selector readSelector;
+  private volatile boolean blocking;
+
+  static final int bufferSize = 65536;
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(bufferSize);
+  private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(bufferSize);
+  private final ReentrantLock readLock = new ReentrantLock();
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final ReentrantLock readSelectLock = new ReentrantLock();
+  private final ReentrantLock writeSelectLock = new ReentrantLock();
 
 }
@@ -101,12 +101,36 @@ public class TcpListener extends SocketListener  {
     }
   }
 
+  // setBlocking() makes accept() wait in the channel rather than in a
+  // Selector, so that a virtual thread waiting for connections is parked
+  // (see SocketDescriptor.setBlocking()).
+
+  public void setBlocking(boolean block) {
+    if (block == blocking)
+      return;
+    try {
+      if (block) {
+        selector.close();
+        channel.configureBlocking(true);
+      } else {
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+      }
+    } catch (IOException e) {
+      throw new SocketException(e.getMessage());
+    }
+    blocking = block;
+  }
+
   public TcpSocket accept() {
     SocketChannel new_sock = null;
 
     // Accept an incoming connection
     try {
-      if (selector.select(0) > 0) {
+      if (blocking) {
+        new_sock = channel.accept();
+      } else if (selector.select(0) > 0) {
         Set<SelectionKey> keys = selector.selectedKeys();
         Iterator<SelectionKey> iter = keys.iterator();
         while (iter.hasNext()) {
@@ -145,12 +169,15 @@ public class TcpListener extends SocketListener  {
   }
 
   public int getMyPort() {
+    if (channel != null)
+      return channel.socket().getLocalPort();
     return ((SocketDescriptor)getFd()).socket().getLocalPort();
   }
 
   private boolean closeFd;
   private ServerSocketChannel channel;
   private Selector selector;
+  private boolean blocking;
 
 }
 
@@ -0,0 +1,96 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// AllocationCounter - reports how many bytes the current thread has
+// allocated on the heap.  This relies on com.sun.management.ThreadMXBean,
+// which isn't available on every JVM, so it is looked up at run time.
+//
+
+package com.tigervnc.perf;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+public class AllocationCounter {
+
+  static Object bean;
+  static Method getThreadAllocatedBytes;
+  static long overhead;
+
+  // Reused so that asking for the count allocates as little as possible
+  static final ThreadLocal<Object[]> args = new ThreadLocal<Object[]>();
+
+  static {
+    try {
+      Class<?> cls = Class.forName("com.sun.management.ThreadMXBean");
+      Object b = ManagementFactory.getThreadMXBean();
+      if (cls.isInstance(b)) {
+        Method m = cls.getMethod("getThreadAllocatedBytes", long.class);
+        long id = Thread.currentThread().getId();
+        if (((Long)m.invoke(b, id)).longValue() >= 0) {
+          bean = b;
+          getThreadAllocatedBytes = m;
+        }
+      }
+    } catch (java.lang.Exception e) {
+      // Not supported
+    }
+
+    // Asking for the count allocates a little by itself
+    if (isSupported()) {
+      long min = Long.MAX_VALUE;
+      for (int i = 0; i < 1000; i++) {
+        long a = allocatedBytes();
+        long b = allocatedBytes();
+        min = Math.min(min, b - a);
+      }
+      overhead = min;
+    }
+  }
+
+  public static boolean isSupported() {
+    return getThreadAllocatedBytes != null;
+  }
+
+  // allocatedBytes() returns the total allocated by the current thread so
+  // far, or 0 if this isn't supported.
+
+  public static long allocatedBytes()
+  {
+    if (!isSupported())
+      return 0;
+    try {
+      Object[] a = args.get();
+      if (a == null) {
+        a = new Object[] { Long.valueOf(Thread.currentThread().getId()) };
+        args.set(a);
+      }
+      return ((Long)getThreadAllocatedBytes.invoke(bean, a)).longValue();
+    } catch (java.lang.Exception e) {
+      return 0;
+    }
+  }
+
+  // since() returns how much has been allocated since an earlier
+  // allocatedBytes(), not counting the calls themselves.
+
+  public static long since(long start) {
+    return Math.max(0, allocatedBytes() - start - overhead);
+  }
+}
@@ -0,0 +1,538 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// BenchData - synthetic images and the encoded data the benchmarks in
+// RfbBench decode.  The encoders here only do as much as is needed to
+// produce valid input, they make no attempt at good compression.
+//
+
+package com.tigervnc.perf;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+
+import com.tigervnc.rdr.*;
+import com.tigervnc.rfb.*;
+import com.tigervnc.rfb.Exception;
+
+public class BenchData {
+
+  // Pixel formats the benchmarks can be run with
+
+  public static final String[] formatNames = {
+    "rgb888", "rgb888be", "bgr888", "rgb565", "rgb565be", "rgb332", "bgr233"
+  };
+
+  public static PixelFormat format(String name)
+  {
+    if (name.equals("rgb888"))
+      return new PixelFormat(32, 24, false, true, 255, 255, 255, 16, 8, 0);
+    if (name.equals("rgb888be"))
+      return new PixelFormat(32, 24, true, true, 255, 255, 255, 16, 8, 0);
+    if (name.equals("bgr888"))
+      return new PixelFormat(32, 24, false, true, 255, 255, 255, 0, 8, 16);
+    if (name.equals("rgb565"))
+      return new PixelFormat(16, 16, false, true, 31, 63, 31, 11, 5, 0);
+    if (name.equals("rgb565be"))
+      return new PixelFormat(16, 16, true, true, 31, 63, 31, 11, 5, 0);
+    if (name.equals("rgb332"))
+      return new PixelFormat(8, 8, false, true, 7, 7, 3, 5, 2, 0);
+    if (name.equals("bgr233"))
+      return new PixelFormat(8, 8, false, true, 7, 7, 3, 0, 3, 6);
+    throw new IllegalArgumentException("Unknown pixel format "+name);
+  }
+
+  // image() returns a w x h desktop-like image as 0xRRGGBB values: flat
+  // areas and gradients with some noisy "text" on top.
+
+  public static int[] image(int w, int h, long seed)
+  {
+    Random rand = new Random(seed);
+    int[] rgb = new int[w * h];
+    for (int y = 0; y < h; y++) {
+      for (int x = 0; x < w; x++) {
+        int window = ((x / 96) + (y / 80)) & 3;
+        int r, g, b;
+        if (window == 0) {
+          r = x & 0xff; g = y & 0xff; b = 0x80;
+        } else {
+          r = g = b = 0x40 * window;
+        }
+        if ((y % 16) < 10 && rand.nextInt(8) == 0)
+          r = g = b = 0;
+        rgb[y * w + x] = (r << 16) | (g << 8) | b;
+      }
+    }
+    return rgb;
+  }
+
+  public static int pixel(PixelFormat pf, int rgb)
+  {
+    int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+    return (((r * pf.redMax + 127) / 255) << pf.redShift) |
+           (((g * pf.greenMax + 127) / 255) << pf.greenShift) |
+           (((b * pf.blueMax + 127) / 255) << pf.blueShift);
+  }
+
+  public static int[] pixels(PixelFormat pf, int[] rgb)
+  {
+    int[] pix = new int[rgb.length];
+    for (int i = 0; i < rgb.length; i++)
+      pix[i] = pixel(pf, rgb[i]);
+    return pix;
+  }
+
+  public static void writePixel(OutStream os, int pix, int bytesPerPixel,
+                                boolean bigEndian)
+  {
+    for (int i = 0; i < bytesPerPixel; i++) {
+      int shift = bigEndian ? (bytesPerPixel - 1 - i) * 8 : i * 8;
+      os.writeU8(pix >> shift);
+    }
+  }
+
+  public static byte[] pixelBytes(PixelFormat pf, int[] pix)
+  {
+    MemOutStream os = new MemOutStream(pix.length * pf.bpp / 8);
+    for (int i = 0; i < pix.length; i++)
+      writePixel(os, pix[i], pf.bpp / 8, pf.bigEndian);
+    return copyOf(os);
+  }
+
+  public static byte[] copyOf(MemOutStream os)
+  {
+    byte[] data = new byte[os.length()];
+    System.arraycopy(os.data(), 0, data, 0, data.length);
+    return data;
+  }
+
+  // deflate() compresses one rect's worth of data as part of a longer
+  // stream, ending with a sync flush like a server does.
+
+  static byte[] deflate(Deflater def, byte[] data, int len)
+  {
+    byte[] out = new byte[len + len / 2 + 64];
+    def.setInput(data, 0, len);
+    int n = def.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+    byte[] result = new byte[n];
+    System.arraycopy(out, 0, result, 0, n);
+    return result;
+  }
+
+  //
+  // Tight
+  //
+
+  public static final int tightCopy = 0;
+  public static final int tightPalette = 1;
+  public static final int tightGradient = 2;
+  public static final int tightJpeg = 3;
+
+  // tight() encodes the image reps times with the given filter, all using
+  // zlib stream 0.
+
+  public static byte[] tight(PixelFormat pf, int w, int h, int[] rgb,
+                             int filter, int reps)
+  {
+    MemOutStream os = new MemOutStream();
+    Deflater def = new Deflater(6);
+    boolean cutZeros = (pf.bpp == 32 && pf.is888());
+    int pixelSize = cutZeros ? 3 : pf.bpp / 8;
+
+    if (filter == tightJpeg) {
+      byte[] jpeg = jpeg(w, h, rgb);
+      for (int i = 0; i < reps; i++) {
+        os.writeU8(0x09 << 4);
+        os.writeCompactLength(jpeg.length);
+        os.writeBytes(jpeg, 0, jpeg.length);
+      }
+      def.end();
+      return copyOf(os);
+    }
+
+    int[] pix = pixels(pf, rgb);
+    int[] palette = null;
+    MemOutStream data = new MemOutStream(w * h * pixelSize);
+
+    switch (filter) {
+    case tightCopy:
+      for (int i = 0; i < pix.length; i++)
+        writeTightPixel(data, pf, cutZeros, pix[i]);
+      break;
+    case tightPalette:
+      // Reduce the image to 16 colours
+      palette = new int[16];
+      for (int i = 0; i < 16; i++)
+        palette[i] = pixel(pf, (i * 0x110000) | ((15 - i) * 0x1100) | 0x80);
+      for (int i = 0; i < pix.length; i++)
+        data.writeU8((rgb[i] >> 4) & 0x0f);
+      break;
+    case tightGradient:
+      gradient(data, pf, cutZeros, w, h, pix);
+      break;
+    }
+
+    for (int i = 0; i < reps; i++) {
+      os.writeU8((0x04 | 0) << 4);
+      os.writeU8(filter);
+      if (palette != null) {
+        os.writeU8(palette.length - 1);
+        for (int j = 0; j < palette.length; j++)
+          writeTightPixel(os, pf, cutZeros, palette[j]);
+      }
+      if (data.length() < 12) {
+        os.writeBytes(data.data(), 0, data.length());
+      } else {
+        byte[] z = deflate(def, data.data(), data.length());
+        os.writeCompactLength(z.length);
+        os.writeBytes(z, 0, z.length);
+      }
+    }
+    def.end();
+
+    return copyOf(os);
+  }
+
+  static void writeTightPixel(OutStream os, PixelFormat pf, boolean cutZeros,
+                              int pix)
+  {
+    if (cutZeros) {
+      os.writeU8(pix >> pf.redShift);
+      os.writeU8(pix >> pf.greenShift);
+      os.writeU8(pix >> pf.blueShift);
+    } else {
+      writePixel(os, pix, pf.bpp / 8, pf.bigEndian);
+    }
+  }
+
+  // gradient() writes the difference between each pixel and its
+  // prediction from the pixels above and to the left, per colour
+  // component.
+
+  static void gradient(OutStream os, PixelFormat pf, boolean cutZeros,
+                       int w, int h, int[] pix)
+  {
+    int[] max = { pf.redMax, pf.greenMax, pf.blueMax };
+    int[] shift = { pf.redShift, pf.greenShift, pf.blueShift };
+
+    byte[] diffBytes = new byte[3];
+
+    for (int y = 0; y < h; y++) {
+      for (int x = 0; x < w; x++) {
+        int diff = 0;
+        for (int c = 0; c < 3; c++) {
+          int left = (x > 0) ? (pix[y*w+x-1] >> shift[c]) & max[c] : 0;
+          int up = (y > 0) ? (pix[(y-1)*w+x] >> shift[c]) & max[c] : 0;
+          int upLeft = (x > 0 && y > 0) ?
+            (pix[(y-1)*w+x-1] >> shift[c]) & max[c] : 0;
+          int est = Math.max(0, Math.min(max[c], left + up - upLeft));
+          int v = ((pix[y*w+x] >> shift[c]) & max[c]) - est;
+          diff |= (v & max[c]) << shift[c];
+          diffBytes[c] = (byte)v;
+        }
+        if (cutZeros)
+          os.writeBytes(diffBytes, 0, 3);
+        else
+          writePixel(os, diff, pf.bpp / 8, pf.bigEndian);
+      }
+    }
+  }
+
+  static byte[] jpeg(int w, int h, int[] rgb)
+  {
+    return jpeg(w, h, rgb, false);
+  }
+
+  // ImageIO subsamples colour images 4:2:0 by default.  A greyscale image
+  // gives single component JPEG data, like SUBSAMP_GRAY.
+
+  public static byte[] jpeg(int w, int h, int[] rgb, boolean gray)
+  {
+    BufferedImage img = new BufferedImage(w, h, gray ?
+                                          BufferedImage.TYPE_BYTE_GRAY :
+                                          BufferedImage.TYPE_INT_RGB);
+    img.setRGB(0, 0, w, h, rgb, 0, w);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      ImageIO.write(img, "jpeg", out);
+    } catch (IOException e) {
+      throw new Exception("Error encoding JPEG data: "+e.getMessage());
+    }
+    return out.toByteArray();
+  }
+
+  //
+  // ZRLE and TRLE
+  //
+
+  public static final String[] zrleModeNames = {
+    "raw", "solid", "packed", "plainrle", "palrle"
+  };
+
+  // zrle() encodes the image reps times with every tile in the given mode.
+
+  public static byte[] zrle(PixelFormat pf, int w, int h, int[] rgb,
+                            int mode, int reps)
+  {
+    Deflater def = new Deflater(6);
+    try {
+      return zrle(pf, w, h, rgb, mode, reps, def);
+    } finally {
+      def.end();
+    }
+  }
+
+  // This zrle() continues the zlib stream in def, so that a server can
+  // send rect after rect on one connection.
+
+  public static byte[] zrle(PixelFormat pf, int w, int h, int[] rgb,
+                            int mode, int reps, Deflater def)
+  {
+    MemOutStream data = rleTiles(pf, w, h, rgb, mode, 64);
+
+    MemOutStream os = new MemOutStream();
+    for (int i = 0; i < reps; i++) {
+      byte[] z = deflate(def, data.data(), data.length());
+      os.writeU32(z.length);
+      os.writeBytes(z, 0, z.length);
+    }
+
+    return copyOf(os);
+  }
+
+  // trle() is the same as zrle() for TRLE, which has no zlib layer and uses
+  // 16x16 tiles.
+
+  public static byte[] trle(PixelFormat pf, int w, int h, int[] rgb,
+                            int mode, int reps)
+  {
+    MemOutStream data = rleTiles(pf, w, h, rgb, mode, 16);
+
+    MemOutStream os = new MemOutStream();
+    for (int i = 0; i < reps; i++)
+      os.writeBytes(data.data(), 0, data.length());
+
+    return copyOf(os);
+  }
+
+  static MemOutStream rleTiles(PixelFormat pf, int w, int h, int[] rgb,
+                               int mode, int tileSize)
+  {
+    int bytesPerPixel = (pf.bpp > 24) ? 3 : pf.bpp / 8;
+    int[] pix = pixels(pf, rgb);
+    Random rand = new Random(42);
+
+    MemOutStream data = new MemOutStream(w * h * bytesPerPixel);
+    for (int ty = 0; ty < h; ty += tileSize) {
+      int th = Math.min(tileSize, h - ty);
+      for (int tx = 0; tx < w; tx += tileSize) {
+        int tw = Math.min(tileSize, w - tx);
+        switch (mode) {
+        case 0:
+          data.writeU8(0);
+          for (int y = ty; y < ty + th; y++)
+            for (int x = tx; x < tx + tw; x++)
+              writePixel(data, pix[y*w+x], bytesPerPixel, pf.bigEndian);
+          break;
+        case 1:
+          data.writeU8(1);
+          writePixel(data, pix[ty*w+tx], bytesPerPixel, pf.bigEndian);
+          break;
+        case 2:
+          // 4 colours, 2 bits per pixel
+          data.writeU8(4);
+          for (int i = 0; i < 4; i++)
+            writePixel(data, pixel(pf, i * 0x404040), bytesPerPixel,
+                       pf.bigEndian);
+          for (int y = ty; y < ty + th; y++) {
+            int b = 0, nbits = 0;
+            for (int x = tx; x < tx + tw; x++) {
+              b = (b << 2) | ((rgb[y*w+x] >> 6) & 3);
+              nbits += 2;
+              if (nbits == 8) {
+                data.writeU8(b);
+                b = nbits = 0;
+              }
+            }
+            if (nbits != 0)
+              data.writeU8(b << (8 - nbits));
+          }
+          break;
+        case 3:
+        case 4:
+          data.writeU8((mode == 3) ? 128 : 128 + 8);
+          if (mode == 4) {
+            for (int i = 0; i < 8; i++)
+              writePixel(data, pixel(pf, i * 0x202020), bytesPerPixel,
+                         pf.bigEndian);
+          }
+          int left = tw * th;
+          while (left > 0) {
+            int len = Math.min(left, 1 + rand.nextInt(32));
+            int index = rand.nextInt(8);
+            if (mode == 3)
+              writePixel(data, pixel(pf, index * 0x202020), bytesPerPixel,
+                         pf.bigEndian);
+            else
+              data.writeU8((len > 1) ? (index | 128) : index);
+            if (mode == 3 || len > 1) {
+              int n = len - 1;
+              while (n >= 255) {
+                data.writeU8(255);
+                n -= 255;
+              }
+              data.writeU8(n);
+            }
+            left -= len;
+          }
+          break;
+        }
+      }
+    }
+
+    return data;
+  }
+
+  //
+  // RRE
+  //
+
+  // rre() encodes the image reps times, with a subrect for each run of
+  // pixels in a row that differ from the top left one.  Desktop images
+  // give lots of small subrects, like text does.
+
+  public static byte[] rre(PixelFormat pf, int w, int h, int[] rgb, int reps)
+  {
+    int bytesPerPixel = pf.bpp / 8;
+    int[] pix = pixels(pf, rgb);
+    int bg = pix[0];
+    MemOutStream subrects = new MemOutStream();
+    int n = 0;
+
+    for (int y = 0; y < h; y++) {
+      int x = 0;
+      while (x < w) {
+        int p = pix[y*w+x];
+        int run = 1;
+        while (x + run < w && pix[y*w+x+run] == p)
+          run++;
+        if (p != bg) {
+          writePixel(subrects, p, bytesPerPixel, pf.bigEndian);
+          subrects.writeU16(x);
+          subrects.writeU16(y);
+          subrects.writeU16(run);
+          subrects.writeU16(1);
+          n++;
+        }
+        x += run;
+      }
+    }
+
+    MemOutStream os = new MemOutStream();
+    for (int i = 0; i < reps; i++) {
+      os.writeU32(n);
+      writePixel(os, bg, bytesPerPixel, pf.bigEndian);
+      os.writeBytes(subrects.data(), 0, subrects.length());
+    }
+    return copyOf(os);
+  }
+
+  //
+  // Hextile
+  //
+
+  // hextile() encodes the image reps times using a mix of raw tiles, solid
+  // tiles and tiles with mono and coloured subrects.
+
+  public static byte[] hextile(PixelFormat pf, int w, int h, int[] rgb,
+                               int reps)
+  {
+    int bytesPerPixel = pf.bpp / 8;
+    int[] pix = pixels(pf, rgb);
+    MemOutStream os = new MemOutStream();
+
+    for (int i = 0; i < reps; i++) {
+      int n = 0;
+      for (int ty = 0; ty < h; ty += 16) {
+        int th = Math.min(16, h - ty);
+        for (int tx = 0; tx < w; tx += 16) {
+          int tw = Math.min(16, w - tx);
+          int bg = pix[ty*w+tx];
+          int fg = pix[(ty+th-1)*w+tx+tw-1];
+          switch (n++ & 3) {
+          case 0:
+            os.writeU8(Hextile.raw);
+            for (int y = ty; y < ty + th; y++)
+              for (int x = tx; x < tx + tw; x++)
+                writePixel(os, pix[y*w+x], bytesPerPixel, pf.bigEndian);
+            break;
+          case 1:
+            os.writeU8(Hextile.bgSpecified);
+            writePixel(os, bg, bytesPerPixel, pf.bigEndian);
+            break;
+          case 2:
+          case 3:
+            boolean coloured = ((n & 3) == 0);
+            os.writeU8(Hextile.bgSpecified | Hextile.anySubrects |
+                       (coloured ? Hextile.subrectsColoured
+                                 : Hextile.fgSpecified));
+            writePixel(os, bg, bytesPerPixel, pf.bigEndian);
+            if (!coloured)
+              writePixel(os, fg, bytesPerPixel, pf.bigEndian);
+            os.writeU8(8);
+            for (int s = 0; s < 8; s++) {
+              if (coloured)
+                writePixel(os, pix[(ty+s%th)*w+tx], bytesPerPixel,
+                           pf.bigEndian);
+              int sx = s % tw, sy = (s * 2) % th;
+              os.writeU8((sx << 4) | sy);
+              os.writeU8(((Math.min(4, tw - sx) - 1) << 4) |
+                         (Math.min(2, th - sy) - 1));
+            }
+            break;
+          }
+        }
+      }
+    }
+
+    return copyOf(os);
+  }
+
+  //
+  // Compact lengths
+  //
+
+  public static byte[] compactLengths(int count)
+  {
+    MemOutStream os = new MemOutStream(count * 3);
+    Random rand = new Random(7);
+    for (int i = 0; i < count; i++) {
+      switch (i % 3) {
+      case 0: os.writeCompactLength(rand.nextInt(0x80)); break;
+      case 1: os.writeCompactLength(rand.nextInt(0x4000)); break;
+      case 2: os.writeCompactLength(rand.nextInt(0x400000)); break;
+      }
+    }
+    return copyOf(os);
+  }
+}
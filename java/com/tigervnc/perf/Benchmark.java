@@ -0,0 +1,90 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// Benchmark - base class for the micro benchmarks run by RfbBench.
+//
+// A benchmark is set up for one rect size and pixel format, then run()
+// repeatedly.  Each run() processes a batch of rects, large enough that
+// the cost of starting a batch doesn't matter.  The batches are first run
+// for a while to let the JIT settle and then timed.
+//
+
+package com.tigervnc.perf;
+
+import com.tigervnc.rfb.PixelFormat;
+
+abstract public class Benchmark {
+
+  // Roughly how many pixels each batch should cover
+  static final int batchPixels = 256 * 1024;
+
+  public Benchmark(String name_) {
+    name = name_;
+  }
+
+  // setUp() prepares everything needed to run with rects of w x h in the
+  // given format, and sets reps to the number of rects in a batch.  It
+  // returns false if the benchmark doesn't apply to that combination.
+
+  abstract public boolean setUp(int w, int h, PixelFormat pf);
+
+  // run() processes one batch.
+
+  abstract public void run();
+
+  // tearDown() lets go of what setUp() allocated.
+
+  public void tearDown() {}
+
+  // inputBytes() is the amount of encoded data in a batch, or 0 if it
+  // doesn't make sense for the benchmark.
+
+  public long inputBytes() { return 0; }
+
+  public final String getName() { return name; }
+  public final int getReps() { return reps; }
+
+  public static int reps(int w, int h) {
+    return Math.max(1, batchPixels / (w * h));
+  }
+
+  // measure() returns the average time in nanoseconds of a batch.
+
+  public final double measure(long warmupNanos, long runNanos)
+  {
+    long start = System.nanoTime();
+    while (System.nanoTime() - start < warmupNanos)
+      run();
+
+    long batches = 0;
+    start = System.nanoTime();
+    long elapsed;
+    do {
+      run();
+      batches++;
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < runNanos);
+
+    return (double)elapsed / batches;
+  }
+
+  protected int reps;
+
+  private String name;
+}
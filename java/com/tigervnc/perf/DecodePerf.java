@@ -0,0 +1,287 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// DecodePerf - replays a session recorded with the RecordSession parameter
+// through CMsgReaderV3 and the decoders, and reports how fast it was
+// decoded.
+//
+// Usage: java com.tigervnc.perf.DecodePerf [-realtime] [-threads N]
+//                                          [-pipeline] [-loops N] [-alloc]
+//                                          [-maxalloc bytes] [-verify]
+//                                          [-reduce N] file
+//
+// By default the recording is decoded as fast as possible.  With -realtime
+// the data is delivered at the pace it was received, which shows whether
+// the decoders keep up with the original session.  The per-encoding times
+// cover reading and decoding each rect, so they are only meaningful with a
+// single decoding thread.  -pipeline inflates large ZRLE rects on a
+// separate thread, like the PipelinedInflate parameter.
+//
+// -alloc also reports how much the decoders allocate per rect.  With
+// -maxalloc the exit status is 2 if any loop allocated more than the
+// given number of bytes per rect on average, so that a CI job replaying a
+// recording can catch decoders that start creating garbage again.
+//
+// -verify decodes the recording twice: once with the decoders writing
+// straight into the framebuffer, and once through imageRect() and
+// fillRect() as for a framebuffer they can't write to.  The framebuffer
+// must be identical after every update, otherwise the first update that
+// differs is reported and the exit status is 3.
+//
+// -reduce keeps the framebuffer at 1/N of the desktop's size, like the
+// FramebufferReduction parameter.
+//
+
+package com.tigervnc.perf;
+
+import java.io.*;
+import java.util.ArrayList;
+
+import com.tigervnc.rdr.*;
+import com.tigervnc.rfb.*;
+
+public class DecodePerf {
+
+  // Recordings up to this size are read into memory first so that the disk
+  // isn't part of what is measured
+  static final long maxPreload = 512 * 1024 * 1024;
+
+  public static void main(String[] argv) throws IOException
+  {
+    boolean realTime = false;
+    int threads = 1;
+    boolean pipeline = false;
+    int loops = 1;
+    boolean alloc = false;
+    long maxAlloc = -1;
+    boolean verify = false;
+    int reduce = 1;
+    String filename = null;
+
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("-realtime")) {
+        realTime = true;
+      } else if (argv[i].equals("-threads") && i + 1 < argv.length) {
+        threads = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-pipeline")) {
+        pipeline = true;
+      } else if (argv[i].equals("-loops") && i + 1 < argv.length) {
+        loops = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-alloc")) {
+        alloc = true;
+      } else if (argv[i].equals("-maxalloc") && i + 1 < argv.length) {
+        alloc = true;
+        maxAlloc = Long.parseLong(argv[++i]);
+      } else if (argv[i].equals("-verify")) {
+        verify = true;
+      } else if (argv[i].equals("-reduce") && i + 1 < argv.length) {
+        reduce = Integer.parseInt(argv[++i]);
+        if (reduce != 1 && reduce != 2 && reduce != 4 && reduce != 8)
+          usage();
+      } else if (filename == null && !argv[i].startsWith("-")) {
+        filename = argv[i];
+      } else {
+        usage();
+      }
+    }
+    if (filename == null)
+      usage();
+
+    if (alloc && threads > 1) {
+      System.err.println("Allocations can only be counted with one thread");
+      System.exit(1);
+    }
+    if (alloc && !AllocationCounter.isSupported()) {
+      System.err.println("This JVM can't count allocations");
+      System.exit(1);
+    }
+
+    File file = new File(filename);
+    byte[] data = null;
+    if (file.length() <= maxPreload) {
+      data = new byte[(int)file.length()];
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        in.readFully(data);
+      } finally {
+        in.close();
+      }
+    }
+
+    if (verify) {
+      HeadlessHandler direct = runTest(open(file, data), realTime, threads,
+                                       pipeline, alloc, true, true,
+                                       reduce);
+      HeadlessHandler generic = runTest(open(file, data), realTime, threads,
+                                        pipeline, alloc, false, true,
+                                        reduce);
+      if (!compare(direct, generic))
+        System.exit(3);
+      return;
+    }
+
+    boolean failed = false;
+    for (int i = 0; i < loops; i++) {
+      InputStream in = open(file, data);
+      try {
+        HeadlessHandler h = runTest(in, realTime, threads, pipeline, alloc,
+                                    true, false, reduce);
+        if (maxAlloc >= 0 && allocPerRect(h) > maxAlloc) {
+          System.out.println(String.format("Allocated %.0f bytes per rect, "+
+                                           "more than %d", allocPerRect(h),
+                                           maxAlloc));
+          failed = true;
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    if (failed)
+      System.exit(2);
+  }
+
+  static void usage()
+  {
+    System.err.println("usage: java com.tigervnc.perf.DecodePerf "+
+                       "[-realtime] [-threads N] [-pipeline] [-loops N] "+
+                       "[-alloc] [-maxalloc bytes] [-verify] "+
+                       "[-reduce N] file");
+    System.exit(1);
+  }
+
+  static InputStream open(File file, byte[] data) throws IOException
+  {
+    if (data != null)
+      return new ByteArrayInputStream(data);
+    return new BufferedInputStream(new FileInputStream(file), 65536);
+  }
+
+  static HeadlessHandler runTest(InputStream in, boolean realTime,
+                                 int threads, boolean pipeline,
+                                 boolean alloc, boolean direct,
+                                 boolean hash, int reduce)
+    throws IOException
+  {
+    ReplayInStream is = new ReplayInStream(in, realTime);
+    HeadlessHandler handler = new HeadlessHandler(is);
+    handler.countAllocations = alloc;
+    handler.directAccess = direct;
+    if (reduce > 1)
+      handler.reducer = new PixelReducer(Integer.numberOfTrailingZeros(reduce));
+    if (hash)
+      handler.hashes = new ArrayList<Long>();
+    handler.cp.setVersion(is.majorVersion(), is.minorVersion());
+
+    CMsgReaderV3 reader = new CMsgReaderV3(handler, is);
+    reader.setDecodeThreads(threads);
+    reader.setPipelinedInflate(pipeline);
+
+    long start = System.nanoTime();
+    try {
+      reader.readServerInit();
+      while (true)
+        reader.readMsg();
+    } catch (EndOfStream e) {
+      // Done
+    } finally {
+      try {
+        reader.flushDecodes();
+      } finally {
+        reader.close();
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+
+    report(handler, is.position(), elapsed);
+    return handler;
+  }
+
+  // compare() checks that two runs over the same recording ended up with
+  // the same framebuffer after every update.  The framebuffer at the end
+  // isn't compared, as a recording usually stops part way through an
+  // update, and the two ways of decoding leave different amounts of the
+  // last rect written.
+
+  static boolean compare(HeadlessHandler a, HeadlessHandler b)
+  {
+    int updates = Math.min(a.hashes.size(), b.hashes.size());
+    for (int i = 0; i < updates; i++) {
+      if (!a.hashes.get(i).equals(b.hashes.get(i))) {
+        System.out.println("Update "+(i+1)+" differs between direct and "+
+                           "generic decoding");
+        return false;
+      }
+    }
+    if (a.hashes.size() != b.hashes.size()) {
+      System.out.println("Different number of updates: "+a.hashes.size()+
+                         " and "+b.hashes.size());
+      return false;
+    }
+
+    System.out.println("Verified "+updates+" updates: direct and generic "+
+                       "decoding are identical");
+    return true;
+  }
+
+  static double allocPerRect(HeadlessHandler h)
+  {
+    long rects = 0, allocated = 0;
+    for (int i = 0; i <= Encodings.encodingMax; i++) {
+      rects += h.rects[i];
+      allocated += h.allocated[i];
+    }
+    return (rects > 0) ? (double)allocated / rects : 0.0;
+  }
+
+  static void report(HeadlessHandler h, long total, long elapsed)
+  {
+    double secs = elapsed / 1e9;
+    long totalPixels = 0;
+    for (int i = 0; i <= Encodings.encodingMax; i++)
+      totalPixels += h.pixels[i];
+
+    System.out.println(String.format("%d updates, %.1f MB in %.3f s: "+
+                                     "%.2f MB/s, %.2f Mpixels/s",
+                                     h.updates, total / 1e6, secs,
+                                     total / secs / 1e6,
+                                     totalPixels / secs / 1e6));
+
+    System.out.println(String.format("  %-10s %10s %12s %12s %10s %10s%s",
+                                     "encoding", "rects", "Mpixels",
+                                     "MB", "ms", "Mpix/s",
+                                     h.countAllocations ?
+                                       String.format(" %12s", "bytes/rect") :
+                                       ""));
+    for (int i = 0; i <= Encodings.encodingMax; i++) {
+      if (h.rects[i] == 0)
+        continue;
+      double ms = h.time[i] / 1e6;
+      String alloc = "";
+      if (h.countAllocations)
+        alloc = String.format(" %12.0f", (double)h.allocated[i] / h.rects[i]);
+      System.out.println(String.format("  %-10s %10d %12.2f %12.2f %10.1f %10.2f%s",
+                                       Encodings.encodingName(i),
+                                       h.rects[i], h.pixels[i] / 1e6,
+                                       h.bytes[i] / 1e6, ms,
+                                       (ms > 0) ? h.pixels[i] / ms / 1e3 : 0.0,
+                                       alloc));
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// HeadlessHandler - a CMsgHandler which decodes into a ManagedPixelBuffer
+// rather than a window, and keeps statistics on the rects it sees.  It
+// needs neither a display nor a socket.  When replaying a recording it
+// also applies the pixel format switches recorded alongside the data.
+//
+
+package com.tigervnc.perf;
+
+import java.util.ArrayList;
+
+import com.tigervnc.rdr.*;
+import com.tigervnc.rfb.*;
+
+public class HeadlessHandler extends CMsgHandler {
+
+  public HeadlessHandler(ReplayInStream is_)
+  {
+    is = is_;
+    pb = new ManagedPixelBuffer();
+    rects = new long[Encodings.encodingMax+1];
+    pixels = new long[Encodings.encodingMax+1];
+    bytes = new long[Encodings.encodingMax+1];
+    time = new long[Encodings.encodingMax+1];
+    allocated = new long[Encodings.encodingMax+1];
+  }
+
+  public HeadlessHandler() { this(null); }
+
+  public PixelFormat getPreferredPF() { return cp.pf(); }
+
+  public void setDesktopSize(int w, int h)
+  {
+    super.setDesktopSize(w, h);
+    setFramebufferSize();
+  }
+
+  public void setExtendedDesktopSize(int reason, int result, int w, int h,
+                                     ScreenSet layout)
+  {
+    super.setExtendedDesktopSize(reason, result, w, h, layout);
+    setFramebufferSize();
+  }
+
+  private void setFramebufferSize()
+  {
+    if (reducer != null)
+      pb.setSize(reducer.reduce(cp.width), reducer.reduce(cp.height));
+    else
+      pb.setSize(cp.width, cp.height);
+  }
+
+  public void setPixelFormat(PixelFormat pf)
+  {
+    super.setPixelFormat(pf);
+    pb.setPF(pf);
+  }
+
+  // The server switches format at the first update after the client asked
+  // it to, so that is where the recorded switches are applied.
+
+  public void framebufferUpdateStart()
+  {
+    PixelFormat pf;
+    while (is != null && (pf = is.nextPixelFormat()) != null)
+      setPixelFormat(pf);
+    updates++;
+  }
+
+  public void framebufferUpdateEnd()
+  {
+    if (hashes != null)
+      hashes.add(Long.valueOf(hashFramebuffer()));
+  }
+
+  public void beginRect(Rect r, int encoding)
+  {
+    rectStart = System.nanoTime();
+    rectPos = (is != null) ? is.pos() : 0;
+    if (countAllocations)
+      rectAllocated = AllocationCounter.allocatedBytes();
+  }
+
+  public void endRect(Rect r, int encoding)
+  {
+    if (encoding < 0 || encoding > Encodings.encodingMax)
+      return;
+    rects[encoding]++;
+    pixels[encoding] += r.area();
+    if (is != null)
+      bytes[encoding] += is.pos() - rectPos;
+    time[encoding] += System.nanoTime() - rectStart;
+    if (countAllocations)
+      allocated[encoding] += AllocationCounter.since(rectAllocated);
+  }
+
+  // The rects are mapped onto a reduced framebuffer like CConn does
+
+  public void fillRect(Rect r, int pix) {
+    if (reducer != null)
+      r = reducer.reduce(r);
+    pb.fillRect(r.tl.x, r.tl.y, r.width(), r.height(), pix);
+  }
+
+  public void imageRect(Rect r, Object pix) {
+    if (reducer != null) {
+      pix = reducer.reduceImage(r, (int[])pix, pb.getPF());
+      r = reducer.reduce(r);
+    }
+    pb.imageRect(r.tl.x, r.tl.y, r.width(), r.height(), (int[])pix);
+  }
+
+  public void copyRect(Rect r, int srcX, int srcY) {
+    if (reducer != null) {
+      Point src = new Point(0, 0);
+      r = reducer.reduceCopy(r, srcX, srcY, pb.width(), pb.height(), src);
+      if (r == null)
+        return;
+      srcX = src.x;
+      srcY = src.y;
+    }
+    pb.copyRect(r.tl.x, r.tl.y, r.width(), r.height(), srcX, srcY);
+  }
+
+  public int[] getBufferRW(Rect r, int[] stride) {
+    if (!directAccess || reducer != null)
+      return null;
+    return pb.getBufferRW(r, stride);
+  }
+
+  public void commitBufferRW(Rect r) {
+    pb.commitBufferRW(r);
+  }
+
+  // hashFramebuffer() returns a 64-bit FNV-1a hash of the pixel values.
+
+  public long hashFramebuffer()
+  {
+    long h = 0xcbf29ce484222325L;
+    int[] data = pb.data;
+    int area = pb.area();
+    for (int i = 0; i < area; i++) {
+      h = (h ^ data[i]) * 0x100000001b3L;
+    }
+    return h;
+  }
+
+  public ManagedPixelBuffer getPixelBuffer() { return pb; }
+
+  public int updates;
+  public long[] rects;
+  public long[] pixels;
+  public long[] bytes;
+  public long[] time;
+
+  // Counting allocations only makes sense when rects are decoded on the
+  // thread reading them.
+  public boolean countAllocations;
+  public long[] allocated;
+
+  // Without directAccess getBufferRW() returns null, so the decoders take
+  // the same path as for a framebuffer they can't write to.  If hashes is
+  // set, a hash of the framebuffer is added to it after every update.
+  public boolean directAccess = true;
+  public ArrayList<Long> hashes;
+
+  // With a reducer the framebuffer is kept at a reduced size
+  public PixelReducer reducer;
+
+  private ReplayInStream is;
+  private ManagedPixelBuffer pb;
+  private long rectStart;
+  private int rectPos;
+  private long rectAllocated;
+}
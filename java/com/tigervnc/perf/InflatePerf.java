@@ -0,0 +1,218 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// InflatePerf - measures ZlibInStream throughput with each of the inflater
+// backends.
+//
+// Usage: java com.tigervnc.perf.InflatePerf [file...]
+//
+// Each file should hold a raw zlib stream, e.g. the concatenated zlib data
+// of one Tight stream or of the ZRLE rects of a session.  Without any files
+// two synthetic streams are used: one compressed in small rect-sized pieces
+// like Tight, and one in 64x64 tile sized pieces like ZRLE.
+//
+
+package com.tigervnc.perf;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import com.tigervnc.rdr.*;
+
+public class InflatePerf {
+
+  static final int iterations = 20;
+
+  static class Chunk {
+    byte[] data;
+    int uncompressed;
+  }
+
+  public static void main(String[] argv) throws IOException
+  {
+    ArrayList<String> names = new ArrayList<String>();
+    ArrayList<Chunk[]> streams = new ArrayList<Chunk[]>();
+
+    if (argv.length == 0) {
+      names.add("synthetic (Tight-like)");
+      streams.add(makeStream(1234, 16, 256));
+      names.add("synthetic (ZRLE-like)");
+      streams.add(makeStream(5678, 64, 64));
+    } else {
+      for (int i = 0; i < argv.length; i++) {
+        names.add(argv[i]);
+        streams.add(readStream(argv[i]));
+      }
+    }
+
+    for (int i = 0; i < streams.size(); i++) {
+      System.out.println(names.get(i)+":");
+      for (int type = ZlibInflater.NATIVE; type <= ZlibInflater.JZLIB; type++)
+        runTest(streams.get(i), type);
+      System.out.println();
+    }
+  }
+
+  static void runTest(Chunk[] chunks, int type)
+  {
+    long compressed = 0;
+    long uncompressed = 0;
+    for (int i = 0; i < chunks.length; i++) {
+      compressed += chunks[i].data.length;
+      uncompressed += chunks[i].uncompressed;
+    }
+
+    // One pass to warm up the JIT
+    inflateAll(chunks, type);
+
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      inflateAll(chunks, type);
+      long elapsed = System.nanoTime() - start;
+      if (elapsed < best)
+        best = elapsed;
+    }
+
+    String name = ZlibInflater.create(type).getName();
+    double secs = best / 1e9;
+    System.out.println("  "+name+": "+
+                       String.format("%8.2f MB/s in, %8.2f MB/s out",
+                                     compressed / secs / 1e6,
+                                     uncompressed / secs / 1e6));
+  }
+
+  // inflateAll() feeds the chunks to a ZlibInStream the same way the
+  // decoders do, one setUnderlying() per chunk.
+
+  static void inflateAll(Chunk[] chunks, int type)
+  {
+    ZlibInStream zis = new ZlibInStream(16384, type);
+    byte[] out = new byte[65536];
+
+    for (int i = 0; i < chunks.length; i++) {
+      MemInStream is = new MemInStream(chunks[i].data, 0,
+                                       chunks[i].data.length);
+      zis.setUnderlying(is, chunks[i].data.length);
+      int left = chunks[i].uncompressed;
+      while (left > 0) {
+        int n = Math.min(left, out.length);
+        zis.readBytes(out, 0, n);
+        left -= n;
+      }
+      zis.reset();
+    }
+  }
+
+  static Chunk[] readStream(String filename) throws IOException
+  {
+    File file = new File(filename);
+    byte[] data = new byte[(int)file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(data);
+    } finally {
+      in.close();
+    }
+
+    // Work out how much each piece of the stream inflates to, so that the
+    // benchmark can read exactly that much
+    ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+    java.util.zip.Inflater inf = new java.util.zip.Inflater();
+    byte[] out = new byte[65536];
+    int pos = 0;
+    while (pos < data.length) {
+      int len = Math.min(16384, data.length - pos);
+      Chunk chunk = new Chunk();
+      chunk.data = new byte[len];
+      System.arraycopy(data, pos, chunk.data, 0, len);
+      inf.setInput(chunk.data);
+      try {
+        while (!inf.needsInput() && !inf.finished())
+          chunk.uncompressed += inf.inflate(out);
+      } catch (java.util.zip.DataFormatException e) {
+        throw new IOException(filename+": not a zlib stream");
+      }
+      chunks.add(chunk);
+      pos += len;
+      if (inf.finished())
+        break;
+    }
+    inf.end();
+
+    return chunks.toArray(new Chunk[chunks.size()]);
+  }
+
+  // makeStream() compresses a synthetic desktop image in rect sized
+  // pieces, each ending with a sync flush as a VNC server would do.
+
+  static Chunk[] makeStream(long seed, int rectW, int rectH)
+  {
+    final int width = 1024, height = 768;
+    Random rand = new Random(seed);
+    byte[] fb = new byte[width * height * 3];
+
+    // Mostly flat areas and gradients with some noisy "text" on top
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int i = (y * width + x) * 3;
+        int window = ((x / 256) + (y / 192)) & 3;
+        byte r, g, bl;
+        if (window == 0) {
+          r = (byte)x; g = (byte)y; bl = (byte)0x80;
+        } else {
+          r = g = bl = (byte)(0x40 * window);
+        }
+        if ((y % 16) < 10 && rand.nextInt(8) == 0)
+          r = g = bl = 0;
+        fb[i] = r; fb[i+1] = g; fb[i+2] = bl;
+      }
+    }
+
+    Deflater def = new Deflater(6);
+    ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+    byte[] rect = new byte[rectW * rectH * 3];
+    byte[] out = new byte[rect.length * 2 + 64];
+
+    for (int ry = 0; ry < height; ry += rectH) {
+      for (int rx = 0; rx < width; rx += rectW) {
+        int w = Math.min(rectW, width - rx);
+        int h = Math.min(rectH, height - ry);
+        for (int y = 0; y < h; y++)
+          System.arraycopy(fb, ((ry + y) * width + rx) * 3,
+                           rect, y * w * 3, w * 3);
+
+        // out is big enough that a single call flushes everything
+        def.setInput(rect, 0, w * h * 3);
+        int len = def.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+
+        Chunk chunk = new Chunk();
+        chunk.data = new byte[len];
+        System.arraycopy(out, 0, chunk.data, 0, len);
+        chunk.uncompressed = w * h * 3;
+        chunks.add(chunk);
+      }
+    }
+    def.end();
+
+    return chunks.toArray(new Chunk[chunks.size()]);
+  }
+}
@@ -0,0 +1,105 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// LatencyHistogram - counts latencies in buckets whose width grows with
+// the latency, so that percentiles can be given for a long run without
+// keeping every sample.  Each power of two of microseconds is split into
+// 32 buckets, so a percentile is accurate to about 3%.
+//
+
+package com.tigervnc.perf;
+
+public class LatencyHistogram {
+
+  static final int subBits = 5;
+  static final int subBuckets = 1 << subBits;
+
+  public LatencyHistogram() {
+    counts = new long[(64 - subBits + 1) * subBuckets];
+  }
+
+  // add() counts a latency given in nanoseconds
+  public void add(long nanos) {
+    long us = Math.max(nanos / 1000, 0);
+    counts[bucket(us)]++;
+    count++;
+    sum += us;
+    if (us > max)
+      max = us;
+  }
+
+  // add() adds all of the latencies in h
+  public void add(LatencyHistogram h) {
+    for (int i = 0; i < counts.length; i++)
+      counts[i] += h.counts[i];
+    count += h.count;
+    sum += h.sum;
+    max = Math.max(max, h.max);
+  }
+
+  public long getCount() { return count; }
+
+  // The following are in milliseconds, and 0 if nothing has been counted
+
+  public double getMean() {
+    return (count > 0) ? sum / 1000.0 / count : 0.0;
+  }
+
+  public double getMax() { return max / 1000.0; }
+
+  // getPercentile() gives the latency that p percent of the latencies are
+  // no higher than, as the middle of the bucket it falls in.
+  public double getPercentile(double p) {
+    if (count == 0)
+      return 0.0;
+    long rank = (long)Math.ceil(count * p / 100.0);
+    if (rank < 1)
+      rank = 1;
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank)
+        return Math.min((low(i) + low(i + 1) - 1) / 2, max) / 1000.0;
+    }
+    return getMax();
+  }
+
+  // Values below subBuckets have a bucket each.  Above that, the bucket is
+  // the position of the highest bit followed by the next subBits bits.
+
+  static int bucket(long us) {
+    if (us < subBuckets)
+      return (int)us;
+    int shift = 63 - Long.numberOfLeadingZeros(us) - subBits;
+    return ((shift + 1) << subBits) + (int)((us >> shift) & (subBuckets - 1));
+  }
+
+  // low() is the lowest value that goes in bucket i
+  static long low(int i) {
+    if (i < subBuckets)
+      return i;
+    int shift = (i >> subBits) - 1;
+    return ((long)(subBuckets | (i & (subBuckets - 1)))) << shift;
+  }
+
+  private long[] counts;
+  private long count;
+  private long sum;
+  private long max;
+}
@@ -0,0 +1,226 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// LoadClient - one session of LoadGen.  It is a CConnection that decodes
+// everything the server sends but, unless keepFramebuffer is set, throws
+// the pixels away rather than keeping a framebuffer.  It asks for one
+// update at a time, like the viewer does without fences, and records how
+// long each took to arrive after it was requested.
+//
+// The handler methods are called on the thread running the connection,
+// while sendInput() is called on LoadGen's input thread.  The statistics
+// are only read once the session has stopped, apart from the update count
+// that is shown as the run goes along.
+//
+
+package com.tigervnc.perf;
+
+import com.tigervnc.rdr.*;
+import com.tigervnc.rfb.*;
+import com.tigervnc.rfb.Exception;
+
+public class LoadClient extends CConnection {
+
+  public LoadClient(int id_, PixelFormat pf_, int encoding_,
+                    boolean keepFramebuffer)
+  {
+    id = id_;
+    pf = pf_;
+    encoding = encoding_;
+    if (keepFramebuffer)
+      pb = new ManagedPixelBuffer();
+    latency = new LatencyHistogram();
+  }
+
+  public PixelFormat getPreferredPF() { return (pf != null) ? pf : cp.pf(); }
+
+  public boolean getUserPasswd(StringBuffer user_, StringBuffer passwd_) {
+    if (user_ != null && user != null)
+      user_.append(user);
+    if (passwd_ != null && passwd != null)
+      passwd_.append(passwd);
+    return true;
+  }
+
+  public void serverInit()
+  {
+    super.serverInit();
+
+    if (pf != null) {
+      setServerPF(pf);
+      writer().writeSetPixelFormat(pf);
+    }
+    writer().writeSetEncodings(encoding, true);
+    if (pb != null) {
+      pb.setPF(cp.pf());
+      pb.setSize(cp.width, cp.height);
+    }
+
+    startTime = System.nanoTime();
+    lastPos = getInStream().pos();
+    requestUpdate(false);
+  }
+
+  public void setDesktopSize(int w, int h)
+  {
+    super.setDesktopSize(w, h);
+    if (pb != null)
+      pb.setSize(w, h);
+  }
+
+  public void setExtendedDesktopSize(int reason, int result, int w, int h,
+                                     ScreenSet layout)
+  {
+    super.setExtendedDesktopSize(reason, result, w, h, layout);
+    if (pb != null)
+      pb.setSize(w, h);
+  }
+
+  public void setPixelFormat(PixelFormat pf_)
+  {
+    super.setPixelFormat(pf_);
+    if (pb != null)
+      pb.setPF(pf_);
+  }
+
+  public void framebufferUpdateEnd()
+  {
+    long now = System.nanoTime();
+    latency.add(now - requestTime);
+    updates++;
+
+    // Positions are ints, but the difference is right even if they wrap
+    int pos = getInStream().pos();
+    bytes += pos - lastPos;
+    lastPos = pos;
+
+    if (!stopped)
+      requestUpdate(true);
+  }
+
+  public void beginRect(Rect r, int encoding_)
+  {
+    rectStart = System.nanoTime();
+  }
+
+  public void endRect(Rect r, int encoding_)
+  {
+    decodeTime += System.nanoTime() - rectStart;
+    rects++;
+  }
+
+  public void fillRect(Rect r, int pix) {
+    if (pb != null)
+      pb.fillRect(r.tl.x, r.tl.y, r.width(), r.height(), pix);
+  }
+
+  public void imageRect(Rect r, Object pix) {
+    if (pb != null)
+      pb.imageRect(r.tl.x, r.tl.y, r.width(), r.height(), (int[])pix);
+  }
+
+  public void copyRect(Rect r, int srcX, int srcY) {
+    if (pb != null)
+      pb.copyRect(r.tl.x, r.tl.y, r.width(), r.height(), srcX, srcY);
+  }
+
+  public int[] getBufferRW(Rect r, int[] stride) {
+    if (pb == null)
+      return null;
+    return pb.getBufferRW(r, stride);
+  }
+
+  public void commitBufferRW(Rect r) {
+    pb.commitBufferRW(r);
+  }
+
+  private void requestUpdate(boolean incremental)
+  {
+    requestTime = System.nanoTime();
+    writer().writeFramebufferUpdateRequest(new Rect(0, 0, cp.width,
+                                                    cp.height),
+                                           incremental);
+  }
+
+  // sendInput() sends the next synthetic input event: the pointer moves
+  // round an ellipse over the desktop, and with keys set, every tenth
+  // event presses or releases Shift.  Nothing is sent before the session
+  // is up or after it has stopped.
+
+  public void sendInput()
+  {
+    if (state() != RFBSTATE_NORMAL || stopped)
+      return;
+
+    double angle = inputEvents * 0.05 + id;
+    int x = (int)(cp.width * (0.5 + 0.4 * Math.cos(angle)));
+    int y = (int)(cp.height * (0.5 + 0.4 * Math.sin(angle)));
+    writer().writePointerEvent(new Point(x, y), 0);
+    if (keys && inputEvents % 10 == 0)
+      writer().writeKeyEvent(Keysyms.Shift_L, (inputEvents / 10) % 2 == 0);
+    inputEvents++;
+  }
+
+  // stop() ends the session's statistics.  The connection is closed by
+  // whoever runs it.
+
+  public void stop()
+  {
+    if (!stopped) {
+      stopped = true;
+      stopTime = System.nanoTime();
+    }
+  }
+
+  public boolean isStopped() { return stopped; }
+
+  // getActiveTime() is how long the session has been receiving updates, in
+  // seconds
+
+  public double getActiveTime()
+  {
+    if (startTime == 0)
+      return 0.0;
+    return ((stopped ? stopTime : System.nanoTime()) - startTime) / 1e9;
+  }
+
+  public final int id;
+  public String user;
+  public String passwd;
+  public boolean keys;
+
+  public volatile int updates;
+  public long rects;
+  public long bytes;
+  public long decodeTime;
+  public long inputEvents;
+  public LatencyHistogram latency;
+
+  // Why the session ended, or null if it was stopped at the end of the run
+  public volatile java.lang.Exception failure;
+
+  private PixelFormat pf;
+  private int encoding;
+  private ManagedPixelBuffer pb;
+  private volatile boolean stopped;
+  private long startTime, stopTime;
+  private long requestTime;
+  private long rectStart;
+  private int lastPos;
+}
@@ -0,0 +1,415 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// LoadGen - opens many headless sessions to a VNC server at once, to see
+// how the server, the network and the decoders cope.
+//
+// Usage: java com.tigervnc.perf.LoadGen [-sessions N] [-time secs]
+//                                       [-workers N | -threads]
+//                                       [-input rate] [-keys]
+//                                       [-encoding name] [-format name]
+//                                       [-framebuffer] [-rampup ms]
+//                                       [-user name] [-password pw]
+//                                       [-security types] [-standin]
+//                                       [host[:display|::port]]
+//
+// Each session is a LoadClient, which asks for updates one after another
+// and decodes them, and stops after -time seconds.  By default the
+// sessions are run by a SessionEngine with -workers decoding threads.
+// With -threads each session has a thread of its own instead, a virtual
+// one if the JVM has them, which is the only way to use the TLS based
+// security types.
+//
+// -input sends that many pointer events per second on every session, and
+// -keys adds key events.  -encoding and -format choose what the sessions
+// ask the server for; the default is ZRLE in the server's pixel format.
+// The pixels are thrown away unless -framebuffer is given, so that the
+// client machine can run more sessions.  The sessions are started
+// -rampup ms apart, so that the server's listen queue isn't overrun.
+//
+// -standin starts a StandInServer in the same process and connects to
+// that, when there is no real server to hand.
+//
+// A line of progress is printed every ten seconds.  At the end there is a
+// line for each session with its update rate, bandwidth, decoding time
+// and update latency, where latency is the time from requesting an update
+// to the end of it arriving, and a total over all the sessions.  In
+// SessionEngine mode the decoding time doesn't include reading the data,
+// which is done as it arrives, but with -threads it includes waiting for
+// the data of each rect.
+//
+
+package com.tigervnc.perf;
+
+import com.tigervnc.network.*;
+import com.tigervnc.rdr.*;
+import com.tigervnc.rfb.*;
+import com.tigervnc.rfb.Exception;
+import com.tigervnc.vncviewer.CConn;
+
+public class LoadGen {
+
+  static final int progressInterval = 10000;
+
+  public static void main(String[] argv) throws InterruptedException
+  {
+    int sessions = 10;
+    int time = 30;
+    int workers = Runtime.getRuntime().availableProcessors();
+    boolean threads = false;
+    int inputRate = 0;
+    boolean keys = false;
+    int encoding = Encodings.encodingZRLE;
+    PixelFormat pf = null;
+    boolean framebuffer = false;
+    int rampup = 10;
+    String user = null, password = null;
+    String security = null;
+    boolean standin = false;
+    String server = null;
+
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("-sessions") && i + 1 < argv.length) {
+        sessions = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-time") && i + 1 < argv.length) {
+        time = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-workers") && i + 1 < argv.length) {
+        workers = Integer.parseInt(argv[++i]);
+        if (workers < 1)
+          usage();
+      } else if (argv[i].equals("-threads")) {
+        threads = true;
+      } else if (argv[i].equals("-input") && i + 1 < argv.length) {
+        inputRate = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-keys")) {
+        keys = true;
+      } else if (argv[i].equals("-encoding") && i + 1 < argv.length) {
+        encoding = Encodings.encodingNum(argv[++i]);
+        if (encoding == -1)
+          usage();
+      } else if (argv[i].equals("-format") && i + 1 < argv.length) {
+        pf = BenchData.format(argv[++i]);
+      } else if (argv[i].equals("-framebuffer")) {
+        framebuffer = true;
+      } else if (argv[i].equals("-rampup") && i + 1 < argv.length) {
+        rampup = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-user") && i + 1 < argv.length) {
+        user = argv[++i];
+      } else if (argv[i].equals("-password") && i + 1 < argv.length) {
+        password = argv[++i];
+      } else if (argv[i].equals("-security") && i + 1 < argv.length) {
+        security = argv[++i];
+      } else if (argv[i].equals("-standin")) {
+        standin = true;
+      } else if (server == null && !argv[i].startsWith("-")) {
+        server = argv[i];
+      } else {
+        usage();
+      }
+    }
+    if (sessions < 1 || (server == null) == !standin)
+      usage();
+
+    Configuration.enableViewerParams();
+    if (security != null)
+      Configuration.setParam("SecurityTypes", security);
+
+    // Plain and Ident authentication ask the viewer for the user name and
+    // password rather than the connection
+    final String user_ = user, password_ = password;
+    CConn.upg = new UserPasswdGetter() {
+      public boolean getUserPasswd(StringBuffer u, StringBuffer p) {
+        if (u != null && user_ != null)
+          u.append(user_);
+        if (p != null && password_ != null)
+          p.append(password_);
+        return true;
+      }
+    };
+
+    String host;
+    int port;
+    if (standin) {
+      StandInServer s = new StandInServer(0, 1024, 768, 30, -1, password);
+      s.start();
+      host = "localhost";
+      port = s.getPort();
+    } else {
+      host = Hostname.getHost(server);
+      port = Hostname.getPort(server);
+    }
+
+    LoadClient[] clients = new LoadClient[sessions];
+    for (int i = 0; i < sessions; i++) {
+      clients[i] = new LoadClient(i, pf, encoding, framebuffer);
+      clients[i].user = user;
+      clients[i].passwd = password;
+      clients[i].keys = keys;
+    }
+
+    System.out.println("Starting "+sessions+" sessions to "+host+"::"+port+
+                       " for "+time+" s, "+
+                       (threads ? (VirtualThreads.isSupported() ?
+                                   "one virtual thread each" :
+                                   "one thread each") :
+                                  "in a SessionEngine"));
+
+    Runner runner = threads ? (Runner)new ThreadRunner(sessions)
+                            : (Runner)new EngineRunner(workers);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < sessions; i++) {
+      runner.start(clients[i], host, port);
+      if (rampup > 0 && i < sessions - 1)
+        Thread.sleep(rampup);
+    }
+
+    InputThread input = null;
+    if (inputRate > 0) {
+      input = new InputThread(clients, inputRate);
+      input.start();
+    }
+
+    long end = start + time * 1000L;
+    long nextProgress = start + progressInterval;
+    while (true) {
+      long now = System.currentTimeMillis();
+      if (now >= end)
+        break;
+      if (now >= nextProgress) {
+        progress(clients, (now - start) / 1000);
+        nextProgress += progressInterval;
+      }
+      Thread.sleep(Math.min(end, nextProgress) - now);
+    }
+
+    for (int i = 0; i < sessions; i++)
+      clients[i].stop();
+    if (input != null)
+      input.interrupt();
+    runner.stopAll();
+
+    report(clients);
+    System.exit(0);
+  }
+
+  static void usage()
+  {
+    System.err.println("usage: java com.tigervnc.perf.LoadGen "+
+                       "[-sessions N] [-time secs] [-workers N | -threads] "+
+                       "[-input rate] [-keys] [-encoding name] "+
+                       "[-format name] [-framebuffer] [-rampup ms] "+
+                       "[-user name] [-password pw] [-security types] "+
+                       "[-standin] [host[:display|::port]]");
+    System.exit(1);
+  }
+
+  static void progress(LoadClient[] clients, long secs)
+  {
+    int running = 0, failed = 0;
+    long updates = 0;
+    for (int i = 0; i < clients.length; i++) {
+      updates += clients[i].updates;
+      if (clients[i].failure != null)
+        failed++;
+      else if (clients[i].state() == CConnection.RFBSTATE_NORMAL)
+        running++;
+    }
+    System.out.println(String.format("%4d s: %d sessions running, %d failed, "+
+                                     "%d updates", secs, running, failed,
+                                     updates));
+  }
+
+  static void report(LoadClient[] clients)
+  {
+    System.out.println(String.format("%7s %8s %8s %10s %10s %8s %8s %8s %8s  %s",
+                                     "session", "updates", "upd/s",
+                                     "KB/s", "decode ms", "p50 ms",
+                                     "p90 ms", "p99 ms", "max ms",
+                                     "error"));
+
+    LatencyHistogram all = new LatencyHistogram();
+    long updates = 0, bytes = 0, decodeTime = 0;
+    double activeTime = 0;
+    int failed = 0;
+    for (int i = 0; i < clients.length; i++) {
+      LoadClient c = clients[i];
+      double secs = c.getActiveTime();
+      line(String.valueOf(c.id), c.updates, c.bytes, c.decodeTime, secs,
+           c.latency, (c.failure != null) ? c.failure.getMessage() : "");
+      all.add(c.latency);
+      updates += c.updates;
+      bytes += c.bytes;
+      decodeTime += c.decodeTime;
+      activeTime += secs;
+      if (c.failure != null)
+        failed++;
+    }
+
+    // The rates of the total are the sums of the sessions' rates
+    double secs = (clients.length > 0) ? activeTime / clients.length : 0;
+    line("total", updates, bytes, decodeTime, secs, all,
+         (failed > 0) ? failed+" sessions failed" : "");
+  }
+
+  static void line(String name, long updates, long bytes, long decodeTime,
+                   double secs, LatencyHistogram latency, String error)
+  {
+    System.out.println(String.format("%7s %8d %8.1f %10.1f %10.1f %8.1f %8.1f %8.1f %8.1f  %s",
+                                     name, updates,
+                                     (secs > 0) ? updates / secs : 0.0,
+                                     (secs > 0) ? bytes / secs / 1024 : 0.0,
+                                     decodeTime / 1e6,
+                                     latency.getPercentile(50),
+                                     latency.getPercentile(90),
+                                     latency.getPercentile(99),
+                                     latency.getMax(), error));
+  }
+
+  // A Runner runs the sessions' connections until they are stopped
+
+  interface Runner {
+    void start(LoadClient c, String host, int port);
+    void stopAll();
+  }
+
+  static class EngineRunner extends SessionEngine implements Runner {
+    EngineRunner(int workers) {
+      super(workers);
+    }
+
+    public void start(LoadClient c, String host, int port) {
+      try {
+        connect(c, host, port);
+      } catch (java.lang.Exception e) {
+        c.failure = e;
+        c.stop();
+      }
+    }
+
+    public void stopAll() { close(); }
+
+    public void sessionClosed(Session session, java.lang.Exception reason) {
+      LoadClient c = (LoadClient)session.getConnection();
+      if (!c.isStopped()) {
+        c.failure = (reason != null) ? reason
+                                     : new Exception("Connection closed");
+        c.stop();
+      }
+    }
+  }
+
+  static class ThreadRunner implements Runner {
+    ThreadRunner(int sessions) {
+      sockets = new TcpSocket[sessions][];
+      threads = new Thread[sessions];
+    }
+
+    public void start(final LoadClient c, final String host,
+                      final int port) {
+      final TcpSocket[] sock = new TcpSocket[1];
+      sockets[c.id] = sock;
+      Runnable r = new Runnable() {
+        public void run() {
+          try {
+            TcpSocket s = new TcpSocket(host, port);
+            synchronized (sock) {
+              sock[0] = s;
+            }
+            ((SocketDescriptor)s.getFd()).setBlocking(true);
+            c.setServerName(host);
+            c.setServerPort(port);
+            c.setStreams(s.inStream(), s.outStream());
+            c.initialiseProtocol();
+            while (!c.isStopped())
+              c.processMsg();
+          } catch (java.lang.Exception e) {
+            if (!c.isStopped()) {
+              c.failure = e;
+              c.stop();
+            }
+          }
+        }
+      };
+      Thread t = VirtualThreads.newThread(r, "LoadClient-"+c.id);
+      threads[c.id] = t;
+      t.start();
+    }
+
+    // stopAll() shuts the sockets down, which ends any read the threads
+    // are blocked in
+    public void stopAll() {
+      for (int i = 0; i < sockets.length; i++) {
+        if (sockets[i] == null)
+          continue;
+        synchronized (sockets[i]) {
+          if (sockets[i][0] == null)
+            continue;
+          try {
+            sockets[i][0].shutdown();
+            sockets[i][0].close();
+          } catch (java.lang.Exception e) { }
+        }
+      }
+      for (int i = 0; i < threads.length; i++) {
+        if (threads[i] == null)
+          continue;
+        try {
+          threads[i].join(1000);
+        } catch (InterruptedException e) { }
+      }
+    }
+
+    private final TcpSocket[][] sockets;
+    private final Thread[] threads;
+  }
+
+  static class InputThread extends Thread {
+    InputThread(LoadClient[] clients_, int rate_) {
+      super("LoadGenInput");
+      clients = clients_;
+      rate = rate_;
+      setDaemon(true);
+    }
+
+    public void run() {
+      long interval = 1000000000L / rate;
+      long next = System.nanoTime();
+      while (true) {
+        next += interval;
+        long wait = next - System.nanoTime();
+        try {
+          if (wait > 0)
+            Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int i = 0; i < clients.length; i++) {
+          try {
+            clients[i].sendInput();
+          } catch (java.lang.Exception e) {
+            // The session's own thread sees the failure as well
+          }
+        }
+      }
+    }
+
+    private final LoadClient[] clients;
+    private final int rate;
+  }
+}
@@ -0,0 +1,704 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// RfbBench - micro benchmarks for the rdr and rfb hot paths.
+//
+// Usage: java com.tigervnc.perf.RfbBench [-sizes WxH,...] [-formats pf,...]
+//                                        [-time ms] [benchmark...]
+//
+// Every benchmark is run for each rect size and pixel format.  The
+// benchmarks to run can be given by name or by a prefix of the name, e.g.
+// "tight" runs all of the Tight benchmarks.  The available pixel formats
+// are listed in BenchData.
+//
+
+package com.tigervnc.perf;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.ImageObserver;
+import java.util.ArrayList;
+
+import com.tigervnc.rdr.*;
+import com.tigervnc.rfb.*;
+
+public class RfbBench {
+
+  static final String defaultSizes = "16x16,64x64,256x256,1024x768";
+
+  public static void main(String[] argv)
+  {
+    String sizes = defaultSizes;
+    String formats = "rgb888,rgb888be,rgb565,rgb332";
+    long time = 1000;
+    ArrayList<String> only = new ArrayList<String>();
+
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("-sizes") && i + 1 < argv.length) {
+        sizes = argv[++i];
+      } else if (argv[i].equals("-formats") && i + 1 < argv.length) {
+        formats = argv[++i];
+      } else if (argv[i].equals("-time") && i + 1 < argv.length) {
+        time = Long.parseLong(argv[++i]);
+      } else if (argv[i].startsWith("-")) {
+        usage();
+      } else {
+        only.add(argv[i]);
+      }
+    }
+
+    System.out.println(String.format("%-22s %10s %-9s %12s %10s %10s",
+                                     "benchmark", "size", "format",
+                                     "ns/rect", "Mpix/s", "MB/s in"));
+
+    Benchmark[] benchmarks = createBenchmarks();
+    for (int b = 0; b < benchmarks.length; b++) {
+      if (!selected(benchmarks[b].getName(), only))
+        continue;
+
+      String[] sizeList = sizes.split(",");
+      for (int s = 0; s < sizeList.length; s++) {
+        String[] dims = sizeList[s].split("x");
+        int w = Integer.parseInt(dims[0]);
+        int h = Integer.parseInt(dims[1]);
+
+        String[] formatList = formats.split(",");
+        for (int f = 0; f < formatList.length; f++)
+          runBenchmark(benchmarks[b], w, h, formatList[f], time);
+      }
+    }
+  }
+
+  static void usage()
+  {
+    System.err.println("usage: java com.tigervnc.perf.RfbBench "+
+                       "[-sizes WxH,...] [-formats pf,...] [-time ms] "+
+                       "[benchmark...]");
+    System.err.println("benchmarks:");
+    Benchmark[] benchmarks = createBenchmarks();
+    for (int i = 0; i < benchmarks.length; i++)
+      System.err.println("  "+benchmarks[i].getName());
+    System.exit(1);
+  }
+
+  static boolean selected(String name, ArrayList<String> only)
+  {
+    if (only.isEmpty())
+      return true;
+    for (int i = 0; i < only.size(); i++) {
+      if (name.startsWith(only.get(i)))
+        return true;
+    }
+    return false;
+  }
+
+  static void runBenchmark(Benchmark bench, int w, int h, String format,
+                           long time)
+  {
+    String prefix = String.format("%-22s %10s %-9s", bench.getName(),
+                                  w+"x"+h, format);
+    try {
+      if (!bench.setUp(w, h, BenchData.format(format)))
+        return;
+      double batch = bench.measure(time * 1000000 / 4, time * 1000000);
+      double perRect = batch / bench.getReps();
+      double pixels = (double)w * h * bench.getReps();
+      String mbs = "-";
+      if (bench.inputBytes() != 0)
+        mbs = String.format("%.1f", bench.inputBytes() / batch * 1e3);
+      System.out.println(String.format("%s %12.0f %10.1f %10s", prefix,
+                                       perRect, pixels / batch * 1e3, mbs));
+    } catch (RuntimeException e) {
+      System.out.println(prefix+" failed: "+e);
+    } finally {
+      bench.tearDown();
+    }
+  }
+
+  static Benchmark[] createBenchmarks()
+  {
+    ArrayList<Benchmark> list = new ArrayList<Benchmark>();
+
+    list.add(new BufferFromRGB());
+    list.add(new Convert());
+    list.add(new ReadPixels());
+    list.add(new ReadCompactLength());
+    list.add(new Inflate());
+    list.add(new RawBench());
+    list.add(new TightBench("tight.copy", BenchData.tightCopy));
+    list.add(new TightBench("tight.palette", BenchData.tightPalette));
+    list.add(new TightBench("tight.gradient", BenchData.tightGradient));
+    list.add(new TightBench("tight.jpeg", BenchData.tightJpeg));
+    for (int i = 0; i < BenchData.zrleModeNames.length; i++)
+      list.add(new ZRLEBench(i));
+    for (int i = 0; i < BenchData.zrleModeNames.length; i++)
+      list.add(new TRLEBench(i));
+    list.add(new HextileBench());
+    list.add(new RREBench());
+    list.add(new ToolkitJpeg());
+    list.add(new ImageIOJpeg("jpeg.imageio", false));
+    list.add(new ImageIOJpeg("jpeg.imageio.gray", true));
+    list.add(new FillRect());
+    list.add(new ImageRect());
+    list.add(new CopyRect());
+    list.add(new Scroll());
+    list.add(new GraphicsFillRect());
+    list.add(new GraphicsCopyRect());
+    list.add(new GraphicsScroll());
+
+    return list.toArray(new Benchmark[list.size()]);
+  }
+
+  //
+  // PixelFormat and InStream
+  //
+
+  static class BufferFromRGB extends Benchmark {
+    BufferFromRGB() { super("pf.bufferFromRGB"); }
+
+    public boolean setUp(int w, int h, PixelFormat pf_) {
+      pf = pf_;
+      reps = reps(w, h);
+      pixels = w * h;
+      src = new byte[pixels * 3];
+      int[] rgb = BenchData.image(w, h, 1);
+      for (int i = 0; i < pixels; i++) {
+        src[i*3] = (byte)(rgb[i] >> 16);
+        src[i*3+1] = (byte)(rgb[i] >> 8);
+        src[i*3+2] = (byte)rgb[i];
+      }
+      dst = new int[pixels];
+      return true;
+    }
+
+    public void run() {
+      for (int i = 0; i < reps; i++)
+        pf.bufferFromRGB(dst, 0, src, 0, pixels);
+    }
+
+    public long inputBytes() { return (long)reps * src.length; }
+
+    PixelFormat pf;
+    int pixels;
+    byte[] src;
+    int[] dst;
+  }
+
+  // Convert turns pixels in the format into the int RGB layout the viewer
+  // draws into
+
+  static class Convert extends Benchmark {
+    Convert() { super("pf.convert"); }
+
+    public boolean setUp(int w_, int h_, PixelFormat pf) {
+      w = w_;
+      h = h_;
+      reps = reps(w, h);
+      PixelFormat rgbPF = BenchData.format("rgb888");
+      converter = PixelConverter.create(pf, rgbPF);
+      src = BenchData.pixels(pf, BenchData.image(w, h, 1));
+      dst = new int[w * h];
+      return true;
+    }
+
+    public void run() {
+      for (int i = 0; i < reps; i++)
+        converter.convertRect(src, 0, w, dst, 0, w, w, h);
+    }
+
+    int w, h;
+    PixelConverter converter;
+    int[] src;
+    int[] dst;
+  }
+
+  static class ReadPixels extends Benchmark {
+    ReadPixels() { super("is.readPixels"); }
+
+    public boolean setUp(int w, int h, PixelFormat pf_) {
+      pf = pf_;
+      reps = reps(w, h);
+      pixels = w * h;
+      byte[] rect = BenchData.pixelBytes(pf, BenchData.pixels(pf,
+                                         BenchData.image(w, h, 1)));
+      data = new byte[rect.length * reps];
+      for (int i = 0; i < reps; i++)
+        System.arraycopy(rect, 0, data, i * rect.length, rect.length);
+      buf = new int[pixels];
+      return true;
+    }
+
+    public void run() {
+      InStream is = new MemInStream(data, 0, data.length);
+      for (int i = 0; i < reps; i++)
+        is.readPixels(buf, pixels, pf.bpp / 8, pf.bigEndian);
+    }
+
+    public long inputBytes() { return data.length; }
+
+    PixelFormat pf;
+    int pixels;
+    byte[] data;
+    int[] buf;
+  }
+
+  // The pixel format makes no difference here, so this only runs for the
+  // first one
+
+  static class ReadCompactLength extends Benchmark {
+    ReadCompactLength() { super("is.readCompactLength"); }
+
+    public boolean setUp(int w, int h, PixelFormat pf) {
+      if (done)
+        return false;
+      done = true;
+      reps = 64 * 1024;
+      data = BenchData.compactLengths(reps);
+      return true;
+    }
+
+    public void run() {
+      InStream is = new MemInStream(data, 0, data.length);
+      int sum = 0;
+      for (int i = 0; i < reps; i++)
+        sum += is.readCompactLength();
+      result = sum;
+    }
+
+    public long inputBytes() { return data.length; }
+
+    boolean done;
+    byte[] data;
+    volatile int result;
+  }
+
+  static class Inflate extends Benchmark {
+    Inflate() { super("zlib.inflate"); }
+
+    public boolean setUp(int w, int h, PixelFormat pf) {
+      reps = reps(w, h);
+      byte[] rect = BenchData.pixelBytes(pf, BenchData.pixels(pf,
+                                         BenchData.image(w, h, 1)));
+      rectLen = rect.length;
+      MemOutStream os = new MemOutStream();
+      java.util.zip.Deflater def = new java.util.zip.Deflater(6);
+      for (int i = 0; i < reps; i++) {
+        byte[] z = BenchData.deflate(def, rect, rect.length);
+        os.writeU32(z.length);
+        os.writeBytes(z, 0, z.length);
+      }
+      def.end();
+      data = BenchData.copyOf(os);
+      out = new byte[rectLen];
+      return true;
+    }
+
+    public void run() {
+      InStream is = new MemInStream(data, 0, data.length);
+      ZlibInStream zis = new ZlibInStream();
+      for (int i = 0; i < reps; i++) {
+        zis.setUnderlying(is, is.readU32());
+        zis.readBytes(out, 0, rectLen);
+        zis.reset();
+      }
+    }
+
+    public long inputBytes() { return data.length; }
+
+    int rectLen;
+    byte[] data;
+    byte[] out;
+  }
+
+  //
+  // Decoders
+  //
+
+  // DecoderBench runs a decoder over a batch of encoded rects, into a
+  // framebuffer the size of the rect.  A new decoder is used for every
+  // batch as the zlib based encodings carry state from one rect to the
+  // next.
+
+  abstract static class DecoderBench extends Benchmark {
+    DecoderBench(String name, int encoding_) {
+      super(name);
+      encoding = encoding_;
+    }
+
+    abstract byte[] encode(int w, int h, PixelFormat pf, int[] rgb);
+
+    public boolean setUp(int w, int h, PixelFormat pf) {
+      reps = reps(w, h);
+      handler = new HeadlessHandler();
+      handler.setDesktopSize(w, h);
+      handler.setPixelFormat(pf);
+      reader = new CMsgReaderV3(handler, null);
+      rect = new Rect(0, 0, w, h);
+      data = encode(w, h, pf, BenchData.image(w, h, 1));
+      return data != null;
+    }
+
+    public void run() {
+      Decoder decoder = Decoder.createDecoder(encoding, reader);
+      InStream is = new MemInStream(data, 0, data.length);
+      for (int i = 0; i < reps; i++)
+        decoder.decodeRect(rect, is, handler);
+    }
+
+    public void tearDown() {
+      handler = null;
+      reader = null;
+      data = null;
+    }
+
+    public long inputBytes() { return data.length; }
+
+    int encoding;
+    HeadlessHandler handler;
+    CMsgReader reader;
+    Rect rect;
+    byte[] data;
+  }
+
+  static class RawBench extends DecoderBench {
+    RawBench() { super("raw", Encodings.encodingRaw); }
+
+    byte[] encode(int w, int h, PixelFormat pf, int[] rgb) {
+      byte[] rect = BenchData.pixelBytes(pf, BenchData.pixels(pf, rgb));
+      byte[] data = new byte[rect.length * reps];
+      for (int i = 0; i < reps; i++)
+        System.arraycopy(rect, 0, data, i * rect.length, rect.length);
+      return data;
+    }
+  }
+
+  static class TightBench extends DecoderBench {
+    TightBench(String name, int filter_) {
+      super(name, Encodings.encodingTight);
+      filter = filter_;
+    }
+
+    byte[] encode(int w, int h, PixelFormat pf, int[] rgb) {
+      // Tight only uses JPEG for 24 bit colour
+      if (filter == BenchData.tightJpeg && !(pf.bpp == 32 && pf.is888()))
+        return null;
+      return BenchData.tight(pf, w, h, rgb, filter, reps);
+    }
+
+    int filter;
+  }
+
+  static class ZRLEBench extends DecoderBench {
+    ZRLEBench(int mode_) {
+      super("zrle."+BenchData.zrleModeNames[mode_], Encodings.encodingZRLE);
+      mode = mode_;
+    }
+
+    byte[] encode(int w, int h, PixelFormat pf, int[] rgb) {
+      return BenchData.zrle(pf, w, h, rgb, mode, reps);
+    }
+
+    int mode;
+  }
+
+  static class TRLEBench extends DecoderBench {
+    TRLEBench(int mode_) {
+      super("trle."+BenchData.zrleModeNames[mode_], Encodings.encodingTRLE);
+      mode = mode_;
+    }
+
+    byte[] encode(int w, int h, PixelFormat pf, int[] rgb) {
+      return BenchData.trle(pf, w, h, rgb, mode, reps);
+    }
+
+    int mode;
+  }
+
+  static class RREBench extends DecoderBench {
+    RREBench() { super("rre", Encodings.encodingRRE); }
+
+    byte[] encode(int w, int h, PixelFormat pf, int[] rgb) {
+      return BenchData.rre(pf, w, h, rgb, reps);
+    }
+  }
+
+  static class HextileBench extends DecoderBench {
+    HextileBench() { super("hextile", Encodings.encodingHextile); }
+
+    byte[] encode(int w, int h, PixelFormat pf, int[] rgb) {
+      return BenchData.hextile(pf, w, h, rgb, reps);
+    }
+  }
+
+  //
+  // JPEG
+  //
+
+  // JpegBench decodes the same JPEG image reps times into an image the
+  // size of the rect, which is what a Tight JPEG rect costs apart from
+  // reading the data.
+
+  abstract static class JpegBench extends Benchmark {
+    JpegBench(String name, boolean gray_) {
+      super(name);
+      gray = gray_;
+    }
+
+    public boolean setUp(int w, int h, PixelFormat pf_) {
+      // Tight only uses JPEG for 24 bit colour
+      if (!(pf_.bpp == 32 && pf_.is888()))
+        return false;
+      reps = reps(w, h);
+      pf = pf_;
+      data = BenchData.jpeg(w, h, BenchData.image(w, h, 1), gray);
+      image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+      return true;
+    }
+
+    public void tearDown() {
+      data = null;
+      image = null;
+    }
+
+    public long inputBytes() { return (long)data.length * reps; }
+
+    boolean gray;
+    PixelFormat pf;
+    byte[] data;
+    BufferedImage image;
+  }
+
+  // ToolkitJpeg is how BIPixelBuffer used to handle JPEG rects: a Toolkit
+  // image per rect, decoded on the image fetcher thread and drawn into the
+  // framebuffer from the ImageObserver.
+
+  static class ToolkitJpeg extends JpegBench implements ImageObserver {
+    ToolkitJpeg() { super("jpeg.toolkit", false); }
+
+    public void run() {
+      Toolkit tk = Toolkit.getDefaultToolkit();
+      for (int i = 0; i < reps; i++) {
+        Image img = tk.createImage(data);
+        synchronized(this) {
+          done = false;
+          tk.prepareImage(img, -1, -1, this);
+          try {
+            while (!done)
+              wait(1000);
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        img.flush();
+      }
+    }
+
+    public boolean imageUpdate(Image img, int infoflags,
+                               int x, int y, int w, int h) {
+      if ((infoflags & (ALLBITS | ABORT)) == 0)
+        return true;
+      synchronized(this) {
+        if ((infoflags & ALLBITS) != 0) {
+          Graphics2D graphics = image.createGraphics();
+          graphics.drawImage(img, 0, 0, null);
+          graphics.dispose();
+        }
+        done = true;
+        notify();
+      }
+      return false;
+    }
+
+    boolean done;
+  }
+
+  static class ImageIOJpeg extends JpegBench {
+    ImageIOJpeg(String name, boolean gray) { super(name, gray); }
+
+    public boolean setUp(int w, int h, PixelFormat pf) {
+      jpeg = new JpegDecompressor();
+      return super.setUp(w, h, pf);
+    }
+
+    public void run() {
+      int[] fb = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+      int w = image.getWidth(), h = image.getHeight();
+      for (int i = 0; i < reps; i++)
+        jpeg.decompress(data, 0, data.length, w, h, fb, 0, w, pf);
+    }
+
+    public void tearDown() {
+      super.tearDown();
+      jpeg = null;
+    }
+
+    JpegDecompressor jpeg;
+  }
+
+  //
+  // PixelBuffer
+  //
+
+  // PixelBufferBench works on a 1920x1200 framebuffer, or larger if the
+  // rect doesn't fit, moving the rect around so that it doesn't always hit
+  // the same cache lines.
+
+  abstract static class PixelBufferBench extends Benchmark {
+    PixelBufferBench(String name) { super(name); }
+
+    public boolean setUp(int w_, int h_, PixelFormat pf) {
+      w = w_;
+      h = h_;
+      reps = reps(w, h);
+      pb = new ManagedPixelBuffer();
+      pb.setPF(pf);
+      pb.setSize(Math.max(1920, w + 1), Math.max(1200, h + 1));
+      pix = BenchData.pixels(pf, BenchData.image(w, h, 1));
+      return true;
+    }
+
+    public void tearDown() {
+      pb = null;
+      pix = null;
+    }
+
+    final int x(int i) { return (i * 97) % (pb.width() - w); }
+    final int y(int i) { return (i * 61) % (pb.height() - h); }
+
+    int w, h;
+    ManagedPixelBuffer pb;
+    int[] pix;
+  }
+
+  static class FillRect extends PixelBufferBench {
+    FillRect() { super("pb.fillRect"); }
+
+    public void run() {
+      for (int i = 0; i < reps; i++)
+        pb.fillRect(x(i), y(i), w, h, pix[i % pix.length]);
+    }
+  }
+
+  static class ImageRect extends PixelBufferBench {
+    ImageRect() { super("pb.imageRect"); }
+
+    public void run() {
+      for (int i = 0; i < reps; i++)
+        pb.imageRect(x(i), y(i), w, h, pix);
+    }
+  }
+
+  static class CopyRect extends PixelBufferBench {
+    CopyRect() { super("pb.copyRect"); }
+
+    public void run() {
+      for (int i = 0; i < reps; i++)
+        pb.copyRect(x(i) + (i & 1), y(i) + (i & 1), w, h,
+                    x(i) + 1 - (i & 1), y(i) + 1 - (i & 1));
+    }
+  }
+
+  // Scroll moves the rect up by 16 rows, so the source and destination
+  // overlap like they do when scrolling a window.  h includes the 16 rows
+  // so that the source stays inside the buffer.
+
+  static class Scroll extends PixelBufferBench {
+    Scroll() { super("pb.scroll"); }
+
+    public boolean setUp(int w_, int h_, PixelFormat pf) {
+      return super.setUp(w_, h_ + 16, pf);
+    }
+
+    public void run() {
+      for (int i = 0; i < reps; i++)
+        pb.copyRect(x(i), y(i), w, h - 16, x(i), y(i) + 16);
+    }
+  }
+
+  // The Graphics benchmarks do the same with Graphics2D on an int RGB
+  // image, which is how BIPixelBuffer used to fill and copy rects.
+
+  abstract static class GraphicsBench extends PixelBufferBench {
+    GraphicsBench(String name) { super(name); }
+
+    public boolean setUp(int w_, int h_, PixelFormat pf) {
+      super.setUp(w_, h_, pf);
+      image = new BufferedImage(pb.width(), pb.height(),
+                                BufferedImage.TYPE_INT_RGB);
+      PixelConverter converter =
+        PixelConverter.create(pf, BenchData.format("rgb888"));
+      for (int i = 0; i < pix.length; i++)
+        pix[i] = converter.convert(pix[i]);
+      return true;
+    }
+
+    public void tearDown() {
+      super.tearDown();
+      image = null;
+    }
+
+    BufferedImage image;
+  }
+
+  static class GraphicsFillRect extends GraphicsBench {
+    GraphicsFillRect() { super("g2d.fillRect"); }
+
+    public void run() {
+      for (int i = 0; i < reps; i++) {
+        Graphics2D graphics = (Graphics2D)image.getGraphics();
+        graphics.setColor(new Color(pix[i % pix.length]));
+        graphics.fillRect(x(i), y(i), w, h);
+        graphics.dispose();
+      }
+    }
+  }
+
+  static class GraphicsCopyRect extends GraphicsBench {
+    GraphicsCopyRect() { super("g2d.copyRect"); }
+
+    public void run() {
+      for (int i = 0; i < reps; i++) {
+        int srcX = x(i) + 1 - (i & 1), srcY = y(i) + 1 - (i & 1);
+        Graphics2D graphics = (Graphics2D)image.getGraphics();
+        graphics.copyArea(srcX, srcY, w, h, (i & 1) * 2 - 1, (i & 1) * 2 - 1);
+        graphics.dispose();
+      }
+    }
+  }
+
+  static class GraphicsScroll extends GraphicsBench {
+    GraphicsScroll() { super("g2d.scroll"); }
+
+    public boolean setUp(int w_, int h_, PixelFormat pf) {
+      return super.setUp(w_, h_ + 16, pf);
+    }
+
+    public void run() {
+      for (int i = 0; i < reps; i++) {
+        Graphics2D graphics = (Graphics2D)image.getGraphics();
+        graphics.copyArea(x(i), y(i) + 16, w, h - 16, 0, -16);
+        graphics.dispose();
+      }
+    }
+  }
+}
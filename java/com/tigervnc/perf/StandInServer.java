@@ -0,0 +1,486 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// StandInServer - a minimal VNC server for trying out LoadGen without a
+// real one.
+//
+// Usage: java com.tigervnc.perf.StandInServer [-port N] [-size WxH]
+//                                             [-rate fps] [-encoding name]
+//                                             [-password pw] [-fragment]
+//
+// The desktop is a synthetic image with a box moving across it, which
+// changes -rate times a second.  Every client sees the same desktop.  An
+// incremental update request is answered once the desktop has changed
+// since the last update that client was sent, with the parts that
+// changed.  The rects are encoded with BenchData, in the first encoding
+// the client asks for out of raw, RRE, hextile, TRLE and ZRLE, or the one
+// given with -encoding.  Only protocol 3.8 is spoken, with no security
+// or, given -password, VNC authentication.
+//
+// -fragment sends each update in pieces of random sizes, from a single
+// byte up, with short pauses between some of them.  A client then often
+// has only part of a message, which is what SessionEngine has to cope
+// with.  A client that gets out of step with the stream fails with a
+// protocol error, so a LoadGen run with no failed sessions shows that it
+// did.
+//
+
+package com.tigervnc.perf;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import com.tigervnc.network.*;
+import com.tigervnc.rdr.*;
+import com.tigervnc.rfb.*;
+import com.tigervnc.rfb.Exception;
+
+public class StandInServer {
+
+  // How many frames of changes are kept.  A client that is further behind
+  // than this is sent the whole desktop.
+  static final int history = 64;
+
+  static final int[] supportedEncodings = {
+    Encodings.encodingZRLE, Encodings.encodingTRLE, Encodings.encodingHextile,
+    Encodings.encodingRRE, Encodings.encodingRaw
+  };
+
+  public static void main(String[] argv)
+  {
+    int port = 5900;
+    int width = 1024, height = 768;
+    int rate = 30;
+    int encoding = -1;
+    String password = null;
+    boolean fragment = false;
+
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("-port") && i + 1 < argv.length) {
+        port = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-size") && i + 1 < argv.length) {
+        String[] wh = argv[++i].split("x");
+        if (wh.length != 2)
+          usage();
+        width = Integer.parseInt(wh[0]);
+        height = Integer.parseInt(wh[1]);
+      } else if (argv[i].equals("-rate") && i + 1 < argv.length) {
+        rate = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-encoding") && i + 1 < argv.length) {
+        encoding = encodingNum(argv[++i]);
+      } else if (argv[i].equals("-password") && i + 1 < argv.length) {
+        password = argv[++i];
+      } else if (argv[i].equals("-fragment")) {
+        fragment = true;
+      } else {
+        usage();
+      }
+    }
+
+    StandInServer server = new StandInServer(port, width, height, rate,
+                                             encoding, password);
+    server.fragment = fragment;
+    System.out.println("Listening on port "+server.getPort());
+    server.run();
+  }
+
+  static void usage()
+  {
+    System.err.println("usage: java com.tigervnc.perf.StandInServer "+
+                       "[-port N] [-size WxH] [-rate fps] "+
+                       "[-encoding raw|rre|hextile|trle|zrle] "+
+                       "[-password pw] [-fragment]");
+    System.exit(1);
+  }
+
+  static int encodingNum(String name)
+  {
+    int encoding = Encodings.encodingNum(name);
+    for (int i = 0; i < supportedEncodings.length; i++)
+      if (supportedEncodings[i] == encoding)
+        return encoding;
+    throw new Exception("StandInServer: unsupported encoding "+name);
+  }
+
+  // port can be 0 to listen on any free port, see getPort().  An encoding
+  // of -1 lets each client choose.
+
+  public StandInServer(int port, int width_, int height_, int rate_,
+                       int encoding_, String password_)
+  {
+    try {
+      listener = new TcpListener(null, port);
+    } catch (java.lang.Exception e) {
+      throw new Exception("StandInServer: "+e.getMessage());
+    }
+    width = width_;
+    height = height_;
+    rate = Math.max(rate_, 1);
+    encoding = encoding_;
+    password = password_;
+
+    background = BenchData.image(width, height, 1);
+    desktop = new int[width * height];
+    System.arraycopy(background, 0, desktop, 0, desktop.length);
+    box = new Rect(0, 0, Math.max(width / 4, 1), Math.max(height / 4, 1));
+    changes = new Rect[history];
+  }
+
+  public int getPort() { return listener.getMyPort(); }
+
+  // start() runs the server on threads of its own
+  public void start()
+  {
+    Thread t = new Thread("StandInServer") {
+      public void run() { StandInServer.this.run(); }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  // run() accepts connections until the process exits
+  public void run()
+  {
+    Thread frames = new Thread("StandInFrames") {
+      public void run() { runFrames(); }
+    };
+    frames.setDaemon(true);
+    frames.start();
+
+    listener.setBlocking(true);
+    while (true) {
+      TcpSocket sock = listener.accept();
+      if (sock != null)
+        new ClientThread(sock, nClients++).start();
+    }
+  }
+
+  // runFrames() moves the box every frame, and records the rect that
+  // changed: where the box was and where it is now.
+
+  private void runFrames()
+  {
+    int dx = Math.max(width / 64, 1), dy = Math.max(height / 48, 1);
+    long interval = 1000000000L / rate;
+    long next = System.nanoTime();
+
+    while (true) {
+      next += interval;
+      long wait = next - System.nanoTime();
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+        } catch (InterruptedException e) { }
+      }
+
+      synchronized (this) {
+        Rect old = box;
+        int x = old.tl.x + dx, y = old.tl.y + dy;
+        if (x < 0 || x + old.width() > width) {
+          dx = -dx;
+          x = old.tl.x + dx;
+        }
+        if (y < 0 || y + old.height() > height) {
+          dy = -dy;
+          y = old.tl.y + dy;
+        }
+        box = new Rect(x, y, x + old.width(), y + old.height());
+
+        for (int row = old.tl.y; row < old.br.y; row++)
+          System.arraycopy(background, row * width + old.tl.x,
+                           desktop, row * width + old.tl.x, old.width());
+        int[] content = BenchData.image(box.width(), box.height(),
+                                        frame + 2);
+        for (int row = 0; row < box.height(); row++)
+          System.arraycopy(content, row * box.width(), desktop,
+                           (box.tl.y + row) * width + box.tl.x,
+                           box.width());
+
+        frame++;
+        changes[(int)(frame % history)] = old.union_boundary(box);
+        notifyAll();
+      }
+    }
+  }
+
+  // waitForChanges() waits until the desktop has moved on from frame
+  // since, and returns what has changed.  The current frame is put in
+  // frameOut[0].
+
+  synchronized Region waitForChanges(long since, long[] frameOut)
+  {
+    while (frame == since) {
+      try {
+        wait();
+      } catch (InterruptedException e) { }
+    }
+
+    Region changed = new Region();
+    if (since < 0 || frame - since >= history) {
+      changed.reset(new Rect(0, 0, width, height));
+    } else {
+      for (long f = since + 1; f <= frame; f++)
+        changed.assign_union(new Region(changes[(int)(f % history)]));
+    }
+    frameOut[0] = frame;
+    return changed;
+  }
+
+  // getPixels() copies the 0xRRGGBB values of r
+  synchronized int[] getPixels(Rect r)
+  {
+    int w = r.width(), h = r.height();
+    int[] rgb = new int[w * h];
+    for (int y = 0; y < h; y++)
+      System.arraycopy(desktop, (r.tl.y + y) * width + r.tl.x,
+                       rgb, y * w, w);
+    return rgb;
+  }
+
+  synchronized long currentFrame() { return frame; }
+
+  class ClientThread extends Thread {
+    ClientThread(TcpSocket sock_, int id_) {
+      super("StandInClient-"+id_);
+      sock = sock_;
+      id = id_;
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      try {
+        ((SocketDescriptor)sock.getFd()).setBlocking(true);
+        is = sock.inStream();
+        os = sock.outStream();
+        handshake();
+        while (true)
+          processMsg();
+      } catch (EndOfStream e) {
+        // Client has gone
+      } catch (java.lang.Exception e) {
+        vlog.info("Client "+id+" disconnected: "+e.getMessage());
+      } finally {
+        try {
+          sock.shutdown();
+          sock.close();
+        } catch (java.lang.Exception e) { }
+        if (deflater != null)
+          deflater.end();
+      }
+    }
+
+    private void handshake()
+    {
+      byte[] version = "RFB 003.008\n".getBytes();
+      os.writeBytes(version, 0, version.length);
+      os.flush();
+      is.readBytes(version, 0, version.length);
+
+      int secType = (password != null) ? Security.secTypeVncAuth
+                                       : Security.secTypeNone;
+      os.writeU8(1);
+      os.writeU8(secType);
+      os.flush();
+      if (is.readU8() != secType)
+        throw new Exception("client chose another security type");
+
+      if (secType == Security.secTypeVncAuth && !vncAuth()) {
+        os.writeU32(Security.secResultFailed);
+        os.writeString("Authentication failure");
+        os.flush();
+        throw new Exception("authentication failed");
+      }
+      os.writeU32(Security.secResultOK);
+      os.flush();
+
+      is.readU8();
+      os.writeU16(width);
+      os.writeU16(height);
+      serverPF.write(os);
+      os.writeString("StandInServer");
+      os.flush();
+      pf = serverPF;
+    }
+
+    private boolean vncAuth()
+    {
+      byte[] challenge = new byte[16];
+      new Random().nextBytes(challenge);
+      os.writeBytes(challenge, 0, challenge.length);
+      os.flush();
+
+      byte[] response = new byte[16];
+      is.readBytes(response, 0, response.length);
+
+      byte[] key = new byte[8];
+      byte[] utf8 = password.getBytes();
+      for (int i = 0; i < 8; i++)
+        key[i] = (i < utf8.length) ? utf8[i] : 0;
+      DesCipher des = new DesCipher(key);
+      for (int i = 0; i < challenge.length; i += 8)
+        des.encrypt(challenge, i, challenge, i);
+      return java.util.Arrays.equals(challenge, response);
+    }
+
+    private void processMsg()
+    {
+      int type = is.readU8();
+      switch (type) {
+      case MsgTypes.msgTypeSetPixelFormat:
+        is.skip(3);
+        pf = new PixelFormat();
+        pf.read(is);
+        if (!pf.trueColour)
+          throw new Exception("colour map formats are not supported");
+        break;
+      case MsgTypes.msgTypeSetEncodings:
+        is.skip(1);
+        int n = is.readU16();
+        clientEncoding = -1;
+        for (int i = 0; i < n; i++) {
+          int e = is.readS32();
+          for (int j = 0; j < supportedEncodings.length; j++)
+            if (clientEncoding == -1 && e == supportedEncodings[j])
+              clientEncoding = e;
+        }
+        break;
+      case MsgTypes.msgTypeFramebufferUpdateRequest:
+        boolean incremental = (is.readU8() != 0);
+        is.skip(8);
+        sendUpdate(incremental ? lastFrame : -1);
+        break;
+      case MsgTypes.msgTypeKeyEvent:
+        is.skip(7);
+        break;
+      case MsgTypes.msgTypePointerEvent:
+        is.skip(5);
+        break;
+      case MsgTypes.msgTypeClientCutText:
+        is.skip(3);
+        is.skip(is.readU32());
+        break;
+      default:
+        throw new Exception("unexpected message type "+type);
+      }
+    }
+
+    private void sendUpdate(long since)
+    {
+      long[] current = new long[1];
+      Region changed = waitForChanges(since, current);
+      lastFrame = current[0];
+
+      ArrayList<Rect> rects = new ArrayList<Rect>();
+      changed.get_rects(rects);
+
+      int enc = encoding;
+      if (enc == -1)
+        enc = (clientEncoding != -1) ? clientEncoding : Encodings.encodingRaw;
+
+      OutStream out = fragment ? new MemOutStream() : os;
+      out.writeU8(MsgTypes.msgTypeFramebufferUpdate);
+      out.pad(1);
+      out.writeU16(rects.size());
+      for (int i = 0; i < rects.size(); i++) {
+        Rect r = rects.get(i);
+        byte[] data = encode(r, enc);
+        out.writeU16(r.tl.x);
+        out.writeU16(r.tl.y);
+        out.writeU16(r.width());
+        out.writeU16(r.height());
+        out.writeS32(enc);
+        out.writeBytes(data, 0, data.length);
+      }
+      if (fragment)
+        writeFragmented((MemOutStream)out);
+      else
+        os.flush();
+    }
+
+    private void writeFragmented(MemOutStream mos)
+    {
+      byte[] data = mos.data();
+      int length = mos.length();
+      int pos = 0;
+      while (pos < length) {
+        int max = random.nextBoolean() ? 16 : 20000;
+        int n = Math.min(length - pos, 1 + random.nextInt(max));
+        os.writeBytes(data, pos, n);
+        os.flush();
+        pos += n;
+        if (random.nextInt(4) == 0) {
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) { }
+        }
+      }
+    }
+
+    private byte[] encode(Rect r, int enc)
+    {
+      int w = r.width(), h = r.height();
+      int[] rgb = getPixels(r);
+      switch (enc) {
+      case Encodings.encodingRRE:
+        return BenchData.rre(pf, w, h, rgb, 1);
+      case Encodings.encodingHextile:
+        return BenchData.hextile(pf, w, h, rgb, 1);
+      case Encodings.encodingTRLE:
+        return BenchData.trle(pf, w, h, rgb, 0, 1);
+      case Encodings.encodingZRLE:
+        if (deflater == null)
+          deflater = new Deflater(Deflater.BEST_SPEED);
+        return BenchData.zrle(pf, w, h, rgb, 0, 1, deflater);
+      default:
+        return BenchData.pixelBytes(pf, BenchData.pixels(pf, rgb));
+      }
+    }
+
+    private final TcpSocket sock;
+    private final int id;
+    private InStream is;
+    private OutStream os;
+    private PixelFormat pf;
+    private int clientEncoding = -1;
+    private long lastFrame = -1;
+    private Deflater deflater;
+    private Random random = new Random();
+  }
+
+  static final PixelFormat serverPF = BenchData.format("rgb888");
+
+  private final TcpListener listener;
+  private final int width, height;
+  private final int rate;
+  private final int encoding;
+  private final String password;
+  public boolean fragment;
+  private int nClients;
+
+  // Guarded by this
+  private final int[] background;
+  private final int[] desktop;
+  private Rect box;
+  private long frame;
+  private final Rect[] changes;
+
+  static LogWriter vlog = new LogWriter("StandInServer");
+}
@@ -115,6 +115,14 @@ public class FdInStream extends InStream {
 
   public final long timeWaited() { return timeWaitedIn100us; }
 
+  // bytesTimed() and nanosWaited() are running totals of the data read and
+  // the time spent waiting for it while timing.  Unlike kbitsPerSecond()
+  // they aren't limited or smoothed, so they can tell a fast LAN from a
+  // merely decent one.
+
+  public final long bytesTimed() { return bytesTimed; }
+  public final long nanosWaited() { return nanosWaited; }
+
   protected int overrun(int itemSize, int nItems, boolean wait)
   {
     if (itemSize > bufSize)
@@ -161,9 +169,9 @@ public class FdInStream extends InStream {
         Integer tv;
 
         if (!wait) {
-          tv = new Integer(0);
+          tv = Integer.valueOf(0);
         } else if (timeoutms != -1) {
-          tv = new Integer(timeoutms);
+          tv = Integer.valueOf(timeoutms);
         } else {
           tv = null;
         }
@@ -206,6 +214,11 @@ public class FdInStream extends InStream {
 
       timeWaitedIn100us += newTimeWaited;
       timedKbits += newKbits;
+
+      // The same without the limits, for callers that want to know how
+      // fast the network really is
+      bytesTimed += n;
+      nanosWaited += after - before;
     }
 
     return n;
@@ -237,4 +250,6 @@ public class FdInStream extends InStream {
   protected boolean timing;
   protected long timeWaitedIn100us;
   protected long timedKbits;
+  protected long bytesTimed;
+  protected long nanosWaited;
 }
@@ -23,6 +23,11 @@
 
 package com.tigervnc.rdr;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
 import com.tigervnc.network.*;
 
 abstract public class InStream {
@@ -121,30 +126,147 @@ abstract public class InStream {
                                      int b1 = b[ptr++]; int b2 = b[ptr++];
                                      return b0 << 16 | b1 << 8 | b2; }
 
-  public final int readPixel(int bytesPerPixel, boolean bigEndian) {
-    byte[] pix = new byte[4];
-    readBytes(pix, 0, bytesPerPixel);
+  // readPixel() and readPixels() read pixels of 1 to 4 bytes in the given
+  // byte order.  The pixel values are returned with the top byte set, as
+  // they are usually handed on to an ARGB DirectColorModel.  The data is
+  // taken straight out of the buffer, so nothing is allocated.
 
-    if (bigEndian) {
-      return 0xff000000 | (pix[0] & 0xff)<<16 | (pix[1] & 0xff)<<8 | (pix[2] & 0xff);
-    } else {
-      return 0xff000000 | (pix[2] & 0xff)<<16 | (pix[1] & 0xff)<<8 | (pix[0] & 0xff);
+  public final int readPixel(int bytesPerPixel, boolean bigEndian) {
+    check(bytesPerPixel);
+    int p = ptr;
+    ptr += bytesPerPixel;
+
+    switch (bytesPerPixel) {
+    case 1:
+      return 0xff000000 | (b[p] & 0xff);
+    case 2:
+      if (bigEndian)
+        return 0xff000000 | (b[p] & 0xff)<<8 | (b[p+1] & 0xff);
+      return 0xff000000 | (b[p+1] & 0xff)<<8 | (b[p] & 0xff);
+    case 3:
+      if (bigEndian)
+        return 0xff000000 | (b[p] & 0xff)<<16 | (b[p+1] & 0xff)<<8 |
+               (b[p+2] & 0xff);
+      return 0xff000000 | (b[p+2] & 0xff)<<16 | (b[p+1] & 0xff)<<8 |
+             (b[p] & 0xff);
+    case 4:
+      if (bigEndian)
+        return 0xff000000 | (b[p+1] & 0xff)<<16 | (b[p+2] & 0xff)<<8 |
+               (b[p+3] & 0xff);
+      return 0xff000000 | (b[p+2] & 0xff)<<16 | (b[p+1] & 0xff)<<8 |
+             (b[p] & 0xff);
     }
+    throw new Exception("InStream: invalid pixel size "+bytesPerPixel);
   }
 
-  public final void readPixels(int[] buf, int length, int bytesPerPixel, boolean bigEndian) {
-    int npixels = length*bytesPerPixel;
-    byte[] pixels = new byte[npixels];
-    readBytes(pixels, 0, npixels);
-    for (int i = 0; i < length; i++) {
-      byte[] pix = new byte[4];
-      System.arraycopy(pixels, i*bytesPerPixel, pix, 0, bytesPerPixel);
-      if (bigEndian) {
-        buf[i] = 0xff000000 | (pix[0] & 0xff)<<16 | (pix[1] & 0xff)<<8 | (pix[2] & 0xff);
-      } else {
-        buf[i] = 0xff000000 | (pix[2] & 0xff)<<16 | (pix[1] & 0xff)<<8 | (pix[0] & 0xff);
+  public final void readPixels(int[] buf, int length, int bytesPerPixel,
+                               boolean bigEndian) {
+    readPixels(buf, 0, length, bytesPerPixel, bigEndian);
+  }
+
+  public final void readPixels(int[] buf, int bufPtr, int length,
+                               int bytesPerPixel, boolean bigEndian) {
+    if (bytesPerPixel < 1 || bytesPerPixel > 4)
+      throw new Exception("InStream: invalid pixel size "+bytesPerPixel);
+
+    int bufEnd = bufPtr + length;
+    while (bufPtr < bufEnd) {
+      int n = check(bytesPerPixel, bufEnd - bufPtr);
+      int i = bufPtr;
+      int iEnd = bufPtr + n;
+      int p = ptr;
+
+      switch (bytesPerPixel) {
+      case 1:
+        while (i < iEnd)
+          buf[i++] = 0xff000000 | (b[p++] & 0xff);
+        break;
+      case 2:
+        if (bigEndian) {
+          for (; i < iEnd; i++, p += 2)
+            buf[i] = 0xff000000 | (b[p] & 0xff)<<8 | (b[p+1] & 0xff);
+        } else {
+          for (; i < iEnd; i++, p += 2)
+            buf[i] = 0xff000000 | (b[p+1] & 0xff)<<8 | (b[p] & 0xff);
+        }
+        break;
+      case 3:
+        if (bigEndian) {
+          for (; i < iEnd; i++, p += 3)
+            buf[i] = 0xff000000 | (b[p] & 0xff)<<16 | (b[p+1] & 0xff)<<8 |
+                     (b[p+2] & 0xff);
+        } else {
+          for (; i < iEnd; i++, p += 3)
+            buf[i] = 0xff000000 | (b[p+2] & 0xff)<<16 | (b[p+1] & 0xff)<<8 |
+                     (b[p] & 0xff);
+        }
+        break;
+      case 4:
+        if (n >= bulkPixels) {
+          readPixels32(buf, i, n, p, bigEndian);
+          p += n * 4;
+          break;
+        }
+        if (bigEndian) {
+          for (; i < iEnd; i++, p += 4)
+            buf[i] = 0xff000000 | (b[p+1] & 0xff)<<16 | (b[p+2] & 0xff)<<8 |
+                     (b[p+3] & 0xff);
+        } else {
+          for (; i < iEnd; i++, p += 4)
+            buf[i] = 0xff000000 | (b[p+2] & 0xff)<<16 | (b[p+1] & 0xff)<<8 |
+                     (b[p] & 0xff);
+        }
+        break;
       }
+
+      ptr = p;
+      bufPtr = iEnd;
+    }
+  }
+
+  // 32bpp pixels are the most common, and long runs of them are copied in
+  // bulk through an IntBuffer view of the buffer and then have the top
+  // byte set.  A view can only start at a multiple of 4 bytes from where
+  // it was made, so there is one for each alignment and byte order.  They
+  // are kept until the buffer changes, so that reading allocates nothing.
+
+  static final int bulkPixels = 64;
+
+  private void readPixels32(int[] buf, int bufPtr, int n, int p,
+                            boolean bigEndian) {
+    if (pixelViewArray != b) {
+      if (pixelViews == null)
+        pixelViews = new IntBuffer[8];
+      else
+        Arrays.fill(pixelViews, null);
+      pixelViewArray = b;
     }
+    int align = p & 3;
+    int v = (bigEndian ? 4 : 0) + align;
+    IntBuffer view = pixelViews[v];
+    if (view == null) {
+      ByteBuffer bytes = ByteBuffer.wrap(b, align, b.length - align).slice();
+      bytes.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+      view = bytes.asIntBuffer();
+      pixelViews[v] = view;
+    }
+    view.position((p - align) / 4);
+    view.get(buf, bufPtr, n);
+    int end = bufPtr + n;
+    for (int i = bufPtr; i < end; i++)
+      buf[i] |= 0xff000000;
+  }
+
+  // setBuffer() replaces b and lets go of the views readPixels32() made of
+  // the old one, so that a buffer which grew for a large message isn't
+  // kept alive by them.  Subclasses should use it whenever they swap b.
+
+  protected final void setBuffer(byte[] b_) {
+    if (b_ == b) return;
+    b = b_;
+    pixelViewArray = null;
+    if (pixelViews != null)
+      Arrays.fill(pixelViews, null);
   }
 
   public final int readCompactLength() {
@@ -191,4 +313,7 @@ abstract public class InStream {
   protected byte[] b;
   protected int ptr;
   protected int end;
+
+  private byte[] pixelViewArray;
+  private IntBuffer[] pixelViews;
 }
@@ -0,0 +1,155 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// NonBlockingInStream - an InStream for a connection that something else,
+// such as a selector thread, reads from and hands over with readFrom().
+// When a read needs more data than has arrived so far, WouldBlock is
+// thrown instead of waiting for it.  The caller can then rewind() to the
+// last mark() and try again once more data is in.  This way a message can
+// be parsed by code written for a blocking stream, as long as that code
+// doesn't act on the message until it has read all of it.
+//
+// Everything from the mark onwards is kept, so the buffer grows to hold the
+// largest message.  readFrom() may be called on one thread while another
+// reads the stream.
+//
+
+package com.tigervnc.rdr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+public class NonBlockingInStream extends InStream {
+
+  static final int DEFAULT_BUF_SIZE = 16384;
+
+  public NonBlockingInStream(int bufSize_)
+  {
+    bufSize = ((bufSize_ > 0) ? bufSize_ : DEFAULT_BUF_SIZE);
+    b = new byte[bufSize];
+    incoming = ByteBuffer.allocate(bufSize);
+    ptr = end = offset = markPtr = 0;
+    wanted = 1;
+  }
+
+  public NonBlockingInStream() { this(0); }
+
+  // readFrom() reads whatever the channel has, without blocking.  It
+  // returns the number of bytes read, which is 0 if there is no room for
+  // more until the stream has been read, or -1 at the end of the stream.
+
+  public synchronized int readFrom(ReadableByteChannel channel)
+    throws IOException
+  {
+    if (eof)
+      return -1;
+    if (!incoming.hasRemaining())
+      return 0;
+    int n = channel.read(incoming);
+    if (n < 0)
+      eof = true;
+    return n;
+  }
+
+  // isFull() is true if readFrom() can't take any more data, either until
+  // the stream has been read or because the end of it has been reached.
+
+  public synchronized boolean isFull() {
+    return eof || !incoming.hasRemaining();
+  }
+
+  // isReady() is true if enough data has arrived to get further than the
+  // last read that had to give up, or if readFrom() needs the data it has
+  // taken to be read before it can take any more.  Reads always need the
+  // same data the next time round, so there's no point trying again before
+  // then.  This assumes that a read which asks for nItems goes on to read
+  // all of them, as the reads in InStream do.
+
+  public synchronized boolean isReady() {
+    return (isFull() || (end - markPtr) + incoming.position() >= wanted);
+  }
+
+  // mark() remembers the current position as the one to rewind() to.
+  // Data before it is no longer needed.
+
+  public final synchronized void mark() {
+    markPtr = ptr;
+    wanted = 1;
+  }
+
+  public final void rewind() {
+    ptr = markPtr;
+  }
+
+  public final int pos() { return offset + ptr; }
+
+  protected synchronized int overrun(int itemSize, int nItems, boolean wait)
+  {
+    if (markPtr > 0) {
+      // Let go of a buffer that grew to hold a large message once it has
+      // been read
+      byte[] buf = b;
+      if (b.length > bufSize * 4 && end - markPtr <= bufSize)
+        buf = new byte[bufSize];
+      System.arraycopy(b, markPtr, buf, 0, end - markPtr);
+      setBuffer(buf);
+      offset += markPtr;
+      ptr -= markPtr;
+      end -= markPtr;
+      markPtr = 0;
+    }
+
+    int n = incoming.position();
+    if (n > 0) {
+      if (end + n > b.length) {
+        byte[] buf = new byte[Math.max(b.length * 2, end + n)];
+        System.arraycopy(b, 0, buf, 0, end);
+        setBuffer(buf);
+      }
+      incoming.flip();
+      incoming.get(b, end, n);
+      incoming.clear();
+      end += n;
+    }
+
+    if (ptr + itemSize > end) {
+      wanted = ptr + itemSize * (wait ? nItems : 1);
+      if (eof)
+        throw new EndOfStream();
+      if (!wait)
+        return 0;
+      throw new WouldBlock();
+    }
+
+    if (itemSize * nItems > end - ptr)
+      nItems = (end - ptr) / itemSize;
+
+    return nItems;
+  }
+
+  private int bufSize;
+  private int offset;
+  private int markPtr;
+  private ByteBuffer incoming;
+  private boolean eof;
+
+  // How many bytes from the mark the last read that gave up needed
+  private int wanted;
+}
@@ -0,0 +1,121 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// NonBlockingOutStream - an OutStream for a non-blocking channel.  flush()
+// sends as much as the channel will take straight away and keeps the rest,
+// which send() carries on with once the channel has room, e.g. when a
+// selector says that it is writable.  Writing never blocks, but only so
+// much data may be waiting, so that a peer which stops reading can't use up
+// all the memory.
+//
+// As with the other streams, only one thread may write to the stream at a
+// time.  send() may be called on another thread.
+//
+
+package com.tigervnc.rdr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public class NonBlockingOutStream extends OutStream {
+
+  static final int DEFAULT_BUF_SIZE = 16384;
+  static final int maxPending = 4 * 1024 * 1024;
+
+  public NonBlockingOutStream(WritableByteChannel channel_, int bufSize_)
+  {
+    channel = channel_;
+    bufSize = ((bufSize_ > 0) ? bufSize_ : DEFAULT_BUF_SIZE);
+    b = new byte[bufSize];
+    ptr = sentUpTo = flushed = offset = 0;
+    end = bufSize;
+  }
+
+  public NonBlockingOutStream(WritableByteChannel channel_) {
+    this(channel_, 0);
+  }
+
+  // length() is the number of bytes written to the stream so far
+  public int length() { return offset + ptr; }
+
+  public void flush()
+  {
+    synchronized (this) {
+      flushed = ptr;
+      send();
+      if (sentUpTo == ptr) {
+        offset += ptr;
+        ptr = sentUpTo = flushed = 0;
+      }
+    }
+  }
+
+  // hasPending() is true if there is flushed data which hasn't been sent
+  public synchronized boolean hasPending() { return sentUpTo < flushed; }
+
+  // send() sends as much of the flushed data as the channel will take.  It
+  // returns true if all of it has gone.
+
+  public synchronized boolean send()
+  {
+    if (sentUpTo < flushed) {
+      try {
+        sentUpTo += channel.write(ByteBuffer.wrap(b, sentUpTo,
+                                                  flushed - sentUpTo));
+      } catch (IOException e) {
+        throw new SystemException("write:"+e.toString());
+      }
+    }
+    return sentUpTo == flushed;
+  }
+
+  protected synchronized int overrun(int itemSize, int nItems)
+  {
+    // Move what is still to be sent to the start of the buffer first
+    if (sentUpTo > 0) {
+      System.arraycopy(b, sentUpTo, b, 0, ptr - sentUpTo);
+      offset += sentUpTo;
+      ptr -= sentUpTo;
+      flushed -= sentUpTo;
+      sentUpTo = 0;
+    }
+
+    if (ptr + itemSize > end) {
+      if (ptr >= maxPending)
+        throw new Exception("NonBlockingOutStream: too much data waiting "+
+                            "to be sent");
+      byte[] buf = new byte[Math.max(end * 2, ptr + itemSize)];
+      System.arraycopy(b, 0, buf, 0, ptr);
+      b = buf;
+      end = b.length;
+    }
+
+    if (itemSize * nItems > end - ptr)
+      nItems = (end - ptr) / itemSize;
+
+    return nItems;
+  }
+
+  private WritableByteChannel channel;
+  private int bufSize;
+  private int sentUpTo;
+  private int flushed;
+  private int offset;
+}
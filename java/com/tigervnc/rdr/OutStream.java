@@ -116,6 +116,18 @@ abstract public class OutStream {
     }
   }
 
+  // copyBytes() transfers an exact number of bytes from an InStream
+  // directly into this stream's buffer.
+
+  public void copyBytes(InStream is, int length) {
+    while (length > 0) {
+      int n = check(1, length);
+      is.readBytes(b, ptr, n);
+      ptr += n;
+      length -= n;
+    }
+  }
+
   // writeOpaqueN() writes a quantity without byte-swapping.  Because java has
   // no byte-ordering, we just use big-endian.
 
@@ -0,0 +1,213 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// PipelinedZlibInStream reads the same data as a ZlibInStream, but the
+// inflating is done by a thread of its own.  That thread decompresses into
+// a small pool of chunks which are handed over through an SpscQueue, so the
+// thread reading this stream only has to parse the data.
+//
+// The ZlibInStream is shared with whoever else uses it, so the zlib stream
+// carries on unchanged whichever of the two is used for a given piece of
+// compressed data.
+//
+
+package com.tigervnc.rdr;
+
+public class PipelinedZlibInStream extends InStream implements Runnable {
+
+  static final int chunkSize = 65536;
+  static final int nChunks = 8;
+
+  // Room in front of each chunk's data, so that an item split between two
+  // chunks can be joined up without copying the whole chunk
+  static final int maxItemSize = 1024;
+
+  static final byte[] empty = new byte[0];
+
+  static final class Chunk {
+    byte[] data = new byte[maxItemSize + chunkSize];
+    int len;
+    boolean last;
+    RuntimeException error;
+  }
+
+  public PipelinedZlibInStream(ZlibInStream zis_)
+  {
+    zis = zis_;
+    full = new SpscQueue<Chunk>(nChunks);
+    free = new SpscQueue<Chunk>(nChunks);
+    jobs = new SpscQueue<ZlibInStream>(1);
+    for (int i = 0; i < nChunks; i++)
+      free.offer(new Chunk());
+    b = empty;
+    ptr = end = offset = 0;
+    done = true;
+  }
+
+  // setUnderlying() starts inflating the next length bytes of is.  Nothing
+  // else may touch is until reset() has been called.
+
+  public void setUnderlying(InStream is, int length)
+  {
+    if (thread == null) {
+      thread = new Thread(this, "Inflate");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    zis.setUnderlying(is, length);
+    setBuffer(empty);
+    ptr = end = offset = 0;
+    done = false;
+    jobs.put(zis);
+  }
+
+  // reset() skips whatever hasn't been read and waits until the inflate
+  // thread has finished with the underlying stream.
+
+  public void reset()
+  {
+    RuntimeException error = null;
+    while (!done) {
+      Chunk c = full.take();
+      if (c == null)
+        throw new Exception("PipelinedZlibInStream: closed");
+      done = c.last;
+      if (c.error != null)
+        error = c.error;
+      free.put(c);
+    }
+    if (current != null) {
+      free.put(current);
+      current = null;
+    }
+    setBuffer(empty);
+    ptr = end = 0;
+    zis.reset();
+
+    if (error != null)
+      throw error;
+  }
+
+  // close() stops the inflate thread.  The stream can't be used after this.
+
+  public void close()
+  {
+    jobs.close();
+    full.close();
+    free.close();
+  }
+
+  public int pos()
+  {
+    return offset + ptr;
+  }
+
+  protected int overrun(int itemSize, int nItems, boolean wait)
+  {
+    if (itemSize > maxItemSize)
+      throw new Exception("PipelinedZlibInStream overrun: max itemSize exceeded");
+
+    while (end - ptr < itemSize) {
+      if (done)
+        throw new Exception("PipelinedZlibInStream: end of compressed data");
+
+      Chunk next = full.take();
+      if (next == null)
+        throw new Exception("PipelinedZlibInStream: closed");
+
+      int left = end - ptr;
+      int start = maxItemSize - left;
+      if (left > 0)
+        System.arraycopy(b, ptr, next.data, start, left);
+      offset += ptr - start;
+
+      if (current != null)
+        free.put(current);
+      current = next;
+
+      done = next.last;
+      if (next.error != null)
+        throw next.error;
+
+      setBuffer(next.data);
+      ptr = start;
+      end = maxItemSize + next.len;
+    }
+
+    if (itemSize * nItems > end - ptr)
+      nItems = (end - ptr) / itemSize;
+
+    return nItems;
+  }
+
+  // run() is the inflate thread.  It inflates one lot of compressed data
+  // for each setUnderlying(), until the stream is closed.
+
+  public void run()
+  {
+    while (true) {
+      ZlibInStream z = jobs.take();
+      if (z == null)
+        return;
+
+      Chunk c = null;
+      try {
+        do {
+          c = free.take();
+          if (c == null)
+            return;
+          c.len = 0;
+          c.last = false;
+          c.error = null;
+          while (c.len < chunkSize) {
+            int n = z.readAvailable(c.data, maxItemSize + c.len,
+                                    chunkSize - c.len);
+            if (n < 0) {
+              c.last = true;
+              break;
+            }
+            c.len += n;
+          }
+          Chunk ready = c;
+          c = null;
+          full.put(ready);
+          if (ready.last)
+            break;
+        } while (true);
+      } catch (RuntimeException e) {
+        // Handed to the reader, which throws it when it gets this far
+        c.error = e;
+        c.last = true;
+        full.put(c);
+      }
+    }
+  }
+
+  private ZlibInStream zis;
+  private SpscQueue<Chunk> full;
+  private SpscQueue<Chunk> free;
+  private SpscQueue<ZlibInStream> jobs;
+  private Thread thread;
+
+  // Only used by the reading thread:
+  private Chunk current;
+  private int offset;
+  private boolean done;
+}
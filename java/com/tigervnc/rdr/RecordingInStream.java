@@ -0,0 +1,106 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// A RecordingInStream passes on the data of another InStream and hands a
+// copy of everything read to a StreamRecorder.  It buffers data ahead of
+// the reader, so the underlying stream must not be used directly once it
+// has been wrapped.
+//
+
+package com.tigervnc.rdr;
+
+public class RecordingInStream extends InStream {
+
+  static final int defaultBufSize = 16384;
+  static final int minBulkSize = 1024;
+
+  public RecordingInStream(InStream underlying_, StreamRecorder recorder_,
+                           int bufSize_)
+  {
+    underlying = underlying_;
+    recorder = recorder_;
+    bufSize = ((bufSize_ > 0) ? bufSize_ : defaultBufSize);
+    b = new byte[bufSize];
+    ptr = end = offset = 0;
+  }
+
+  public RecordingInStream(InStream underlying_, StreamRecorder recorder_) {
+    this(underlying_, recorder_, 0);
+  }
+
+  public final void readBytes(byte[] data, int dataPtr, int length) {
+    if (length < minBulkSize) {
+      super.readBytes(data, dataPtr, length);
+      return;
+    }
+
+    int n = end - ptr;
+    if (n > length) n = length;
+
+    System.arraycopy(b, ptr, data, dataPtr, n);
+    dataPtr += n;
+    length -= n;
+    ptr += n;
+
+    // Skip our buffer for the rest
+    while (length > 0) {
+      n = underlying.check(1, length);
+      underlying.readBytes(data, dataPtr, n);
+      recorder.dataReceived(data, dataPtr, n);
+      dataPtr += n;
+      length -= n;
+      offset += n;
+    }
+  }
+
+  public final int pos() { return offset + ptr; }
+
+  public InStream getUnderlying() { return underlying; }
+
+  protected int overrun(int itemSize, int nItems, boolean wait)
+  {
+    if (itemSize > bufSize)
+      throw new Exception("RecordingInStream overrun: max itemSize exceeded");
+
+    if (end - ptr != 0)
+      System.arraycopy(b, ptr, b, 0, end - ptr);
+
+    offset += ptr;
+    end -= ptr;
+    ptr = 0;
+
+    while (end < itemSize) {
+      int n = underlying.check(1, bufSize - end, wait);
+      if (n == 0) return 0;
+      underlying.readBytes(b, end, n);
+      recorder.dataReceived(b, end, n);
+      end += n;
+    }
+
+    if (itemSize * nItems > end - ptr)
+      nItems = (end - ptr) / itemSize;
+
+    return nItems;
+  }
+
+  private InStream underlying;
+  private StreamRecorder recorder;
+  private int bufSize;
+  private int offset;
+}
@@ -0,0 +1,141 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// SpscQueue - a bounded queue for handing items from exactly one producer
+// thread to exactly one consumer thread without taking a lock.
+//
+// Each side only ever writes its own index, so offer() and poll() are a
+// couple of volatile accesses.  put() and take() spin for a short while
+// and then park until the other side has made progress.
+//
+
+package com.tigervnc.rdr;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class SpscQueue<T> {
+
+  // How many times put() and take() retry before parking
+  static final int spins = 100;
+
+  public SpscQueue(int capacity) {
+    int size = 1;
+    while (size < capacity)
+      size <<= 1;
+    items = new Object[size];
+    mask = size - 1;
+  }
+
+  // offer() adds an item to the queue, or returns false if it is full.
+  // Only the producer may call it.
+
+  public boolean offer(T item) {
+    if (item == null)
+      throw new NullPointerException();
+    long t = tail.get();
+    if (t - head.get() == items.length)
+      return false;
+    items[(int)t & mask] = item;
+    tail.set(t + 1);
+    wake(consumer);
+    return true;
+  }
+
+  // poll() removes the oldest item from the queue, or returns null if it
+  // is empty.  Only the consumer may call it.
+
+  @SuppressWarnings("unchecked")
+  public T poll() {
+    long h = head.get();
+    if (h == tail.get())
+      return null;
+    int i = (int)h & mask;
+    T item = (T)items[i];
+    items[i] = null;
+    head.set(h + 1);
+    wake(producer);
+    return item;
+  }
+
+  // put() adds an item, waiting for room if the queue is full.  It returns
+  // false if the queue was closed.
+
+  public boolean put(T item) {
+    for (int i = 0; !offer(item); i++) {
+      if (closed)
+        return false;
+      if (i < spins)
+        continue;
+      producer = Thread.currentThread();
+      if (offer(item)) {
+        producer = null;
+        break;
+      }
+      if (!closed)
+        LockSupport.park(this);
+      producer = null;
+    }
+    return true;
+  }
+
+  // take() removes the oldest item, waiting for one if the queue is empty.
+  // It returns null if the queue was closed and is empty.
+
+  public T take() {
+    T item;
+    for (int i = 0; (item = poll()) == null; i++) {
+      if (closed)
+        return poll();
+      if (i < spins)
+        continue;
+      consumer = Thread.currentThread();
+      item = poll();
+      if (item != null) {
+        consumer = null;
+        break;
+      }
+      if (!closed)
+        LockSupport.park(this);
+      consumer = null;
+    }
+    return item;
+  }
+
+  // close() makes put() and take() stop waiting.
+
+  public void close() {
+    closed = true;
+    wake(producer);
+    wake(consumer);
+  }
+
+  private static void wake(Thread t) {
+    if (t != null)
+      LockSupport.unpark(t);
+  }
+
+  private final Object[] items;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private volatile Thread producer;
+  private volatile Thread consumer;
+  private volatile boolean closed;
+}
@@ -0,0 +1,90 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// VirtualThreads - creates virtual threads when the JVM has them (Java 21
+// or later), and ordinary threads otherwise.  The viewer is built for much
+// older JVMs, so Thread.ofVirtual() is looked up at run time.
+//
+// A virtual thread that blocks in a socket read or write, or waits for a
+// ReentrantLock, is parked and gives up the platform thread it was running
+// on.  One that blocks in Selector.select() or while holding a monitor
+// (synchronized) keeps it, so code run on a virtual thread should use a
+// socket in blocking mode (see SocketDescriptor.setBlocking()) and
+// java.util.concurrent locks.
+//
+
+package com.tigervnc.rdr;
+
+import java.lang.reflect.Method;
+
+public class VirtualThreads {
+
+  static Method ofVirtual;
+  static Method setName;
+  static Method unstarted;
+  static Method isVirtual;
+
+  static {
+    try {
+      Method m = Thread.class.getMethod("ofVirtual");
+      Class<?> cls = Class.forName("java.lang.Thread$Builder");
+      // This fails if virtual threads are only a preview feature that
+      // isn't enabled
+      m.invoke(null);
+      setName = cls.getMethod("name", String.class);
+      unstarted = cls.getMethod("unstarted", Runnable.class);
+      isVirtual = Thread.class.getMethod("isVirtual");
+      ofVirtual = m;
+    } catch (java.lang.Exception e) {
+      // Not supported
+    }
+  }
+
+  public static boolean isSupported() {
+    return ofVirtual != null;
+  }
+
+  // newThread() returns an unstarted virtual thread that runs r, or an
+  // ordinary one if virtual threads aren't supported.
+
+  public static Thread newThread(Runnable r, String name) {
+    if (isSupported()) {
+      try {
+        // Builders aren't thread safe, so each thread gets its own
+        Object builder = ofVirtual.invoke(null);
+        setName.invoke(builder, name);
+        return (Thread)unstarted.invoke(builder, r);
+      } catch (java.lang.Exception e) {
+        // Fall back to an ordinary thread
+      }
+    }
+    return new Thread(r, name);
+  }
+
+  // isVirtual() is true if t is a virtual thread
+  public static boolean isVirtual(Thread t) {
+    if (!isSupported())
+      return false;
+    try {
+      return ((Boolean)isVirtual.invoke(t)).booleanValue();
+    } catch (java.lang.Exception e) {
+      return false;
+    }
+  }
+}
@@ -22,34 +22,31 @@
 //
 
 package com.tigervnc.rdr;
-import com.jcraft.jzlib.*;
 
 public class ZlibInStream extends InStream {
 
   static final int defaultBufSize = 16384;
 
-  public ZlibInStream(int bufSize_)
+  public ZlibInStream(int bufSize_, int inflaterType)
   {
     bufSize = bufSize_;
     b = new byte[bufSize];
     bytesIn = offset = 0;
-    zs = new ZStream();
-    zs.next_in = null;
-    zs.next_in_index = 0;
-    zs.avail_in = 0;
-    if (zs.inflateInit() != JZlib.Z_OK) {
-      zs = null;
-      throw new Exception("ZlinInStream: inflateInit failed");
-    }
+    zs = ZlibInflater.create(inflaterType);
     ptr = end = start = 0;
   }
 
+  public ZlibInStream(int bufSize_)
+  {
+    this(bufSize_, ZlibInflater.getDefaultType());
+  }
+
   public ZlibInStream() { this(defaultBufSize); }
 
   protected void finalize() throws Throwable {
     try {
       b = null;
-      zs.inflateEnd();
+      zs.end();
     } finally {
       super.finalize();
     }
@@ -104,6 +101,31 @@ public class ZlibInStream extends InStream {
     return nItems;
   }
 
+  // readAvailable() reads up to len bytes of what is left of the current
+  // compressed data, without having to know how much it decompresses to.
+  // When nothing is buffered the data is inflated straight into buf.  It
+  // returns the number of bytes read, or -1 once all of the compressed data
+  // has been consumed.
+
+  public int readAvailable(byte[] buf, int off, int len)
+  {
+    if (ptr < end) {
+      int n = Math.min(len, end - ptr);
+      System.arraycopy(b, ptr, buf, off, n);
+      ptr += n;
+      return n;
+    }
+
+    while (bytesIn > 0) {
+      int n = inflate(buf, off, len, true);
+      if (n > 0) {
+        offset += n;
+        return n;
+      }
+    }
+    return -1;
+  }
+
   // decompress() calls the decompressor once.  Note that this won't
   // necessarily generate any output data - it may just consume some input
   // data.  Returns false if wait is false and we would block on the underlying
@@ -111,33 +133,41 @@ public class ZlibInStream extends InStream {
 
   private boolean decompress(boolean wait)
   {
-    zs.next_out = b;
-    zs.next_out_index = end;
-    zs.avail_out = start + bufSize - end;
+    int n = inflate(b, end, start + bufSize - end, wait);
+    if (n < 0) return false;
+    end += n;
+    return true;
+  }
+
+  // inflate() does the work for decompress(), putting the output in buf.
+  // Returns the number of bytes produced, or -1 if we would block.
 
+  private int inflate(byte[] buf, int off, int len, boolean wait)
+  {
     int n = underlying.check(1, 1, wait);
-    if (n == 0) return false;
-    zs.next_in = underlying.getbuf();
-    zs.next_in_index = underlying.getptr();
-    zs.avail_in = underlying.getend() - underlying.getptr();
-    if (zs.avail_in > bytesIn)
-      zs.avail_in = bytesIn;
-
-    int rc = zs.inflate(JZlib.Z_SYNC_FLUSH);
-    if (rc != JZlib.Z_OK) {
+    if (n == 0) return -1;
+    int inPtr = underlying.getptr();
+    int avail = underlying.getend() - inPtr;
+    if (avail > bytesIn)
+      avail = bytesIn;
+
+    zs.setInput(underlying.getbuf(), inPtr, avail);
+    int outBytes = zs.inflate(buf, off, len);
+    int inBytes = avail - zs.getRemaining();
+
+    // Neither input consumed nor output produced means we're stuck
+    if (inBytes == 0 && outBytes == 0)
       throw new Exception("ZlibInStream: inflate failed");
-    }
 
-    bytesIn -= zs.next_in_index - underlying.getptr();
-    end = zs.next_out_index;
-    underlying.setptr(zs.next_in_index);
-    return true;
+    bytesIn -= inBytes;
+    underlying.setptr(inPtr + inBytes);
+    return outBytes;
   }
 
   private InStream underlying;
   private int bufSize;
   private int offset;
-  private com.jcraft.jzlib.ZStream zs;
+  private ZlibInflater zs;
   private int bytesIn;
   private int start;
 }
@@ -0,0 +1,153 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// ZlibInflater is the decompressor behind ZlibInStream.  The JDK's
+// java.util.zip.Inflater (which wraps the native zlib) is used when it is
+// available, otherwise we fall back to the pure Java jzlib.
+//
+
+package com.tigervnc.rdr;
+
+import com.jcraft.jzlib.*;
+
+public abstract class ZlibInflater {
+
+  public static final int NATIVE = 0;
+  public static final int JZLIB = 1;
+
+  // create() returns an inflater of the given type.  If the native one
+  // can't be used then a jzlib inflater is returned instead.
+
+  public static ZlibInflater create(int type)
+  {
+    if (type == NATIVE) {
+      try {
+        return new NativeInflater();
+      } catch (Throwable e) {
+        if (!nativeFailed) {
+          nativeFailed = true;
+          System.err.println("ZlibInflater: native zlib unavailable ("+
+                             e.toString()+"), using jzlib");
+        }
+      }
+    }
+    return new JZlibInflater();
+  }
+
+  public static ZlibInflater create() { return create(defaultType); }
+
+  // setDefaultType() selects the type of inflater used by new
+  // ZlibInStreams.
+
+  public static void setDefaultType(int type) { defaultType = type; }
+  public static int getDefaultType() { return defaultType; }
+
+  // setInput() supplies the next chunk of compressed data.  Any input left
+  // over from the previous call is discarded, so the caller must include it
+  // again.
+
+  public abstract void setInput(byte[] buf, int off, int len);
+
+  // inflate() decompresses as much as possible into buf, flushing all
+  // output that can be produced from the current input.  Returns the number
+  // of bytes written.
+
+  public abstract int inflate(byte[] buf, int off, int len);
+
+  // getRemaining() returns the number of bytes of the current input which
+  // have not been consumed.
+
+  public abstract int getRemaining();
+
+  public abstract void end();
+
+  public abstract String getName();
+
+  static class NativeInflater extends ZlibInflater {
+
+    NativeInflater() { inf = new java.util.zip.Inflater(); }
+
+    public void setInput(byte[] buf, int off, int len) {
+      inf.setInput(buf, off, len);
+    }
+
+    public int inflate(byte[] buf, int off, int len) {
+      try {
+        int n = inf.inflate(buf, off, len);
+        if (n == 0 && inf.needsDictionary())
+          throw new Exception("ZlibInStream: inflate failed");
+        return n;
+      } catch (java.util.zip.DataFormatException e) {
+        throw new Exception("ZlibInStream: inflate failed");
+      }
+    }
+
+    public int getRemaining() { return inf.getRemaining(); }
+
+    public void end() { inf.end(); }
+
+    public String getName() { return "native"; }
+
+    private java.util.zip.Inflater inf;
+  }
+
+  static class JZlibInflater extends ZlibInflater {
+
+    JZlibInflater() {
+      zs = new ZStream();
+      zs.next_in = null;
+      zs.next_in_index = 0;
+      zs.avail_in = 0;
+      if (zs.inflateInit() != JZlib.Z_OK) {
+        zs = null;
+        throw new Exception("ZlinInStream: inflateInit failed");
+      }
+    }
+
+    public void setInput(byte[] buf, int off, int len) {
+      zs.next_in = buf;
+      zs.next_in_index = off;
+      zs.avail_in = len;
+    }
+
+    public int inflate(byte[] buf, int off, int len) {
+      zs.next_out = buf;
+      zs.next_out_index = off;
+      zs.avail_out = len;
+
+      int rc = zs.inflate(JZlib.Z_SYNC_FLUSH);
+      if (rc != JZlib.Z_OK) {
+        throw new Exception("ZlibInStream: inflate failed");
+      }
+
+      return zs.next_out_index - off;
+    }
+
+    public int getRemaining() { return zs.avail_in; }
+
+    public void end() { zs.inflateEnd(); }
+
+    public String getName() { return "jzlib"; }
+
+    private ZStream zs;
+  }
+
+  private static int defaultType = NATIVE;
+  private static boolean nativeFailed;
+}
@@ -25,6 +25,7 @@ import java.util.List;
 
 import com.tigervnc.rdr.InStream;
 import com.tigervnc.rdr.OutStream;
+import com.tigervnc.rdr.RecordingInStream;
 
 abstract public class CConnection extends CMsgHandler implements UserPasswdGetter {
 
@@ -56,7 +57,10 @@ abstract public class CConnection extends CMsgHandler implements UserPasswdGette
   }
 
   // processMsg() should be called whenever there is data to read on the
-  // InStream.  You must have called initialiseProtocol() first.
+  // InStream.  You must have called initialiseProtocol() first.  Each call
+  // does the work of one state and reads everything it needs before acting
+  // on any of it, so that a call which runs out of data can be repeated
+  // from the start (see SessionEngine).
   public void processMsg()
   {
     switch (state_) {
@@ -187,15 +191,12 @@ abstract public class CConnection extends CMsgHandler implements UserPasswdGette
 
     state_ = RFBSTATE_SECURITY;
     csecurity = security.GetCSecurity(secType);
-    processSecurityMsg();
   }
 
   private void processSecurityMsg() {
     vlog.debug("processing security message");
-    if (csecurity.processMsg(this)) {
+    if (csecurity.processMsg(this))
       state_ = RFBSTATE_SECURITY_RESULT;
-      processSecurityResultMsg();
-    }
   }
 
   private void processSecurityResultMsg() {
@@ -243,6 +244,10 @@ abstract public class CConnection extends CMsgHandler implements UserPasswdGette
 
   private void securityCompleted() {
     state_ = RFBSTATE_INITIALISATION;
+    if (recorder != null) {
+      recorder.start(cp);
+      is = new RecordingInStream(is, recorder);
+    }
     reader_ = new CMsgReaderV3(this, is);
     writer_ = new CMsgWriterV3(cp, os);
     vlog.debug("Authentication success!");
@@ -272,6 +277,30 @@ abstract public class CConnection extends CMsgHandler implements UserPasswdGette
     os = os_;
   }
 
+  // setRecorder() makes the connection record everything it receives from
+  // the server once security has been negotiated.  Must be called before
+  // processMsg().
+  public final void setRecorder(SessionRecorder recorder_) {
+    recorder = recorder_;
+  }
+
+  // setServerPF() changes the format that pixel data from the server is
+  // decoded in.  Use this rather than cp.setPF() once the connection is
+  // running, so that a recording can tell where the format changed.
+  public final void setServerPF(PixelFormat pf) {
+    cp.setPF(pf);
+    if (recorder != null)
+      recorder.pixelFormatChanged(pf, is.pos());
+  }
+
+  // stopRecording() finishes writing the recording, if there is one.
+  public final void stopRecording() {
+    if (recorder != null) {
+      recorder.close();
+      recorder = null;
+    }
+  }
+
   // setShared sets the value of the shared flag which will be sent to the
   // server upon initialisation.
   public final void setShared(boolean s) { shared = s; }
@@ -390,6 +419,7 @@ abstract public class CConnection extends CMsgHandler implements UserPasswdGette
   int serverPort;
   boolean useProtocol3_3;
   boolean clientSecTypeOrder;
+  SessionRecorder recorder;
 
   static LogWriter vlog = new LogWriter("CConnection");
 }
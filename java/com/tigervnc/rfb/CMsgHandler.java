@@ -95,6 +95,13 @@ abstract public class CMsgHandler {
   public void imageRect(Rect r, Object pixels) {}
   public void copyRect(Rect r, int srcX, int srcY) {}
 
+  // getBufferRW() and commitBufferRW() let decoders write straight into
+  // the framebuffer, see PixelBuffer.  Handlers which don't support this
+  // return null and get the pixels through imageRect() instead.
+
+  public int[] getBufferRW(Rect r, int[] stride) { return null; }
+  public void commitBufferRW(Rect r) {}
+
   abstract public PixelFormat getPreferredPF();
 
   public ConnParams cp;
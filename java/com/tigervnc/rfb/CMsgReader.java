@@ -32,8 +32,6 @@ abstract public class CMsgReader {
     imageBufIdealSize = 0;
     handler = handler_;
     is = is_;
-    imageBuf = null;
-    imageBufSize = 0;
     decoders = new Decoder[Encodings.encodingMax+1];
   }
 
@@ -95,30 +93,124 @@ abstract public class CMsgReader {
     if (r.is_empty())
       vlog.error("Ignoring zero size rect");
 
+    // Nothing happens until all of the rect's data has been read, so that
+    // a stream which runs out part way through can be rewound
+    InStream data = is;
+    if (decodeManager == null && readWholeRects) {
+      if (rectBuffer == null)
+        rectBuffer = new MemOutStream();
+      rectBuffer.clear();
+      getDecoder(encoding).readRect(r, is, handler.cp, rectBuffer);
+      data = new MemInStream(rectBuffer.data(), 0, rectBuffer.length());
+    }
+
     handler.beginRect(r, encoding);
 
-    if (encoding == Encodings.encodingCopyRect) {
-      readCopyRect(r);
+    DecodeStats stats = decodeStats;
+    if (decodeManager != null) {
+      decodeManager.decodeRect(r, encoding, is);
+    } else if (stats == null) {
+      getDecoder(encoding).decodeRect(r, data, handler);
     } else {
+      int pos = data.pos();
+      long start = DecodeStats.cpuTime();
+      getDecoder(encoding).decodeRect(r, data, handler);
+      stats.add(encoding, r.area(), data.pos() - pos,
+                DecodeStats.cpuTime() - start);
+    }
+
+    handler.endRect(r, encoding);
+  }
 
+  Decoder getDecoder(int encoding)
+  {
+    if (encoding < 0 || encoding > Encodings.encodingMax) {
+      vlog.error("Unknown rect encoding "+encoding);
+      throw new Exception("Unknown rect encoding");
+    }
+
+    if (decoders[encoding] == null) {
+      decoders[encoding] = Decoder.createDecoder(encoding, this);
       if (decoders[encoding] == null) {
-        decoders[encoding] = Decoder.createDecoder(encoding, this);
-        if (decoders[encoding] == null) {
-          vlog.error("Unknown rect encoding "+encoding);
-          throw new Exception("Unknown rect encoding");
-        }
+        vlog.error("Unknown rect encoding "+encoding);
+        throw new Exception("Unknown rect encoding");
       }
-      decoders[encoding].readRect(r, handler);
     }
+    return decoders[encoding];
+  }
+
+  // setDecodeThreads() selects how many threads are used to decode rects.
+  // With a single thread everything is decoded on the RFB thread as the
+  // data arrives.
+
+  public void setDecodeThreads(int nThreads)
+  {
+    if (decodeManager != null) {
+      decodeManager.flush();
+      decodeManager.close();
+      decodeManager = null;
+    }
+    if (nThreads > 1)
+      decodeManager = new DecodeManager(this, handler, nThreads);
+  }
 
-    handler.endRect(r, encoding);
+  // flushDecodes() waits until all queued rects have been decoded.  It must
+  // be called before anything else touches the framebuffer.
+
+  public void flushDecodes()
+  {
+    if (decodeManager != null)
+      decodeManager.flush();
   }
 
-  protected void readCopyRect(Rect r)
+  // setReadWholeRects() makes the data of each rect be read before any of
+  // it is decoded, as DecodeManager does, for streams such as
+  // NonBlockingInStream which may run out of data part way through a rect.
+  // It only matters when rects are decoded on the RFB thread.
+
+  public void setReadWholeRects(boolean enable)
   {
-    int srcX = is.readU16();
-    int srcY = is.readU16();
-    handler.copyRect(r, srcX, srcY);
+    readWholeRects = enable;
+  }
+
+  // setPipelinedInflate() selects whether decoders may inflate large rects
+  // on a separate thread while they are decoding them.
+
+  public void setPipelinedInflate(boolean enable)
+  {
+    pipelinedInflate = enable;
+  }
+
+  public final boolean pipelinedInflate()
+  {
+    return pipelinedInflate;
+  }
+
+  // setDecodeStats() makes the decoding of every rect be counted in the
+  // given DecodeStats, or stops counting if it is null.
+
+  public void setDecodeStats(DecodeStats stats)
+  {
+    decodeStats = stats;
+  }
+
+  public final DecodeStats getDecodeStats()
+  {
+    return decodeStats;
+  }
+
+  public void close()
+  {
+    if (decodeManager != null) {
+      decodeManager.close();
+      decodeManager = null;
+    }
+    for (int i = 0; i < decoders.length; i++) {
+      if (decoders[i] != null) {
+        decoders[i].close();
+        decoders[i] = null;
+      }
+    }
   }
 
   protected void readSetCursor(int width, int height, Point hotspot)
@@ -146,12 +238,14 @@ abstract public class CMsgReader {
     if (size < requiredBytes)
       size = requiredBytes;
 
-    if (imageBufSize < size) {
-      imageBufSize = size;
-      imageBuf = new int[imageBufSize];
+    // Each decoding thread gets a buffer of its own
+    int[] imageBuf = imageBufs.get();
+    if (imageBuf == null || imageBuf.length < size) {
+      imageBuf = new int[size];
+      imageBufs.set(imageBuf);
     }
     if (nPixels != 0)
-      nPixels = imageBufSize / (handler.cp.pf().bpp / 8);
+      nPixels = imageBuf.length / (handler.cp.pf().bpp / 8);
     return imageBuf;
   }
 
@@ -172,8 +266,12 @@ abstract public class CMsgReader {
   protected CMsgHandler handler;
   protected InStream is;
   protected Decoder[] decoders;
-  protected int[] imageBuf;
-  protected int imageBufSize;
+  protected DecodeManager decodeManager;
+  private volatile boolean pipelinedInflate;
+  private boolean readWholeRects;
+  private MemOutStream rectBuffer;
+  private volatile DecodeStats decodeStats;
+  private final ThreadLocal<int[]> imageBufs = new ThreadLocal<int[]>();
 
   static LogWriter vlog = new LogWriter("CMsgReader");
 }
@@ -34,11 +34,11 @@ public class CMsgReaderV3 extends CMsgReader {
   {
     int width = is.readU16();
     int height = is.readU16();
-    handler.setDesktopSize(width, height);
     PixelFormat pf = new PixelFormat();
     pf.read(is);
-    handler.setPixelFormat(pf);
     String name = is.readString();
+    handler.setDesktopSize(width, height);
+    handler.setPixelFormat(pf);
     handler.setName(name);
     handler.serverInit();
   }
@@ -68,6 +68,11 @@ public class CMsgReaderV3 extends CMsgReader {
       int h = is.readU16();
       int encoding = is.readS32();
 
+      // Pseudo-encodings may act on the framebuffer or the connection
+      // state, so any rects still being decoded have to be finished first.
+      if (encoding < 0 && encoding != Encodings.pseudoEncodingLastRect)
+        flushDecodes();
+
       switch (encoding) {
       case Encodings.pseudoEncodingDesktopSize:
         handler.setDesktopSize(w, h);
@@ -93,7 +98,10 @@ public class CMsgReaderV3 extends CMsgReader {
       }
 
       nUpdateRectsLeft--;
-      if (nUpdateRectsLeft == 0) handler.framebufferUpdateEnd();
+      if (nUpdateRectsLeft == 0) {
+        flushDecodes();
+        handler.framebufferUpdateEnd();
+      }
     }
   }
 
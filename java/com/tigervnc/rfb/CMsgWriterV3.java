@@ -27,82 +27,112 @@ public class CMsgWriterV3 extends CMsgWriter {
 
   public CMsgWriterV3(ConnParams cp_, OutStream os_) { super(cp_, os_); }
 
-  synchronized public void writeClientInit(boolean shared) {
-    os.writeU8(shared?1:0);
-    endMsg();
+  public void writeClientInit(boolean shared) {
+    lock.lock();
+    try {
+      os.writeU8(shared?1:0);
+      endMsg();
+    } finally {
+      lock.unlock();
+    }
   }
 
-  synchronized public void startMsg(int type) {
-    os.writeU8(type);
+  public void startMsg(int type) {
+    lock.lock();
+    try {
+      os.writeU8(type);
+    } finally {
+      lock.unlock();
+    }
   }
 
-  synchronized public void endMsg() {
-    os.flush();
+  public void endMsg() {
+    lock.lock();
+    try {
+      os.flush();
+    } finally {
+      lock.unlock();
+    }
   }
 
-  synchronized public void writeSetDesktopSize(int width, int height,
+  public void writeSetDesktopSize(int width, int height,
                                   ScreenSet layout)
-	{
-	  if (!cp.supportsSetDesktopSize)
-	    throw new Exception("Server does not support SetDesktopSize");
-
-	  startMsg(MsgTypes.msgTypeSetDesktopSize);
-	  os.pad(1);
-
-	  os.writeU16(width);
-	  os.writeU16(height);
-
-	  os.writeU8(layout.num_screens());
-	  os.pad(1);
-
-    for (Iterator<Screen> iter = layout.screens.iterator(); iter.hasNext(); ) {
-      Screen refScreen = (Screen)iter.next();
-	    os.writeU32(refScreen.id);
-	    os.writeU16(refScreen.dimensions.tl.x);
-	    os.writeU16(refScreen.dimensions.tl.y);
-	    os.writeU16(refScreen.dimensions.width());
-	    os.writeU16(refScreen.dimensions.height());
-	    os.writeU32(refScreen.flags);
-	  }
-
-	  endMsg();
-	}
-
-  synchronized public void writeFence(int flags, int len, byte[] data)
   {
-    if (!cp.supportsFence)
-      throw new Exception("Server does not support fences");
-    if (len > 64)
-      throw new Exception("Too large fence payload");
-    if ((flags & ~fenceTypes.fenceFlagsSupported) != 0)
-      throw new Exception("Unknown fence flags");
-
-    startMsg(MsgTypes.msgTypeClientFence);
-    os.pad(3);
-
-    os.writeU32(flags);
-
-    os.writeU8(len);
-    os.writeBytes(data, 0, len);
+    lock.lock();
+    try {
+      if (!cp.supportsSetDesktopSize)
+        throw new Exception("Server does not support SetDesktopSize");
+
+      startMsg(MsgTypes.msgTypeSetDesktopSize);
+      os.pad(1);
+
+      os.writeU16(width);
+      os.writeU16(height);
+
+      os.writeU8(layout.num_screens());
+      os.pad(1);
+
+      for (Iterator<Screen> iter = layout.screens.iterator(); iter.hasNext(); ) {
+        Screen refScreen = (Screen)iter.next();
+        os.writeU32(refScreen.id);
+        os.writeU16(refScreen.dimensions.tl.x);
+        os.writeU16(refScreen.dimensions.tl.y);
+        os.writeU16(refScreen.dimensions.width());
+        os.writeU16(refScreen.dimensions.height());
+        os.writeU32(refScreen.flags);
+      }
+
+      endMsg();
+    } finally {
+      lock.unlock();
+    }
+  }
 
-    endMsg();
+  public void writeFence(int flags, int len, byte[] data)
+  {
+    lock.lock();
+    try {
+      if (!cp.supportsFence)
+        throw new Exception("Server does not support fences");
+      if (len > 64)
+        throw new Exception("Too large fence payload");
+      if ((flags & ~fenceTypes.fenceFlagsSupported) != 0)
+        throw new Exception("Unknown fence flags");
+
+      startMsg(MsgTypes.msgTypeClientFence);
+      os.pad(3);
+
+      os.writeU32(flags);
+
+      os.writeU8(len);
+      os.writeBytes(data, 0, len);
+
+      endMsg();
+    } finally {
+      lock.unlock();
+    }
   }
 
-  synchronized public void writeEnableContinuousUpdates(boolean enable,
+  public void writeEnableContinuousUpdates(boolean enable,
                                            int x, int y, int w, int h)
   {
-    if (!cp.supportsContinuousUpdates)
-      throw new Exception("Server does not support continuous updates");
+    lock.lock();
+    try {
+      if (!cp.supportsContinuousUpdates)
+        throw new Exception("Server does not support continuous updates");
 
-    startMsg(MsgTypes.msgTypeEnableContinuousUpdates);
+      startMsg(MsgTypes.msgTypeEnableContinuousUpdates);
 
-    os.writeU8((enable?1:0));
+      os.writeU8((enable?1:0));
 
-    os.writeU16(x);
-    os.writeU16(y);
-    os.writeU16(w);
-    os.writeU16(h);
+      os.writeU16(x);
+      os.writeU16(y);
+      os.writeU16(w);
+      os.writeU16(h);
 
-    endMsg();
+      endMsg();
+    } finally {
+      lock.unlock();
+    }
   }
 }
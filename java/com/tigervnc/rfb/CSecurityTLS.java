@@ -100,6 +100,8 @@ public class CSecurityTLS extends CSecurity {
 // add a finalizer method that calls shutdown
 
   public boolean processMsg(CConnection cc) {
+    if (!(cc.getInStream() instanceof FdInStream))
+      throw new Exception("TLS can only be used on a blocking connection");
     is = (FdInStream)cc.getInStream();
     os = (FdOutStream)cc.getOutStream();
     client = cc;
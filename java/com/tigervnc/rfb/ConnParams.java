@@ -48,7 +48,8 @@ public class ConnParams {
   {
     done = false;
     if (verStrPos >= 12) return false;
-    verStr = new StringBuilder(13);
+    if (verStrPos == 0)
+      verStr = new StringBuilder(13);
     while (is.checkNoWait(1) && verStrPos < 12) {
       verStr.insert(verStrPos++,(char)is.readU8());
     }
@@ -0,0 +1,55 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+package com.tigervnc.rfb;
+
+import com.tigervnc.rdr.*;
+
+public class CopyRectDecoder extends Decoder {
+
+  public CopyRectDecoder(CMsgReader reader_) {
+    super(DecoderPlain);
+    reader = reader_;
+  }
+
+  public void readRect(Rect r, InStream is, ConnParams cp, OutStream os) {
+    os.copyBytes(is, 4);
+  }
+
+  public void decodeRect(Rect r, InStream is, CMsgHandler handler) {
+    int srcX = is.readU16();
+    int srcY = is.readU16();
+    handler.copyRect(r, srcX, srcY);
+  }
+
+  // A CopyRect also depends on its source area, so it has to wait for any
+  // earlier rect drawing there, and later rects must not overwrite the
+  // source before the copy is done.
+
+  public Rect[] getAffectedRects(Rect r, byte[] buffer, int buflen,
+                                 ConnParams cp)
+  {
+    MemInStream is = new MemInStream(buffer, 0, buflen);
+    int srcX = is.readU16();
+    int srcY = is.readU16();
+    Rect src = new Rect(srcX, srcY, srcX + r.width(), srcY + r.height());
+    return new Rect[] { r, src };
+  }
+
+  CMsgReader reader;
+}
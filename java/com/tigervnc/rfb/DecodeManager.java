@@ -0,0 +1,281 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// DecodeManager - decodes the rects of a framebuffer update on a pool of
+// worker threads.  The RFB thread only copies the encoded data of each rect
+// into a buffer; the workers then decode them in whatever order the
+// decoders' ordering requirements allow.
+//
+
+package com.tigervnc.rfb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.tigervnc.rdr.*;
+
+public class DecodeManager {
+
+  public DecodeManager(CMsgReader reader_, CMsgHandler handler_, int nThreads)
+  {
+    reader = reader_;
+    handler = handler_;
+
+    vlog.info("Using "+nThreads+" decoder thread(s)");
+
+    workQueue = new ArrayList<QueueEntry>();
+    freeBuffers = new LinkedList<MemOutStream>();
+    for (int i = 0; i < nThreads * 2; i++)
+      freeBuffers.add(new MemOutStream());
+
+    threads = new ArrayList<DecodeThread>();
+    for (int i = 0; i < nThreads; i++) {
+      DecodeThread thread = new DecodeThread("DecodeThread-"+i);
+      threads.add(thread);
+      thread.start();
+    }
+  }
+
+  // decodeRect() reads the data for a rect from is and queues it for
+  // decoding.  Blocks while all buffers are in use.
+
+  public void decodeRect(Rect r, int encoding, InStream is)
+  {
+    Decoder decoder = reader.getDecoder(encoding);
+    MemOutStream bufferStream;
+
+    synchronized (this) {
+      while (freeBuffers.isEmpty() && threadException == null) {
+        try {
+          wait();
+        } catch (InterruptedException e) { }
+      }
+      throwThreadException();
+
+      bufferStream = freeBuffers.removeFirst();
+    }
+
+    // Reading the data may block on the network, so the workers are left
+    // to carry on in the meantime
+    Rect[] affectedRects;
+    try {
+      bufferStream.clear();
+      decoder.readRect(r, is, handler.cp, bufferStream);
+      affectedRects = decoder.getAffectedRects(r, bufferStream.data(),
+                                               bufferStream.length(),
+                                               handler.cp);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        freeBuffers.add(bufferStream);
+      }
+      throw e;
+    }
+
+    QueueEntry entry = new QueueEntry();
+    entry.active = false;
+    entry.rect = r;
+    entry.encoding = encoding;
+    entry.decoder = decoder;
+    entry.affectedRects = affectedRects;
+    entry.bufferStream = bufferStream;
+
+    synchronized (this) {
+      workQueue.add(entry);
+      notifyAll();
+    }
+  }
+
+  // flush() waits until every queued rect has been decoded.
+
+  public synchronized void flush()
+  {
+    while (!workQueue.isEmpty() && threadException == null) {
+      try {
+        wait();
+      } catch (InterruptedException e) { }
+    }
+    throwThreadException();
+  }
+
+  // close() stops the worker threads.  Anything still queued is dropped.
+
+  public synchronized void close()
+  {
+    stopRequested = true;
+    notifyAll();
+  }
+
+  private void throwThreadException()
+  {
+    if (threadException == null)
+      return;
+
+    RuntimeException e = threadException;
+    threadException = null;
+    throw e;
+  }
+
+  private void setThreadException(java.lang.Exception e)
+  {
+    if (threadException != null)
+      return;
+
+    if (e instanceof RuntimeException)
+      threadException = (RuntimeException)e;
+    else
+      threadException = new Exception(e.toString());
+  }
+
+  // findEntry() returns the first queued rect which can be decoded right
+  // now, or null if there is none.  A rect has to wait for any earlier rect
+  // it overlaps, and for earlier rects of the same encoding if the decoder
+  // requires them to be decoded in order.
+
+  private QueueEntry findEntry()
+  {
+    if (workQueue.isEmpty())
+      return null;
+
+    Iterator<QueueEntry> iter = workQueue.iterator();
+    for (int i = 0; iter.hasNext(); i++) {
+      QueueEntry entry = iter.next();
+
+      if (entry.active)
+        continue;
+
+      boolean blocked = false;
+      for (int j = 0; j < i; j++) {
+        QueueEntry prev = workQueue.get(j);
+
+        if (prev.encoding == entry.encoding) {
+          if ((entry.decoder.flags & Decoder.DecoderOrdered) != 0) {
+            blocked = true;
+            break;
+          }
+          if ((entry.decoder.flags & Decoder.DecoderPartiallyOrdered) != 0) {
+            if (entry.decoder.doRectsConflict(entry.rect,
+                                              entry.bufferStream.data(),
+                                              entry.bufferStream.length(),
+                                              prev.rect,
+                                              prev.bufferStream.data(),
+                                              prev.bufferStream.length(),
+                                              handler.cp)) {
+              blocked = true;
+              break;
+            }
+          }
+        }
+
+        if (rectsOverlap(entry.affectedRects, prev.affectedRects)) {
+          blocked = true;
+          break;
+        }
+      }
+
+      if (!blocked)
+        return entry;
+    }
+
+    return null;
+  }
+
+  private static boolean rectsOverlap(Rect[] a, Rect[] b)
+  {
+    for (int i = 0; i < a.length; i++) {
+      for (int j = 0; j < b.length; j++) {
+        if (!a[i].intersect(b[j]).is_empty())
+          return true;
+      }
+    }
+    return false;
+  }
+
+  class QueueEntry {
+    boolean active;
+    Rect rect;
+    int encoding;
+    Decoder decoder;
+    Rect[] affectedRects;
+    MemOutStream bufferStream;
+  }
+
+  class DecodeThread extends Thread {
+
+    public DecodeThread(String name) {
+      super(name);
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      while (true) {
+        QueueEntry entry = null;
+
+        synchronized (DecodeManager.this) {
+          while (!stopRequested && (entry = findEntry()) == null) {
+            try {
+              DecodeManager.this.wait();
+            } catch (InterruptedException e) { }
+          }
+          if (stopRequested)
+            return;
+
+          entry.active = true;
+        }
+
+        java.lang.Exception failure = null;
+        try {
+          MemInStream is = new MemInStream(entry.bufferStream.data(), 0,
+                                           entry.bufferStream.length());
+          DecodeStats stats = reader.getDecodeStats();
+          long start = (stats != null) ? DecodeStats.cpuTime() : 0;
+          entry.decoder.decodeRect(entry.rect, is, handler);
+          if (stats != null)
+            stats.add(entry.encoding, entry.rect.area(),
+                      entry.bufferStream.length(),
+                      DecodeStats.cpuTime() - start);
+        } catch (java.lang.Exception e) {
+          vlog.error("Error decoding rect: "+e.toString());
+          failure = e;
+        }
+
+        synchronized (DecodeManager.this) {
+          if (failure != null)
+            setThreadException(failure);
+          workQueue.remove(entry);
+          freeBuffers.add(entry.bufferStream);
+          DecodeManager.this.notifyAll();
+        }
+      }
+    }
+  }
+
+  private CMsgReader reader;
+  private CMsgHandler handler;
+
+  private ArrayList<QueueEntry> workQueue;
+  private LinkedList<MemOutStream> freeBuffers;
+  private ArrayList<DecodeThread> threads;
+
+  private boolean stopRequested;
+  private RuntimeException threadException;
+
+  static LogWriter vlog = new LogWriter("DecodeManager");
+}
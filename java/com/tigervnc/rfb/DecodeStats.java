@@ -0,0 +1,103 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// DecodeStats counts, for each encoding, how many pixels and bytes have
+// been decoded and how much CPU time that took.  The counts are added to
+// by whichever thread decodes a rect and collected with drainTo().
+//
+
+package com.tigervnc.rfb;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import com.tigervnc.rdr.VirtualThreads;
+
+public class DecodeStats {
+
+  public DecodeStats() {
+    pixels = new long[Encodings.encodingMax+1];
+    bytes = new long[Encodings.encodingMax+1];
+    nanos = new long[Encodings.encodingMax+1];
+  }
+
+  public synchronized void add(int encoding, long pixels_, long bytes_,
+                               long nanos_)
+  {
+    pixels[encoding] += pixels_;
+    bytes[encoding] += bytes_;
+    nanos[encoding] += nanos_;
+  }
+
+  // drainTo() adds the counts to the given arrays and starts counting from
+  // zero again.
+
+  public synchronized void drainTo(long[] pixels_, long[] bytes_,
+                                   long[] nanos_)
+  {
+    for (int i = 0; i <= Encodings.encodingMax; i++) {
+      pixels_[i] += pixels[i];
+      bytes_[i] += bytes[i];
+      nanos_[i] += nanos[i];
+      pixels[i] = bytes[i] = nanos[i] = 0;
+    }
+  }
+
+  // cpuTime() returns the CPU time used by the current thread, in
+  // nanoseconds.  Time spent blocked on the network isn't included, so
+  // this can be used around a decoder reading straight from the socket.
+  // If the JVM can't measure it, wall clock time is used instead.  That
+  // includes virtual threads, whose CPU time is given as -1.
+
+  public static long cpuTime()
+  {
+    if (cpuTimeSupported &&
+        !VirtualThreads.isVirtual(Thread.currentThread())) {
+      try {
+        long time = threadBean.getCurrentThreadCpuTime();
+        if (time >= 0)
+          return time;
+      } catch (UnsupportedOperationException e) {
+        // Not for this thread
+      }
+    }
+    return System.nanoTime();
+  }
+
+  private long[] pixels;
+  private long[] bytes;
+  private long[] nanos;
+
+  static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+  static final boolean cpuTimeSupported;
+
+  static {
+    boolean supported = false;
+    try {
+      if (threadBean.isCurrentThreadCpuTimeSupported()) {
+        if (!threadBean.isThreadCpuTimeEnabled())
+          threadBean.setThreadCpuTimeEnabled(true);
+        supported = true;
+      }
+    } catch (java.lang.Exception e) {
+      // Not allowed to enable it
+    }
+    cpuTimeSupported = supported;
+  }
+}
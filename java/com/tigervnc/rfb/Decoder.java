@@ -18,9 +18,56 @@
 
 package com.tigervnc.rfb;
 
+import com.tigervnc.rdr.*;
+
 abstract public class Decoder {
 
-  abstract public void readRect(Rect r, CMsgHandler handler);
+  // Ordering requirements of a decoder.  DecoderPlain rects can be decoded
+  // in any order, DecoderPartiallyOrdered rects must stay in order whenever
+  // doRectsConflict() says so and DecoderOrdered rects must always be
+  // decoded in the order they were received.
+
+  public static final int DecoderPlain = 0;
+  public static final int DecoderPartiallyOrdered = 1 << 0;
+  public static final int DecoderOrdered = 1 << 1;
+
+  protected Decoder(int flags_) { flags = flags_; }
+
+  // readRect() reads the encoded data for a rect from is and appends it,
+  // unmodified, to os.  Nothing is decoded, so this is cheap enough to do
+  // on the RFB thread while decodeRect() runs elsewhere.
+
+  abstract public void readRect(Rect r, InStream is, ConnParams cp,
+                                OutStream os);
+
+  // decodeRect() decodes the data for a rect from is and hands the result
+  // to the handler.  The stream is either the connection itself or a copy
+  // of the data made by readRect().
+
+  abstract public void decodeRect(Rect r, InStream is, CMsgHandler handler);
+
+  // getAffectedRects() returns the parts of the framebuffer which are read
+  // or written when the rect is decoded.
+
+  public Rect[] getAffectedRects(Rect r, byte[] buffer, int buflen,
+                                 ConnParams cp)
+  {
+    return new Rect[] { r };
+  }
+
+  // doRectsConflict() returns true if the two rects must be decoded in the
+  // order they were received.  Only used with DecoderPartiallyOrdered.
+
+  public boolean doRectsConflict(Rect rectA, byte[] bufferA, int buflenA,
+                                 Rect rectB, byte[] bufferB, int buflenB,
+                                 ConnParams cp)
+  {
+    return false;
+  }
+
+  // close() lets go of any threads or other resources held by the decoder.
+
+  public void close() {}
 
   static public boolean supported(int encoding)
   {
@@ -31,6 +78,7 @@ abstract public class Decoder {
             encoding == Encodings.encodingRRE ||
             encoding == Encodings.encodingHextile ||
             encoding == Encodings.encodingTight ||
+            encoding == Encodings.encodingTRLE ||
             encoding == Encodings.encodingZRLE);
   }
   static public Decoder createDecoder(int encoding, CMsgReader reader) {
@@ -40,12 +88,16 @@ abstract public class Decoder {
     return 0;
 */
     switch(encoding) {
-    case Encodings.encodingRaw:     return new RawDecoder(reader);
-    case Encodings.encodingRRE:     return new RREDecoder(reader);
-    case Encodings.encodingHextile: return new HextileDecoder(reader);
-    case Encodings.encodingTight:   return new TightDecoder(reader);
-    case Encodings.encodingZRLE:    return new ZRLEDecoder(reader);
+    case Encodings.encodingRaw:      return new RawDecoder(reader);
+    case Encodings.encodingCopyRect: return new CopyRectDecoder(reader);
+    case Encodings.encodingRRE:      return new RREDecoder(reader);
+    case Encodings.encodingHextile:  return new HextileDecoder(reader);
+    case Encodings.encodingTight:    return new TightDecoder(reader);
+    case Encodings.encodingTRLE:     return new TRLEDecoder(reader);
+    case Encodings.encodingZRLE:     return new ZRLEDecoder(reader);
     }
     return null;
   }
+
+  public final int flags;
 }
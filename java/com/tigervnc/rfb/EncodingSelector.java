@@ -0,0 +1,254 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// EncodingSelector picks the encoding which should give the shortest
+// frame times, taking into account both how fast the network is and how
+// fast this client decodes each encoding.
+//
+// For a frame of N pixels the time is estimated as N * bytesPerPixel / the
+// network rate for receiving it, plus N * nanosPerPixel for decoding it.
+// With several decoding threads the two overlap, so the larger of the two
+// counts instead, and the decoding time is shared between the threads
+// where the encoding allows rects to be decoded in parallel.
+//
+// Only the current encoding can be measured.  The others are estimated
+// from rough figures for typical desktop content, scaled by how the
+// current encoding compares to its own rough figures.  That way a slow CPU
+// makes every decoder look slow and busy content makes every encoding look
+// big.  To avoid flapping, a better encoding must win by a clear margin
+// several times in a row, and we never switch more often than every few
+// seconds.
+//
+
+package com.tigervnc.rfb;
+
+public class EncodingSelector {
+
+  static final int[] candidates = {
+    Encodings.encodingTight, Encodings.encodingZRLE,
+    Encodings.encodingTRLE, Encodings.encodingRaw
+  };
+
+  // Rough figures for 32 bpp desktop content.  Raw is exact and scales
+  // with the pixel size instead.
+  static final double[] typicalBytesPerPixel = { 0.25, 0.35, 1.2, 4.0 };
+  static final double[] typicalNanosPerPixel = { 12.0, 6.0, 3.0, 0.7 };
+
+  // How much has to be decoded before the figures are updated
+  static final long minPixels = 1024 * 1024;
+
+  // A better encoding has to be this much faster...
+  static final double switchMargin = 0.25;
+  // ...in this many updates in a row...
+  static final int switchVotes = 3;
+  // ...and this long after the last switch
+  static final long minSwitchInterval = 5000000000L;
+
+  // The compression level goes up when the network takes more than this
+  // share of the frame time and down when it takes less than the other
+  static final double networkBoundShare = 0.6;
+  static final double cpuBoundShare = 0.4;
+  static final int lowCompressLevel = 1;
+  static final int highCompressLevel = 6;
+
+  public EncodingSelector(int encoding_, int compressLevel_) {
+    pixels = new long[Encodings.encodingMax+1];
+    bytes = new long[Encodings.encodingMax+1];
+    nanos = new long[Encodings.encodingMax+1];
+    compressLevel = compressLevel_;
+    decodeThreads = 1;
+    reset(encoding_);
+  }
+
+  // reset() starts measuring from scratch with the given encoding, e.g.
+  // after it has been chosen by hand.
+
+  public void reset(int encoding_) {
+    encoding = isCandidate(encoding_) ? encoding_ : Encodings.encodingTight;
+    bytesPerPixel = nanosPerPixel = nanosPerByte = 0;
+    votes = 0;
+    for (int i = 0; i <= Encodings.encodingMax; i++)
+      pixels[i] = bytes[i] = nanos[i] = 0;
+    netBytes = netNanos = 0;
+  }
+
+  public void setDecodeThreads(int n) { decodeThreads = Math.max(1, n); }
+
+  public final int getEncoding() { return encoding; }
+  public final int getCompressLevel() { return compressLevel; }
+
+  public static boolean isCandidate(int encoding) {
+    return index(encoding) >= 0;
+  }
+
+  // update() takes what has been decoded since the last call, and the
+  // network totals from FdInStream.bytesTimed() and nanosWaited().  It
+  // returns true if the encoding or compression level should change.
+
+  public boolean update(DecodeStats stats, long netBytesTotal,
+                        long netNanosTotal, int bpp, long now)
+  {
+    stats.drainTo(pixels, bytes, nanos);
+    if (lastNetBytes >= 0) {
+      netBytes += netBytesTotal - lastNetBytes;
+      netNanos += netNanosTotal - lastNetNanos;
+    }
+    lastNetBytes = netBytesTotal;
+    lastNetNanos = netNanosTotal;
+
+    if (pixels[encoding] < minPixels || netBytes == 0)
+      return false;
+
+    // Fold the new figures in, giving the older ones some weight
+    double bpp_ = (double)bytes[encoding] / pixels[encoding];
+    double npp = (double)nanos[encoding] / pixels[encoding];
+    double npb = (double)Math.max(netNanos, 1) / netBytes;
+    bytesPerPixel = (bytesPerPixel == 0) ? bpp_ : (bytesPerPixel + bpp_) / 2;
+    nanosPerPixel = (nanosPerPixel == 0) ? npp : (nanosPerPixel + npp) / 2;
+    nanosPerByte = (nanosPerByte == 0) ? npb : (nanosPerByte + npb) / 2;
+
+    for (int i = 0; i <= Encodings.encodingMax; i++)
+      pixels[i] = bytes[i] = nanos[i] = 0;
+    netBytes = netNanos = 0;
+
+    int current = index(encoding);
+    double sizeScale = bytesPerPixel / typicalBytes(current, bpp);
+    double cpuScale = nanosPerPixel / typicalNanosPerPixel[current];
+    if (current == index(Encodings.encodingRaw))
+      sizeScale = 1;
+
+    int best = current;
+    double bestTime = frameTime(current, bytesPerPixel, nanosPerPixel);
+    double currentTime = bestTime;
+    for (int i = 0; i < candidates.length; i++) {
+      if (i == current)
+        continue;
+      double size = typicalBytes(i, bpp);
+      if (candidates[i] != Encodings.encodingRaw)
+        size *= sizeScale;
+      double t = frameTime(i, size, typicalNanosPerPixel[i] * cpuScale);
+      if (t < bestTime) {
+        best = i;
+        bestTime = t;
+      }
+    }
+
+    boolean changed = false;
+
+    if (best != current && bestTime < currentTime * (1 - switchMargin)) {
+      if (candidates[best] == votedFor)
+        votes++;
+      else
+        votes = 1;
+      votedFor = candidates[best];
+    } else {
+      votes = 0;
+    }
+
+    if (votes >= switchVotes &&
+        (!switched || now - lastSwitch >= minSwitchInterval)) {
+      vlog.info("Estimated frame time "+Encodings.encodingName(encoding)+
+                " "+(int)(currentTime/1e6)+" ms/Mpixel, "+
+                Encodings.encodingName(candidates[best])+" "+
+                (int)(bestTime/1e6)+" ms/Mpixel");
+      reset(candidates[best]);
+      lastSwitch = now;
+      switched = true;
+      changed = true;
+    }
+
+    // Compression only matters for the zlib based encodings
+    if (!changed && (encoding == Encodings.encodingTight ||
+                     encoding == Encodings.encodingZRLE)) {
+      double net = bytesPerPixel * nanosPerByte;
+      double share = net / (net + decodeNanos(current, nanosPerPixel));
+      int newLevel = compressLevel;
+      if (share > networkBoundShare)
+        newLevel = highCompressLevel;
+      else if (share < cpuBoundShare)
+        newLevel = lowCompressLevel;
+      if (newLevel != compressLevel) {
+        compressLevel = newLevel;
+        changed = true;
+      }
+    }
+
+    return changed;
+  }
+
+  // frameTime() estimates the nanoseconds needed to receive and decode a
+  // megapixel.
+
+  private double frameTime(int i, double bytesPerPixel_, double nanosPerPixel_)
+  {
+    double net = bytesPerPixel_ * nanosPerByte;
+    double decode = decodeNanos(i, nanosPerPixel_);
+    if (decodeThreads > 1)
+      return 1e6 * Math.max(net, decode);
+    return 1e6 * (net + decode);
+  }
+
+  // ZRLE rects have to be decoded one at a time, the others can be spread
+  // over the decoding threads
+  private double decodeNanos(int i, double nanosPerPixel_)
+  {
+    if (candidates[i] == Encodings.encodingZRLE)
+      return nanosPerPixel_;
+    return nanosPerPixel_ / decodeThreads;
+  }
+
+  private static double typicalBytes(int i, int bpp)
+  {
+    if (candidates[i] == Encodings.encodingRaw)
+      return bpp / 8;
+    return typicalBytesPerPixel[i] * bpp / 32;
+  }
+
+  private static int index(int encoding)
+  {
+    for (int i = 0; i < candidates.length; i++) {
+      if (candidates[i] == encoding)
+        return i;
+    }
+    return -1;
+  }
+
+  private int encoding;
+  private int compressLevel;
+  private int decodeThreads;
+
+  // Smoothed figures for the current encoding
+  private double bytesPerPixel;
+  private double nanosPerPixel;
+  private double nanosPerByte;
+
+  // Collected since the figures were last updated
+  private long[] pixels;
+  private long[] bytes;
+  private long[] nanos;
+  private long netBytes, netNanos;
+  private long lastNetBytes = -1, lastNetNanos;
+
+  private int votedFor = -1;
+  private int votes;
+  private long lastSwitch;
+  private boolean switched;
+
+  static LogWriter vlog = new LogWriter("EncodingSelector");
+}
@@ -28,6 +28,7 @@ public class Encodings {
   public static final int encodingCoRRE = 4;
   public static final int encodingHextile = 5;
   public static final int encodingTight = 7;
+  public static final int encodingTRLE = 15;
   public static final int encodingZRLE = 16;
 
   public static final int encodingMax = 255;
@@ -65,6 +66,7 @@ public class Encodings {
     if (name.equalsIgnoreCase("coRRE"))    return encodingCoRRE;
     if (name.equalsIgnoreCase("hextile"))  return encodingHextile;
     if (name.equalsIgnoreCase("Tight"))    return encodingTight;
+    if (name.equalsIgnoreCase("TRLE"))     return encodingTRLE;
     if (name.equalsIgnoreCase("ZRLE"))     return encodingZRLE;
     return -1;
   }
@@ -77,6 +79,7 @@ public class Encodings {
     case encodingCoRRE:         return "CoRRE";
     case encodingHextile:       return "hextile";
     case encodingTight:         return "Tight";
+    case encodingTRLE:          return "TRLE";
     case encodingZRLE:          return "ZRLE";
     default:                    return "[unknown encoding]";
     }
@@ -22,10 +22,52 @@ import com.tigervnc.rdr.*;
 
 public class HextileDecoder extends Decoder {
 
-  public HextileDecoder(CMsgReader reader_) { reader = reader_; }
+  public HextileDecoder(CMsgReader reader_) {
+    super(DecoderPlain);
+    reader = reader_;
+  }
+
+  public void readRect(Rect r, InStream is, ConnParams cp, OutStream os) {
+    int bytesPerPixel = cp.pf().bpp / 8;
+
+    Rect t = new Rect();
+
+    for (t.tl.y = r.tl.y; t.tl.y < r.br.y; t.tl.y += 16) {
+
+      t.br.y = Math.min(r.br.y, t.tl.y + 16);
+
+      for (t.tl.x = r.tl.x; t.tl.x < r.br.x; t.tl.x += 16) {
+
+        t.br.x = Math.min(r.br.x, t.tl.x + 16);
+
+        int tileType = is.readU8();
+        os.writeU8(tileType);
+
+        if ((tileType & Hextile.raw) != 0) {
+          os.copyBytes(is, t.area() * bytesPerPixel);
+          continue;
+        }
+
+        if ((tileType & Hextile.bgSpecified) != 0)
+          os.copyBytes(is, bytesPerPixel);
+
+        if ((tileType & Hextile.fgSpecified) != 0)
+          os.copyBytes(is, bytesPerPixel);
+
+        if ((tileType & Hextile.anySubrects) != 0) {
+          int nSubrects = is.readU8();
+          os.writeU8(nSubrects);
+
+          if ((tileType & Hextile.subrectsColoured) != 0)
+            os.copyBytes(is, nSubrects * (bytesPerPixel + 2));
+          else
+            os.copyBytes(is, nSubrects * 2);
+        }
+      }
+    }
+  }
 
-  public void readRect(Rect r, CMsgHandler handler) {
-    InStream is = reader.getInStream();
+  public void decodeRect(Rect r, InStream is, CMsgHandler handler) {
     int bytesPerPixel = handler.cp.pf().bpp / 8;
     boolean bigEndian = handler.cp.pf().bigEndian;
 
@@ -0,0 +1,173 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// JpegDecompressor decodes the JPEG data of Tight rects.  The ImageIO
+// reader and the image it decodes into are kept from one rect to the next,
+// so the decoding is done synchronously on the calling thread without
+// creating an image for every rect.  Greyscale and subsampled (4:2:0,
+// 4:2:2) JPEG data is converted to RGB by the reader.  An instance must
+// only be used by one thread at a time.
+//
+
+package com.tigervnc.rfb;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+public class JpegDecompressor {
+
+  public JpegDecompressor() {
+    Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+    if (!readers.hasNext())
+      throw new Exception("No JPEG decoder available");
+    reader = readers.next();
+    param = reader.getDefaultReadParam();
+    stream = new ByteArrayImageInputStream();
+  }
+
+  // decompress() decodes len bytes of JPEG data from buf and stores the
+  // w x h pixels in pf at dst, where pixel (x,y) goes at
+  // dstPtr + y * stride + x.  If the JPEG image is smaller than that, the
+  // pixels it doesn't cover are left alone.
+
+  public void decompress(byte[] buf, int off, int len, int w, int h,
+                         int[] dst, int dstPtr, int stride, PixelFormat pf)
+  {
+    BufferedImage img = getImage(w, h);
+    stream.setData(buf, off, len);
+    try {
+      reader.setInput(stream, true, true);
+      param.setDestination(img);
+      img = reader.read(0, param);
+      w = Math.min(w, reader.getWidth(0));
+      h = Math.min(h, reader.getHeight(0));
+    } catch (IOException e) {
+      throw new Exception("Error decoding JPEG data: "+e.getMessage());
+    } catch (IllegalArgumentException e) {
+      // The JPEG data can't be decoded to RGB
+      throw new Exception("Error decoding JPEG data: "+e.getMessage());
+    } finally {
+      reader.setInput(null);
+    }
+
+    ComponentSampleModel sm = (ComponentSampleModel)img.getSampleModel();
+    byte[] data = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+    int scan = sm.getScanlineStride();
+    int[] offsets = sm.getBandOffsets();
+    int rOff = offsets[0], gOff = offsets[1], bOff = offsets[2];
+
+    if (pf.is888()) {
+      int rs = pf.redShift, gs = pf.greenShift, bs = pf.blueShift;
+      for (int y = 0; y < h; y++) {
+        int src = y * scan;
+        int ptr = dstPtr + y * stride;
+        int end = ptr + w;
+        while (ptr < end) {
+          dst[ptr++] = 0xff000000 | (data[src + rOff] & 0xff) << rs |
+                       (data[src + gOff] & 0xff) << gs |
+                       (data[src + bOff] & 0xff) << bs;
+          src += 3;
+        }
+      }
+    } else {
+      // Tight only sends JPEG for 24 bit colour, but scale the components
+      // down like PixelFormat does in case a server sends it anyway
+      int rm = pf.redMax, gm = pf.greenMax, bm = pf.blueMax;
+      int rs = pf.redShift, gs = pf.greenShift, bs = pf.blueShift;
+      for (int y = 0; y < h; y++) {
+        int src = y * scan;
+        int ptr = dstPtr + y * stride;
+        int end = ptr + w;
+        while (ptr < end) {
+          int r = ((data[src + rOff] & 0xff) * rm + 127) / 255;
+          int g = ((data[src + gOff] & 0xff) * gm + 127) / 255;
+          int b = ((data[src + bOff] & 0xff) * bm + 127) / 255;
+          dst[ptr++] = 0xff000000 | r << rs | g << gs | b << bs;
+          src += 3;
+        }
+      }
+    }
+  }
+
+  // The image only ever grows, so that rects of varying sizes don't each
+  // need one of their own.  The reader only writes the part the JPEG image
+  // covers.
+
+  private BufferedImage getImage(int w, int h) {
+    if (image == null || image.getWidth() < w || image.getHeight() < h) {
+      if (image != null) {
+        w = Math.max(w, image.getWidth());
+        h = Math.max(h, image.getHeight());
+      }
+      image = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+    }
+    return image;
+  }
+
+  // ImageIO's own streams either copy the data into a cache or read it
+  // through an InputStream, neither of which is needed when all of it is
+  // already in memory.
+
+  static final class ByteArrayImageInputStream extends ImageInputStreamImpl {
+    void setData(byte[] buf_, int off_, int len_) {
+      buf = buf_;
+      off = off_;
+      len = len_;
+      streamPos = 0;
+      flushedPos = 0;
+      bitOffset = 0;
+    }
+
+    public int read() {
+      bitOffset = 0;
+      if (streamPos >= len)
+        return -1;
+      return buf[off + (int)streamPos++] & 0xff;
+    }
+
+    public int read(byte[] b, int o, int n) {
+      bitOffset = 0;
+      if (n == 0)
+        return 0;
+      if (streamPos >= len)
+        return -1;
+      n = (int)Math.min(n, len - streamPos);
+      System.arraycopy(buf, off + (int)streamPos, b, o, n);
+      streamPos += n;
+      return n;
+    }
+
+    public long length() { return len; }
+
+    byte[] buf;
+    int off, len;
+  }
+
+  private ImageReader reader;
+  private ImageReadParam param;
+  private ByteArrayImageInputStream stream;
+  private BufferedImage image;
+}
@@ -24,6 +24,7 @@
 package com.tigervnc.rfb;
 
 import java.awt.image.*;
+import java.util.Arrays;
 
 public class PixelBuffer {
 
@@ -52,7 +53,8 @@ public class PixelBuffer {
       cm = new DirectColorModel(8, rmask, gmask, bmask);
       break;
     case 16:
-      cm = new DirectColorModel(32, 0xF800, 0x07C0, 0x003E);
+      cm = new DirectColorModel(16, pf.redMax << pf.redShift,
+        pf.greenMax << pf.greenShift, pf.blueMax << pf.blueShift);
       break;
     case 24:
       cm = new DirectColorModel(32, (0xff << 16), (0xff << 8), 0xff);
@@ -73,8 +75,7 @@ public class PixelBuffer {
 
   public void fillRect(int x, int y, int w, int h, int pix) {
     for (int ry = y; ry < y + h; ry++)
-      for (int rx = x; rx < x + w; rx++)
-        data[ry * width_ + rx] = pix;
+      Arrays.fill(data, ry * width_ + x, ry * width_ + x + w, pix);
   }
 
   public void imageRect(int x, int y, int w, int h, int[] pix) {
@@ -101,6 +102,19 @@ public class PixelBuffer {
     }
   }
 
+  // getBufferRW() gives direct access to the pixels, so that a decoder
+  // can write a rect without going through imageRect().  The pixel at
+  // (x,y) is at y * stride[0] + x.  It returns null if the pixels can't be
+  // accessed like this.  commitBufferRW() must be called for the same rect
+  // once the pixels have been written.
+
+  public int[] getBufferRW(Rect r, int[] stride) {
+    stride[0] = width_;
+    return data;
+  }
+
+  public void commitBufferRW(Rect r) {}
+
   public void maskRect(int x, int y, int w, int h, int[] pix, byte[] mask) {
     int maskBytesPerRow = (w + 7) / 8;
 
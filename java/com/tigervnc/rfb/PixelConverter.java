@@ -0,0 +1,209 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// PixelConverter converts pixel values from one true colour PixelFormat to
+// another, e.g. from the format the server sends to the layout of the
+// image we draw into.  Pixel values are the ones InStream.readPixels()
+// gives, so the byte order of the formats makes no difference.
+//
+// create() picks the cheapest way to do the conversion, so it should be
+// called once when the format changes rather than for every rect:
+//
+//   - no conversion at all if the two layouts are the same,
+//   - moving the components if both formats have 8 bits per component,
+//   - a table with the result for every pixel value for 8 and 16bpp
+//     formats (rgb332, bgr233, rgb565 and the low colour formats).  The
+//     16bpp table is 256 KB, but a lookup is much faster than looking up
+//     each component,
+//   - a table per component for anything else.
+//
+
+package com.tigervnc.rfb;
+
+public abstract class PixelConverter {
+
+  public static PixelConverter create(PixelFormat from, PixelFormat to)
+  {
+    if (!from.trueColour || !to.trueColour)
+      throw new Exception("PixelConverter: can only convert true colour formats");
+
+    if (sameLayout(from, to))
+      return new Identity();
+    if (from.redMax == 255 && from.greenMax == 255 && from.blueMax == 255 &&
+        to.redMax == 255 && to.greenMax == 255 && to.blueMax == 255)
+      return new Shift(from, to);
+    if (from.bpp <= 16)
+      return new PixelTable(from, to);
+    return new ComponentTables(from, to);
+  }
+
+  static boolean sameLayout(PixelFormat a, PixelFormat b) {
+    return (a.redMax == b.redMax && a.greenMax == b.greenMax &&
+            a.blueMax == b.blueMax && a.redShift == b.redShift &&
+            a.greenShift == b.greenShift && a.blueShift == b.blueShift);
+  }
+
+  // convert() returns a single pixel in the new format.
+
+  public abstract int convert(int p);
+
+  // convertRect() converts a w x h rect.  Pixel (x,y) of the rect is at
+  // srcPtr + y * srcStride + x in src, and goes to dstPtr + y * dstStride
+  // + x in dst.
+
+  public abstract void convertRect(int[] src, int srcPtr, int srcStride,
+                                   int[] dst, int dstPtr, int dstStride,
+                                   int w, int h);
+
+  // isIdentity() is true if the pixel values don't change at all, so that
+  // pixels in the old format can be stored as they are.
+
+  public boolean isIdentity() { return false; }
+
+  // Component values are scaled like PixelFormat.bufferFromRGB() does
+
+  static int[] componentTable(int fromMax, int toMax, int toShift) {
+    int[] table = new int[fromMax + 1];
+    for (int i = 1; i <= fromMax; i++)
+      table[i] = ((i * toMax + fromMax / 2) / fromMax) << toShift;
+    return table;
+  }
+
+  static final class Identity extends PixelConverter {
+    public int convert(int p) { return p; }
+
+    public void convertRect(int[] src, int srcPtr, int srcStride,
+                            int[] dst, int dstPtr, int dstStride,
+                            int w, int h) {
+      if (src == dst && srcPtr == dstPtr && srcStride == dstStride)
+        return;
+      for (int y = 0; y < h; y++) {
+        System.arraycopy(src, srcPtr, dst, dstPtr, w);
+        srcPtr += srcStride;
+        dstPtr += dstStride;
+      }
+    }
+
+    public boolean isIdentity() { return true; }
+  }
+
+  static final class Shift extends PixelConverter {
+    Shift(PixelFormat from, PixelFormat to) {
+      rs = from.redShift;
+      gs = from.greenShift;
+      bs = from.blueShift;
+      rd = to.redShift;
+      gd = to.greenShift;
+      bd = to.blueShift;
+    }
+
+    public int convert(int p) {
+      return (0xff000000 | ((p >>> rs) & 0xff) << rd |
+              ((p >>> gs) & 0xff) << gd | ((p >>> bs) & 0xff) << bd);
+    }
+
+    public void convertRect(int[] src, int srcPtr, int srcStride,
+                            int[] dst, int dstPtr, int dstStride,
+                            int w, int h) {
+      for (int y = 0; y < h; y++) {
+        int s = srcPtr + y * srcStride;
+        int d = dstPtr + y * dstStride;
+        int end = d + w;
+        while (d < end) {
+          int p = src[s++];
+          dst[d++] = (0xff000000 | ((p >>> rs) & 0xff) << rd |
+                      ((p >>> gs) & 0xff) << gd | ((p >>> bs) & 0xff) << bd);
+        }
+      }
+    }
+
+    private final int rs, gs, bs, rd, gd, bd;
+  }
+
+  static final class PixelTable extends PixelConverter {
+    PixelTable(PixelFormat from, PixelFormat to) {
+      int[] r = componentTable(from.redMax, to.redMax, to.redShift);
+      int[] g = componentTable(from.greenMax, to.greenMax, to.greenShift);
+      int[] b = componentTable(from.blueMax, to.blueMax, to.blueShift);
+      mask = (1 << from.bpp) - 1;
+      table = new int[mask + 1];
+      for (int p = 0; p <= mask; p++)
+        table[p] = (0xff000000 | r[(p >> from.redShift) & from.redMax] |
+                    g[(p >> from.greenShift) & from.greenMax] |
+                    b[(p >> from.blueShift) & from.blueMax]);
+    }
+
+    public int convert(int p) { return table[p & mask]; }
+
+    public void convertRect(int[] src, int srcPtr, int srcStride,
+                            int[] dst, int dstPtr, int dstStride,
+                            int w, int h) {
+      int[] t = table;
+      int m = mask;
+      for (int y = 0; y < h; y++) {
+        int s = srcPtr + y * srcStride;
+        int d = dstPtr + y * dstStride;
+        int end = d + w;
+        while (d < end)
+          dst[d++] = t[src[s++] & m];
+      }
+    }
+
+    private final int mask;
+    private final int[] table;
+  }
+
+  static final class ComponentTables extends PixelConverter {
+    ComponentTables(PixelFormat from, PixelFormat to) {
+      rs = from.redShift;
+      gs = from.greenShift;
+      bs = from.blueShift;
+      rm = from.redMax;
+      gm = from.greenMax;
+      bm = from.blueMax;
+      r = componentTable(rm, to.redMax, to.redShift);
+      g = componentTable(gm, to.greenMax, to.greenShift);
+      b = componentTable(bm, to.blueMax, to.blueShift);
+    }
+
+    public int convert(int p) {
+      return (0xff000000 | r[(p >>> rs) & rm] | g[(p >>> gs) & gm] |
+              b[(p >>> bs) & bm]);
+    }
+
+    public void convertRect(int[] src, int srcPtr, int srcStride,
+                            int[] dst, int dstPtr, int dstStride,
+                            int w, int h) {
+      int[] rt = r, gt = g, bt = b;
+      for (int y = 0; y < h; y++) {
+        int s = srcPtr + y * srcStride;
+        int d = dstPtr + y * dstStride;
+        int end = d + w;
+        while (d < end) {
+          int p = src[s++];
+          dst[d++] = (0xff000000 | rt[(p >>> rs) & rm] | gt[(p >>> gs) & gm] |
+                      bt[(p >>> bs) & bm]);
+        }
+      }
+    }
+
+    private final int rs, gs, bs, rm, gm, bm;
+    private final int[] r, g, b;
+  }
+}
@@ -139,43 +139,68 @@ public class PixelFormat {
     return 0;
   }
 
+  // bufferFromRGB() converts pixels given as 8-bit red, green and blue
+  // bytes to pixel values, with the top byte set like InStream.readPixel()
+  // does.  The values are the same whatever the byte order of the format.
+
   public void bufferFromRGB(int[] dst, int dstPtr, byte[] src,
                             int srcPtr, int pixels) {
     if (is888()) {
       // Optimised common case
       int r, g, b;
 
-      for (int i=srcPtr; i < pixels; i++) {
-        if (bigEndian) {
-          r = (src[3*i+0] & 0xff) << (24 - redShift);
-          g = (src[3*i+1] & 0xff) << (24 - greenShift);
-          b = (src[3*i+2] & 0xff) << (24 - blueShift);
-          dst[dstPtr+i] = r | g | b | 0xff;
-        } else {
-          r = (src[3*i+0] & 0xff) << redShift;
-          g = (src[3*i+1] & 0xff) << greenShift;
-          b = (src[3*i+2] & 0xff) << blueShift;
-          dst[dstPtr+i] = (0xff << 24) | r | g | b;
-        }
+      for (int i = 0; i < pixels; i++) {
+        r = (src[srcPtr++] & 0xff) << redShift;
+        g = (src[srcPtr++] & 0xff) << greenShift;
+        b = (src[srcPtr++] & 0xff) << blueShift;
+        dst[dstPtr++] = 0xff000000 | r | g | b;
       }
     } else {
-      // Generic code
-      int p, r, g, b;
-      int[] rgb = new int[4];
+      // Generic code, with the scaled components looked up
+      RGBTables t = getRGBTables();
+      int[] r = t.red, g = t.green, b = t.blue;
+
+      for (int i = 0; i < pixels; i++) {
+        dst[dstPtr++] = 0xff000000 | r[src[srcPtr++] & 0xff] |
+                        g[src[srcPtr++] & 0xff] | b[src[srcPtr++] & 0xff];
+      }
+    }
+  }
 
-      int i = srcPtr; int j = dstPtr;
-      while (i < pixels) {
-        r = src[i++] & 0xff;
-        g = src[i++] & 0xff;
-        b = src[i++] & 0xff;
+  // RGBTables hold the pixel value bits for every 8-bit colour component.
+  // The fields are public, so the tables remember which format they were
+  // made for and are made again if it has changed.
+
+  static final class RGBTables {
+    RGBTables(PixelFormat pf) {
+      redMax = pf.redMax;
+      greenMax = pf.greenMax;
+      blueMax = pf.blueMax;
+      redShift = pf.redShift;
+      greenShift = pf.greenShift;
+      blueShift = pf.blueShift;
+      red = PixelConverter.componentTable(255, redMax, redShift);
+      green = PixelConverter.componentTable(255, greenMax, greenShift);
+      blue = PixelConverter.componentTable(255, blueMax, blueShift);
+    }
 
-        //p = pixelFromRGB(r, g, b, cm);
-        p = ColorModel.getRGBdefault().getDataElement(new int[] {0xff, r, g, b}, 0);
+    boolean matches(PixelFormat pf) {
+      return (redMax == pf.redMax && greenMax == pf.greenMax &&
+              blueMax == pf.blueMax && redShift == pf.redShift &&
+              greenShift == pf.greenShift && blueShift == pf.blueShift);
+    }
 
-        bufferFromPixel(dst, j, p);
-        j += bpp/8;
-      }
+    final int redMax, greenMax, blueMax, redShift, greenShift, blueShift;
+    final int[] red, green, blue;
+  }
+
+  private RGBTables getRGBTables() {
+    RGBTables t = rgbTables;
+    if (t == null || !t.matches(this)) {
+      t = new RGBTables(this);
+      rgbTables = t;
     }
+    return t;
   }
 
   public void rgbFromBuffer(byte[] dst, int dstPtr, byte[] src, int srcPtr, int pixels, ColorModel cm)
@@ -301,4 +326,6 @@ public class PixelFormat {
   public int redShift;
   public int greenShift;
   public int blueShift;
+
+  private RGBTables rgbTables;
 }
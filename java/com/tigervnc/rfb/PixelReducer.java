@@ -0,0 +1,211 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// PixelReducer maps rects of the desktop onto a framebuffer that is 1/2,
+// 1/4 or 1/8 of its size in each direction, so that a viewer showing a
+// desktop as a small tile doesn't have to keep every pixel of it.
+//
+// Each pixel of the reduced framebuffer is a block of desktop pixels.
+// reduceImage() stores the average of the pixels of a rect that fall in
+// each block (a box filter).  The framebuffer doesn't keep the pixels it
+// is reduced from, so a block that a rect only partly covers gets the
+// average of that part.  Servers mostly send rects made of 16 or 64 pixel
+// tiles, so blocks are usually covered by a single rect anyway.  Colour
+// map pixels can't be averaged, so the top left pixel of each block is
+// used instead.
+//
+// reduceImage() can be called from several decoder threads at once.
+//
+
+package com.tigervnc.rfb;
+
+public class PixelReducer {
+
+  // shift_ is 1, 2 or 3 for 1/2, 1/4 or 1/8 of the size
+  public PixelReducer(int shift_) {
+    if (shift_ < 1 || shift_ > 3)
+      throw new Exception("PixelReducer: can only reduce to 1/2, 1/4 or 1/8");
+    shift = shift_;
+  }
+
+  public final int getShift() { return shift; }
+
+  // reduce() gives the size of the reduced framebuffer for a desktop of w
+  // or h pixels, or the position of desktop coordinate x.
+
+  public final int reduce(int x) {
+    return (x + (1 << shift) - 1) >> shift;
+  }
+
+  // reduce() gives the reduced rect of every block r touches
+  public final Rect reduce(Rect r) {
+    return new Rect(r.tl.x >> shift, r.tl.y >> shift,
+                    reduce(r.br.x), reduce(r.br.y));
+  }
+
+  // reduceCopy() maps a copy of r from srcX,srcY onto a reduced
+  // framebuffer of fbWidth x fbHeight.  It returns the reduced destination
+  // rect and sets src to where it is copied from, or returns null if none
+  // of it is inside the framebuffer.  A copy whose offset isn't a multiple
+  // of the block size moves whole blocks by the nearest whole number of
+  // them.
+
+  public Rect reduceCopy(Rect r, int srcX, int srcY, int fbWidth,
+                         int fbHeight, Point src)
+  {
+    int half = 1 << (shift - 1);
+    int dx = (r.tl.x - srcX + half) >> shift;
+    int dy = (r.tl.y - srcY + half) >> shift;
+    Rect fb = new Rect(0, 0, fbWidth, fbHeight);
+    Rect from = reduce(r).intersect(fb).translate(new Point(-dx, -dy));
+    from = from.intersect(fb);
+    if (from.is_empty())
+      return null;
+    src.x = from.tl.x;
+    src.y = from.tl.y;
+    return from.translate(new Point(dx, dy));
+  }
+
+  // reduceImage() reduces the pixels of r, w x h of them in pix, to the
+  // pixels of reduce(r).  The result is only valid until the next call on
+  // the same thread.
+
+  public int[] reduceImage(Rect r, int[] pix, PixelFormat pf)
+  {
+    int x1 = r.tl.x, y1 = r.tl.y, x2 = r.br.x, y2 = r.br.y;
+    int w = x2 - x1;
+    int rx1 = x1 >> shift, ry1 = y1 >> shift;
+    int rw = reduce(x2) - rx1, rh = reduce(y2) - ry1;
+
+    Scratch s = scratch.get();
+    if (s == null) {
+      s = new Scratch();
+      scratch.set(s);
+    }
+    int[] out = s.getOut(rw * rh);
+
+    if (!pf.trueColour) {
+      for (int ry = 0; ry < rh; ry++) {
+        int sy = Math.max((ry1 + ry) << shift, y1) - y1;
+        for (int rx = 0; rx < rw; rx++) {
+          int sx = Math.max((rx1 + rx) << shift, x1) - x1;
+          out[ry * rw + rx] = pix[sy * w + sx];
+        }
+      }
+      return out;
+    }
+
+    int rs = pf.redShift, gs = pf.greenShift, bs = pf.blueShift;
+    int rm = pf.redMax, gm = pf.greenMax, bm = pf.blueMax;
+    int[] red = s.getSums(0, rw), green = s.getSums(1, rw),
+      blue = s.getSums(2, rw);
+    boolean packed = (pf.is888() && gs == 8 && (rs ^ bs) == 16 &&
+                      (rs | bs) == 16);
+
+    for (int ry = 0; ry < rh; ry++) {
+      int top = Math.max((ry1 + ry) << shift, y1);
+      int bottom = Math.min((ry1 + ry + 1) << shift, y2);
+
+      for (int i = 0; i < rw; i++)
+        red[i] = green[i] = blue[i] = 0;
+
+      if (packed) {
+        // The red and blue sums of up to 64 pixels fit side by side in an
+        // int, as they are 16 bits apart
+        for (int y = top; y < bottom; y++) {
+          int ptr = (y - y1) * w;
+          for (int x = x1, rx = 0; x < x2; rx++) {
+            int end = Math.min((rx1 + rx + 1) << shift, x2);
+            int rb = 0, g = 0;
+            for (; x < end; x++) {
+              int p = pix[ptr++];
+              rb += p & 0xff00ff;
+              g += p & 0xff00;
+            }
+            red[rx] += rb;
+            green[rx] += g;
+          }
+        }
+        for (int i = 0; i < rw; i++) {
+          int rb = red[i];
+          red[i] = (rb >> rs) & 0x3fff;
+          green[i] >>= 8;
+          blue[i] = (rb >> bs) & 0x3fff;
+        }
+      } else {
+        for (int y = top; y < bottom; y++) {
+          int ptr = (y - y1) * w;
+          for (int x = x1, rx = 0; x < x2; rx++) {
+            int end = Math.min((rx1 + rx + 1) << shift, x2);
+            int r_ = 0, g_ = 0, b_ = 0;
+            for (; x < end; x++) {
+              int p = pix[ptr++];
+              r_ += (p >> rs) & rm;
+              g_ += (p >> gs) & gm;
+              b_ += (p >> bs) & bm;
+            }
+            red[rx] += r_;
+            green[rx] += g_;
+            blue[rx] += b_;
+          }
+        }
+      }
+
+      // Whole blocks, which are most of them, can be divided with a shift
+      int x = x1;
+      for (int rx = 0; rx < rw; rx++) {
+        int end = Math.min((rx1 + rx + 1) << shift, x2);
+        int n = (end - x) * (bottom - top);
+        x = end;
+        int r_, g_, b_;
+        if (n == 1 << (shift * 2)) {
+          r_ = (red[rx] + n / 2) >> (shift * 2);
+          g_ = (green[rx] + n / 2) >> (shift * 2);
+          b_ = (blue[rx] + n / 2) >> (shift * 2);
+        } else {
+          r_ = (red[rx] + n / 2) / n;
+          g_ = (green[rx] + n / 2) / n;
+          b_ = (blue[rx] + n / 2) / n;
+        }
+        out[ry * rw + rx] = 0xff000000 | r_ << rs | g_ << gs | b_ << bs;
+      }
+    }
+    return out;
+  }
+
+  static final class Scratch {
+    int[] getOut(int size) {
+      if (out == null || out.length < size)
+        out = new int[size];
+      return out;
+    }
+
+    int[] getSums(int i, int size) {
+      if (sums[i] == null || sums[i].length < size)
+        sums[i] = new int[size];
+      return sums[i];
+    }
+
+    int[] out;
+    int[][] sums = new int[3][];
+  }
+
+  private final int shift;
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>();
+}
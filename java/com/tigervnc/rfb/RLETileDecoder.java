@@ -0,0 +1,352 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// RLETileDecoder decodes the tiles shared by the ZRLE and TRLE encodings.
+// ZRLE sends them through zlib in 64x64 tiles, TRLE sends them as they are
+// in 16x16 tiles.  Apart from that the format is the same, except that
+// TRLE can reuse the palette of the previous tile in a rect.
+//
+// An RLETileDecoder keeps the palette between tiles, so it must only be
+// used by one thread at a time.
+//
+
+package com.tigervnc.rfb;
+
+import com.tigervnc.rdr.*;
+
+public class RLETileDecoder {
+
+  public RLETileDecoder(CMsgReader reader_) {
+    reader = reader_;
+  }
+
+  // decodeRect() decodes the tiles of a rect from the given stream.  If
+  // the handler lets us at the framebuffer, the tiles are written straight
+  // into it and the whole rect is committed at the end.  Otherwise each
+  // tile is decoded into a buffer and handed to imageRect().
+
+  public void decodeRect(Rect r, InStream in, int tileSize,
+                         CMsgHandler handler) {
+    int bpp = handler.cp.pf().bpp;
+    int bytesPerPixel = (bpp > 24 ? 3 : bpp / 8);
+    boolean bigEndian = handler.cp.pf().bigEndian;
+
+    int[] fb = handler.getBufferRW(r, stride);
+    Rect t = tile;
+    palSize = 0;
+
+    try {
+      for (t.tl.y = r.tl.y; t.tl.y < r.br.y; t.tl.y += tileSize) {
+
+        t.br.y = Math.min(r.br.y, t.tl.y + tileSize);
+
+        for (t.tl.x = r.tl.x; t.tl.x < r.br.x; t.tl.x += tileSize) {
+
+          t.br.x = Math.min(r.br.x, t.tl.x + tileSize);
+
+          int mode = in.readU8();
+          boolean rle = (mode & 128) != 0;
+
+          // ZRLE never sends 127 or 129, in TRLE they reuse the palette
+          if (mode != 127 && mode != 129) {
+            palSize = mode & 127;
+            in.readPixels(palette, palSize, bytesPerPixel, bigEndian);
+          }
+
+          if (palSize == 1 && fb == null) {
+            handler.fillRect(t, palette[0]);
+            continue;
+          }
+
+          int[] buf;
+          int ptr, bufStride;
+          if (fb != null) {
+            buf = fb;
+            bufStride = stride[0];
+            ptr = t.tl.y * bufStride + t.tl.x;
+          } else {
+            buf = reader.getImageBuf(tileSize * tileSize);
+            bufStride = t.width();
+            ptr = 0;
+          }
+
+          if (palSize == 1) {
+            fillTile(buf, ptr, bufStride, t.width(), t.height(), palette[0]);
+          } else if (!rle) {
+            if (palSize == 0) {
+              for (int y = 0; y < t.height(); y++) {
+                in.readPixels(buf, ptr, t.width(), bytesPerPixel, bigEndian);
+                ptr += bufStride;
+              }
+            } else {
+              readPackedTile(in, buf, ptr, bufStride, t.width(), t.height(),
+                             palSize);
+            }
+          } else {
+            if (palSize == 0) {
+              readPlainRLETile(in, buf, ptr, bufStride, t.width(), t.height(),
+                               bytesPerPixel, bigEndian);
+            } else {
+              readPaletteRLETile(in, buf, ptr, bufStride, t.width(),
+                                 t.height());
+            }
+          }
+
+          if (fb == null)
+            handler.imageRect(t, buf);
+        }
+      }
+    } finally {
+      if (fb != null)
+        handler.commitBufferRW(r);
+    }
+  }
+
+  // copyRect() copies the tiles of a rect from is to os without decoding
+  // them.  It is needed when the length of the data isn't sent up front.
+
+  public static void copyRect(Rect r, InStream is, OutStream os,
+                              int tileSize, int bytesPerPixel)
+  {
+    int palSize = 0;
+
+    for (int y = r.tl.y; y < r.br.y; y += tileSize) {
+      int h = Math.min(r.br.y, y + tileSize) - y;
+
+      for (int x = r.tl.x; x < r.br.x; x += tileSize) {
+        int w = Math.min(r.br.x, x + tileSize) - x;
+
+        int mode = is.readU8();
+        os.writeU8(mode);
+        boolean rle = (mode & 128) != 0;
+
+        if (mode != 127 && mode != 129) {
+          palSize = mode & 127;
+          os.copyBytes(is, palSize * bytesPerPixel);
+        }
+
+        if (palSize == 1)
+          continue;
+
+        if (!rle) {
+          if (palSize == 0) {
+            os.copyBytes(is, w * h * bytesPerPixel);
+          } else {
+            int bppp = ((palSize > 16) ? 8 :
+                        ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
+            os.copyBytes(is, h * ((w * bppp + 7) / 8));
+          }
+          continue;
+        }
+
+        int left = w * h;
+        while (left > 0) {
+          int len = 1;
+          boolean run = true;
+          if (palSize == 0) {
+            os.copyBytes(is, bytesPerPixel);
+          } else {
+            int index = is.readU8();
+            os.writeU8(index);
+            run = (index & 128) != 0;
+          }
+          if (run) {
+            int b;
+            do {
+              b = is.readU8();
+              os.writeU8(b);
+              len += b;
+            } while (b == 255);
+          }
+          if (!(len <= left))
+            throw new Exception("RLETileDecoder: assertion (len <= end - ptr)"
+                                +" failed");
+          left -= len;
+        }
+      }
+    }
+  }
+
+  static void fillTile(int[] buf, int ptr, int stride, int w, int h, int pix)
+  {
+    for (int y = 0; y < h; y++) {
+      java.util.Arrays.fill(buf, ptr, ptr + w, pix);
+      ptr += stride;
+    }
+  }
+
+  // The loops below work directly on the stream's buffer rather than going
+  // through readU8() and readPixel() for every byte.
+
+  void readPackedTile(InStream in, int[] buf, int ptr, int stride,
+                      int w, int h, int palSize)
+  {
+    int bppp = ((palSize > 16) ? 8 :
+                ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
+    int mask = ((1 << bppp) - 1) & 127;
+    int rowBytes = (w * bppp + 7) / 8;
+    int[] pal = palette;
+
+    for (int y = 0; y < h; y++) {
+      in.check(rowBytes);
+      byte[] data = in.getbuf();
+      int p = in.getptr();
+      int dst = ptr;
+      int eol = ptr + w;
+
+      while (dst < eol) {
+        int b = data[p++] & 0xff;
+        for (int nbits = 8 - bppp; nbits >= 0 && dst < eol; nbits -= bppp)
+          buf[dst++] = pal[(b >> nbits) & mask];
+      }
+
+      in.setptr(p);
+      ptr += stride;
+    }
+  }
+
+  void readPlainRLETile(InStream in, int[] buf, int ptr, int stride,
+                        int w, int h, int bytesPerPixel, boolean bigEndian)
+  {
+    int left = w * h;
+    int x = 0;
+
+    while (left > 0) {
+      in.check(bytesPerPixel + 1);
+      byte[] data = in.getbuf();
+      int p = in.getptr();
+      int end = in.getend();
+
+      int pix = pixelAt(data, p, bytesPerPixel, bigEndian);
+      p += bytesPerPixel;
+
+      int len = 1;
+      int b;
+      do {
+        if (p == end) {
+          in.setptr(p);
+          in.check(1);
+          data = in.getbuf();
+          p = in.getptr();
+          end = in.getend();
+        }
+        b = data[p++] & 0xff;
+        len += b;
+      } while (b == 255);
+      in.setptr(p);
+
+      if (!(len <= left))
+        throw new Exception("RLETileDecoder: assertion (len <= end - ptr)"
+                            +" failed");
+
+      left -= len;
+      while (len > 0) {
+        int n = Math.min(len, w - x);
+        for (int i = ptr + x; i < ptr + x + n; i++)
+          buf[i] = pix;
+        len -= n;
+        x += n;
+        if (x == w) {
+          x = 0;
+          ptr += stride;
+        }
+      }
+    }
+  }
+
+  void readPaletteRLETile(InStream in, int[] buf, int ptr, int stride,
+                          int w, int h)
+  {
+    int[] pal = palette;
+    int left = w * h;
+    int x = 0;
+
+    while (left > 0) {
+      in.check(1);
+      byte[] data = in.getbuf();
+      int p = in.getptr();
+      int end = in.getend();
+
+      int index = data[p++] & 0xff;
+      int len = 1;
+      if ((index & 128) != 0) {
+        int b;
+        do {
+          if (p == end) {
+            in.setptr(p);
+            in.check(1);
+            data = in.getbuf();
+            p = in.getptr();
+            end = in.getend();
+          }
+          b = data[p++] & 0xff;
+          len += b;
+        } while (b == 255);
+
+        if (!(len <= left))
+          throw new Exception("RLETileDecoder: assertion "
+                              +"(len <= end - ptr) failed");
+      }
+      in.setptr(p);
+
+      int pix = pal[index & 127];
+
+      left -= len;
+      while (len > 0) {
+        int n = Math.min(len, w - x);
+        for (int i = ptr + x; i < ptr + x + n; i++)
+          buf[i] = pix;
+        len -= n;
+        x += n;
+        if (x == w) {
+          x = 0;
+          ptr += stride;
+        }
+      }
+    }
+  }
+
+  // pixelAt() reads a CPIXEL from a byte array, giving the same result as
+  // InStream.readPixel().
+
+  static int pixelAt(byte[] b, int p, int bytesPerPixel, boolean bigEndian)
+  {
+    switch (bytesPerPixel) {
+    case 1:
+      return 0xff000000 | (b[p] & 0xff);
+    case 2:
+      if (bigEndian)
+        return 0xff000000 | (b[p] & 0xff)<<8 | (b[p+1] & 0xff);
+      return 0xff000000 | (b[p+1] & 0xff)<<8 | (b[p] & 0xff);
+    case 3:
+      if (bigEndian)
+        return 0xff000000 | (b[p] & 0xff)<<16 | (b[p+1] & 0xff)<<8 |
+               (b[p+2] & 0xff);
+      return 0xff000000 | (b[p+2] & 0xff)<<16 | (b[p+1] & 0xff)<<8 |
+             (b[p] & 0xff);
+    }
+    throw new Exception("RLETileDecoder: invalid pixel size "+bytesPerPixel);
+  }
+
+  CMsgReader reader;
+  int[] palette = new int[128];
+  int palSize;
+  int[] stride = new int[1];
+  Rect tile = new Rect();
+}
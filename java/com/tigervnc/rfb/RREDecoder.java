@@ -22,10 +22,19 @@ import com.tigervnc.rdr.*;
 
 public class RREDecoder extends Decoder {
 
-  public RREDecoder(CMsgReader reader_) { reader = reader_; }
+  public RREDecoder(CMsgReader reader_) {
+    super(DecoderPlain);
+    reader = reader_;
+  }
+
+  public void readRect(Rect r, InStream is, ConnParams cp, OutStream os) {
+    int bytesPerPixel = cp.pf().bpp / 8;
+    int nSubrects = is.readU32();
+    os.writeU32(nSubrects);
+    os.copyBytes(is, bytesPerPixel + nSubrects * (bytesPerPixel + 8));
+  }
 
-  public void readRect(Rect r, CMsgHandler handler) {
-    InStream is = reader.getInStream();
+  public void decodeRect(Rect r, InStream is, CMsgHandler handler) {
     int bytesPerPixel = handler.cp.pf().bpp / 8;
     boolean bigEndian = handler.cp.pf().bigEndian;
     int nSubrects = is.readU32();
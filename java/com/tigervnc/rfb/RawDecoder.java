@@ -18,28 +18,68 @@
 
 package com.tigervnc.rfb;
 
+import com.tigervnc.rdr.*;
+
 public class RawDecoder extends Decoder {
 
-  public RawDecoder(CMsgReader reader_) { reader = reader_; }
+  public RawDecoder(CMsgReader reader_) {
+    super(DecoderPlain);
+    reader = reader_;
+  }
 
-  public void readRect(Rect r, CMsgHandler handler) {
+  public void readRect(Rect r, InStream is, ConnParams cp, OutStream os) {
+    os.copyBytes(is, r.area() * (cp.pf().bpp / 8));
+  }
+
+  public void decodeRect(Rect r, InStream is, CMsgHandler handler) {
     int x = r.tl.x;
     int y = r.tl.y;
     int w = r.width();
     int h = r.height();
-    int[] imageBuf = new int[w*h];
-    int nPixels = imageBuf.length;
-    int bytesPerRow = w * (reader.bpp() / 8);
+    int bytesPerPixel = handler.cp.pf().bpp / 8;
+    boolean bigEndian = handler.cp.pf().bigEndian;
+
+    // The pixels can be read straight into the framebuffer if the handler
+    // lets us, which needs no conversion at all if the server sends them
+    // in the layout of the framebuffer.
+    int[] stride = strides.get();
+    if (stride == null) {
+      stride = new int[1];
+      strides.set(stride);
+    }
+    int[] fb = handler.getBufferRW(r, stride);
+    if (fb != null) {
+      try {
+        int ptr = y * stride[0] + x;
+        if (stride[0] == w) {
+          is.readPixels(fb, ptr, w * h, bytesPerPixel, bigEndian);
+        } else {
+          for (int i = 0; i < h; i++, ptr += stride[0])
+            is.readPixels(fb, ptr, w, bytesPerPixel, bigEndian);
+        }
+      } finally {
+        handler.commitBufferRW(r);
+      }
+      return;
+    }
+
+    // Otherwise the rect is passed on in strips of up to stripRows rows,
+    // so that a handler which reduces the framebuffer gets whole blocks
+    int[] imageBuf = reader.getImageBuf(w * Math.min(h, stripRows));
+    int nRows = Math.min(imageBuf.length / w, h);
     while (h > 0) {
-      int nRows = nPixels / w;
       if (nRows > h) nRows = h;
-      reader.getInStream().readPixels(imageBuf, nPixels, (reader.bpp() / 8), handler.cp.pf().bigEndian);
+      is.readPixels(imageBuf, w * nRows, bytesPerPixel, bigEndian);
       handler.imageRect(new Rect(x, y, x+w, y+nRows), imageBuf);
       h -= nRows;
       y += nRows;
     }
   }
 
+  static final int stripRows = 64;
+
+  private final ThreadLocal<int[]> strides = new ThreadLocal<int[]>();
+
   CMsgReader reader;
   static LogWriter vlog = new LogWriter("RawDecoder");
 }
@@ -0,0 +1,390 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// Region - a set of pixels made up of rectangles, like rfb::Region in the
+// C++ code.
+//
+// The rectangles are kept in y-x banded order, as X11 regions are: they
+// are sorted by their top edge and then by their left edge, rectangles in
+// the same band have the same top and bottom, and never overlap or touch
+// horizontally.  Bands next to each other with the same rectangles are
+// merged.  So any set of pixels has exactly one representation, and two
+// regions can be compared rectangle by rectangle.
+//
+
+package com.tigervnc.rfb;
+
+import java.util.List;
+
+public class Region {
+
+  // Create an empty region
+  public Region() {
+    rects = new int[4];
+  }
+
+  // Create a rectangular region
+  public Region(Rect r) {
+    rects = new int[4];
+    reset(r);
+  }
+
+  public Region(Region r) {
+    rects = new int[Math.max(r.n, 1) * 4];
+    copyFrom(r);
+  }
+
+  // the following methods alter the region in place:
+
+  public void clear() {
+    n = 0;
+  }
+
+  public void reset(Rect r) {
+    n = 0;
+    if (r.is_empty())
+      return;
+    rects[0] = r.tl.x;
+    rects[1] = r.tl.y;
+    rects[2] = r.br.x;
+    rects[3] = r.br.y;
+    n = 1;
+  }
+
+  public void translate(Point delta) {
+    for (int i = 0; i < n * 4; i += 4) {
+      rects[i] += delta.x;
+      rects[i+1] += delta.y;
+      rects[i+2] += delta.x;
+      rects[i+3] += delta.y;
+    }
+  }
+
+  public void copyFrom(Region r) {
+    if (rects.length < r.n * 4)
+      rects = new int[r.n * 4];
+    System.arraycopy(r.rects, 0, rects, 0, r.n * 4);
+    n = r.n;
+  }
+
+  public void assign_intersect(Region r) {
+    op(this, r, INTERSECT, this);
+  }
+
+  public void assign_union(Region r) {
+    // The common case of adding a rect that is already covered, e.g.
+    // damage inside an area that was damaged before
+    if (r.n == 1 && n == 1 && encloses(0, r.rects, 0))
+      return;
+    op(this, r, UNION, this);
+  }
+
+  public void assign_subtract(Region r) {
+    op(this, r, SUBTRACT, this);
+  }
+
+  // the following three operations return a new region:
+
+  public Region intersect(Region r) {
+    return op(this, r, INTERSECT, new Region());
+  }
+
+  public Region union_(Region r) {
+    return op(this, r, UNION, new Region());
+  }
+
+  public Region subtract(Region r) {
+    return op(this, r, SUBTRACT, new Region());
+  }
+
+  public boolean equals(Region b) {
+    if (n != b.n)
+      return false;
+    for (int i = 0; i < n * 4; i++)
+      if (rects[i] != b.rects[i])
+        return false;
+    return true;
+  }
+
+  public int numRects() { return n; }
+
+  public boolean is_empty() { return n == 0; }
+
+  // area() is the number of pixels in the region
+  public long area() {
+    long area = 0;
+    for (int i = 0; i < n * 4; i += 4)
+      area += (long)(rects[i+2] - rects[i]) * (rects[i+3] - rects[i+1]);
+    return area;
+  }
+
+  // get_rects() adds the rectangles of the region to rects, in the order
+  // given.  If maxArea is more than zero, rectangles larger than that are
+  // split into strips of whole rows which are no larger, unless a single
+  // row is.  It returns false if the region is empty.
+
+  public boolean get_rects(List<Rect> rects_, boolean left2right,
+                           boolean topdown, int maxArea)
+  {
+    int nBands = 0;
+    for (int i = 0; i < n; i = bandEnd(i))
+      nBands++;
+
+    int[] bands = new int[nBands];
+    for (int i = 0, b = 0; i < n; i = bandEnd(i))
+      bands[b++] = i;
+
+    for (int b = 0; b < nBands; b++) {
+      int first = bands[topdown ? b : nBands - 1 - b];
+      int last = bandEnd(first) - 1;
+      for (int j = first; j <= last; j++) {
+        int i = (left2right ? j : first + last - j) * 4;
+        int x1 = rects[i], y1 = rects[i+1], x2 = rects[i+2], y2 = rects[i+3];
+        int rows = y2 - y1;
+        if (maxArea > 0)
+          rows = Math.max(1, Math.min(rows, maxArea / (x2 - x1)));
+        if (topdown) {
+          for (int y = y1; y < y2; y += rows)
+            rects_.add(new Rect(x1, y, x2, Math.min(y + rows, y2)));
+        } else {
+          for (int y = y2; y > y1; y -= rows)
+            rects_.add(new Rect(x1, Math.max(y - rows, y1), x2, y));
+        }
+      }
+    }
+    return n > 0;
+  }
+
+  public boolean get_rects(List<Rect> rects_) {
+    return get_rects(rects_, true, true, 0);
+  }
+
+  public Rect get_bounding_rect() {
+    if (n == 0)
+      return new Rect();
+    int x1 = rects[0], x2 = rects[2];
+    for (int i = 4; i < n * 4; i += 4) {
+      x1 = Math.min(x1, rects[i]);
+      x2 = Math.max(x2, rects[i+2]);
+    }
+    return new Rect(x1, rects[1], x2, rects[n*4-1]);
+  }
+
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    s.append(n).append(" rects");
+    for (int i = 0; i < n * 4; i += 4)
+      s.append(String.format(" [%d,%d-%d,%d]", rects[i], rects[i+1],
+                             rects[i+2], rects[i+3]));
+    return s.toString();
+  }
+
+  public void debug_print(String prefix) {
+    vlog.debug(prefix+" "+toString());
+  }
+
+  // bandEnd() is the index of the first rect after the band that rect i
+  // is in.
+
+  private int bandEnd(int i) {
+    int y1 = rects[i*4+1];
+    i++;
+    while (i < n && rects[i*4+1] == y1)
+      i++;
+    return i;
+  }
+
+  private boolean encloses(int i, int[] r, int j) {
+    return (rects[i] <= r[j] && rects[i+1] <= r[j+1] &&
+            rects[i+2] >= r[j+2] && rects[i+3] >= r[j+3]);
+  }
+
+  static final int UNION = 0;
+  static final int INTERSECT = 1;
+  static final int SUBTRACT = 2;
+
+  // op() combines a and b into result, which may be either of them.  It
+  // goes down both regions one band at a time: each y range in which
+  // neither region changes gives one band of the result, whose rects are
+  // the x ranges in which the operation is true.
+
+  private static Region op(Region a, Region b, int op, Region result)
+  {
+    if (op == INTERSECT && (a.n == 0 || b.n == 0)) {
+      result.n = 0;
+      return result;
+    }
+    if (b.n == 0 || (op != SUBTRACT && a.n == 0)) {
+      result.copyFrom(b.n == 0 ? a : b);
+      return result;
+    }
+
+    Builder out = new Builder(a.n + b.n);
+    int ia = 0, ib = 0;
+    int y = Math.min(a.rects[1], b.rects[1]);
+
+    while (ia < a.n || ib < b.n) {
+      int aTop = Integer.MAX_VALUE, aBot = 0, aEnd = ia;
+      int bTop = Integer.MAX_VALUE, bBot = 0, bEnd = ib;
+      if (ia < a.n) {
+        aTop = Math.max(a.rects[ia*4+1], y);
+        aBot = a.rects[ia*4+3];
+        aEnd = a.bandEnd(ia);
+      }
+      if (ib < b.n) {
+        bTop = Math.max(b.rects[ib*4+1], y);
+        bBot = b.rects[ib*4+3];
+        bEnd = b.bandEnd(ib);
+      }
+
+      int top = Math.min(aTop, bTop);
+      int bot;
+      boolean inA = (aTop == top), inB = (bTop == top);
+      if (inA && inB)
+        bot = Math.min(aBot, bBot);
+      else if (inA)
+        bot = Math.min(aBot, bTop);
+      else
+        bot = Math.min(bBot, aTop);
+
+      out.spans(a.rects, inA ? ia : aEnd, aEnd, b.rects, inB ? ib : bEnd,
+                bEnd, top, bot, op);
+
+      y = bot;
+      if (inA && aBot == bot)
+        ia = aEnd;
+      if (inB && bBot == bot)
+        ib = bEnd;
+
+      // Nothing more can be added once a is used up, unless this is a
+      // union, or once b is used up for an intersection
+      if ((ia == a.n && op != UNION) || (ib == b.n && op == INTERSECT))
+        break;
+    }
+
+    out.finish(result);
+    return result;
+  }
+
+  // Builder collects the rects of a region as op() produces them, band by
+  // band, merging each band into the one above if they have the same
+  // rects.
+
+  static final class Builder {
+    Builder(int size) {
+      rects = new int[Math.max(size, 4) * 4];
+      prevBand = -1;
+    }
+
+    // spans() adds the band top..bot with the x ranges that op() is true
+    // for, given the x ranges of a (rects a0 up to a1) and b (b0 to b1)
+    // in that band.
+
+    void spans(int[] ra, int a0, int a1, int[] rb, int b0, int b1,
+               int top, int bot, int op)
+    {
+      int bandStart = n;
+      boolean inA = false, inB = false, in = false;
+      int start = 0;
+      // Positions in the edge lists: even is a left edge, odd a right one
+      int ea = a0 * 2, eaEnd = a1 * 2;
+      int eb = b0 * 2, ebEnd = b1 * 2;
+
+      while (ea < eaEnd || eb < ebEnd) {
+        int xa = (ea < eaEnd) ? ra[(ea >> 1) * 4 + (ea & 1) * 2]
+                              : Integer.MAX_VALUE;
+        int xb = (eb < ebEnd) ? rb[(eb >> 1) * 4 + (eb & 1) * 2]
+                              : Integer.MAX_VALUE;
+        int x = Math.min(xa, xb);
+        if (xa == x) {
+          inA = (ea & 1) == 0;
+          ea++;
+        }
+        if (xb == x) {
+          inB = (eb & 1) == 0;
+          eb++;
+        }
+
+        boolean now;
+        if (op == UNION)
+          now = inA || inB;
+        else if (op == INTERSECT)
+          now = inA && inB;
+        else
+          now = inA && !inB;
+
+        if (now && !in) {
+          start = x;
+        } else if (!now && in) {
+          add(start, top, x, bot);
+        }
+        in = now;
+      }
+
+      if (n == bandStart)
+        return;
+
+      // Merge with the band above if it has the same x ranges
+      if (prevBand >= 0 && rects[prevBand*4+3] == top &&
+          n - bandStart == bandStart - prevBand) {
+        boolean same = true;
+        for (int i = 0; i < n - bandStart && same; i++) {
+          int p = (prevBand + i) * 4, q = (bandStart + i) * 4;
+          same = (rects[p] == rects[q] && rects[p+2] == rects[q+2]);
+        }
+        if (same) {
+          for (int i = prevBand; i < bandStart; i++)
+            rects[i*4+3] = bot;
+          n = bandStart;
+          return;
+        }
+      }
+      prevBand = bandStart;
+    }
+
+    void add(int x1, int y1, int x2, int y2) {
+      if (n * 4 == rects.length) {
+        int[] newRects = new int[rects.length * 2];
+        System.arraycopy(rects, 0, newRects, 0, n * 4);
+        rects = newRects;
+      }
+      int i = n * 4;
+      rects[i] = x1;
+      rects[i+1] = y1;
+      rects[i+2] = x2;
+      rects[i+3] = y2;
+      n++;
+    }
+
+    void finish(Region r) {
+      r.rects = rects;
+      r.n = n;
+    }
+
+    int[] rects;
+    int n;
+    int prevBand;
+  }
+
+  // x1, y1, x2, y2 of each rect
+  private int[] rects;
+  private int n;
+
+  static LogWriter vlog = new LogWriter("Region");
+}
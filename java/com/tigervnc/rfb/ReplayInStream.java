@@ -0,0 +1,230 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// A ReplayInStream reads the server data of a session recorded by
+// SessionRecorder.  The data can be delivered as fast as it is read, or
+// paced according to the timestamps in the recording.
+//
+
+package com.tigervnc.rfb;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.LinkedList;
+
+import com.tigervnc.rdr.*;
+
+public class ReplayInStream extends InStream {
+
+  static final int defaultBufSize = 16384;
+
+  public ReplayInStream(InputStream in_, boolean realTime_) throws IOException
+  {
+    pushback = new PushbackInputStream(in_, 1);
+    in = new DataInputStream(pushback);
+    realTime = realTime_;
+    bufSize = defaultBufSize;
+    b = new byte[bufSize];
+    ptr = end = 0;
+    offset = 0;
+    pfChanges = new LinkedList<PixelFormatChange>();
+
+    byte[] header = new byte[SessionRecorder.magic.length];
+    in.readFully(header);
+    for (int i = 0; i < header.length; i++) {
+      if (header[i] != SessionRecorder.magic[i])
+        throw new Exception("Not a session recording");
+    }
+    version = in.readUnsignedShort();
+    if (version < 1 || version > SessionRecorder.formatVersion)
+      throw new Exception("Unsupported session recording version "+version);
+    majorVersion = in.readUnsignedShort();
+    minorVersion = in.readUnsignedShort();
+  }
+
+  public final int majorVersion() { return majorVersion; }
+  public final int minorVersion() { return minorVersion; }
+
+  public final int pos() { return (int)(offset + ptr); }
+
+  // position() is pos() without wrapping at 2GB, for recordings larger
+  // than that.
+
+  public final long position() { return offset + ptr; }
+
+  // timestamp() returns the time, in microseconds from the start of the
+  // recording, at which the last data read was received.
+
+  public final long timestamp() { return timestamp; }
+
+  // nextPixelFormat() returns the pixel format the client switched to at or
+  // before the current position, or null if there was no switch.  Call it
+  // between messages and keep calling it until it returns null.
+
+  public PixelFormat nextPixelFormat() {
+    if (pfChanges.isEmpty())
+      return null;
+    PixelFormatChange change = pfChanges.getFirst();
+    if (change.pos > offset + ptr)
+      return null;
+    pfChanges.removeFirst();
+    return change.pf;
+  }
+
+  protected int overrun(int itemSize, int nItems, boolean wait)
+  {
+    if (itemSize > bufSize)
+      throw new Exception("ReplayInStream overrun: max itemSize exceeded");
+
+    if (end - ptr != 0)
+      System.arraycopy(b, ptr, b, 0, end - ptr);
+
+    offset += ptr;
+    end -= ptr;
+    ptr = 0;
+
+    try {
+      while (end < itemSize) {
+        if (recordLeft == 0) {
+          readRecordHeader();
+          continue;
+        }
+
+        int n = Math.min(recordLeft, bufSize - end);
+        in.readFully(b, end, n);
+        end += n;
+        recordLeft -= n;
+        if (recordLeft == 0)
+          readChanges();
+      }
+    } catch (EOFException e) {
+      // Only a partial item left at the end of the recording
+      throw new EndOfStream();
+    } catch (IOException e) {
+      throw new Exception("Error reading session recording: "+
+                          e.getMessage());
+    }
+
+    if (itemSize * nItems > end - ptr)
+      nItems = (end - ptr) / itemSize;
+
+    return nItems;
+  }
+
+  // readChanges() reads any records after the current data record which
+  // don't hold server data, so that a pixel format change at the end of
+  // the data that has been read is known about before it is reached.
+
+  private void readChanges() throws IOException
+  {
+    while (true) {
+      int type = pushback.read();
+      if (type == -1)
+        return;
+      pushback.unread(type);
+      if (type == SessionRecorder.recordTypeData)
+        return;
+      readRecordHeader();
+    }
+  }
+
+  // readRecordHeader() reads the next record header, dealing with any
+  // records that don't hold server data.
+
+  private void readRecordHeader() throws IOException
+  {
+    int type;
+    try {
+      type = in.readUnsignedByte();
+    } catch (EOFException e) {
+      throw new EndOfStream();
+    }
+
+    long time = in.readLong();
+    int length = in.readInt();
+
+    switch (type) {
+    case SessionRecorder.recordTypeData:
+      timestamp = time;
+      if (realTime)
+        waitUntil(timestamp);
+      recordLeft = length;
+      break;
+    case SessionRecorder.recordTypePixelFormat:
+      {
+        byte[] data = new byte[length];
+        in.readFully(data);
+        MemInStream memStream = new MemInStream(data, 0, length);
+        PixelFormatChange change = new PixelFormatChange();
+        if (version == 1)
+          change.pos = memStream.readU32() & 0xffffffffL;
+        else
+          change.pos = ((long)memStream.readU32() << 32 |
+                        (memStream.readU32() & 0xffffffffL));
+        change.pf = new PixelFormat();
+        change.pf.read(memStream);
+        pfChanges.add(change);
+      }
+      break;
+    default:
+      vlog.debug("Skipping unknown record type "+type);
+      in.skipBytes(length);
+      break;
+    }
+  }
+
+  private void waitUntil(long timestamp)
+  {
+    long now = System.nanoTime();
+    if (startTime == 0)
+      startTime = now - timestamp * 1000;
+
+    long delay = (startTime + timestamp * 1000 - now) / 1000000;
+    if (delay <= 0)
+      return;
+
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      throw new Exception(e.getMessage());
+    }
+  }
+
+  static class PixelFormatChange {
+    long pos;
+    PixelFormat pf;
+  }
+
+  private PushbackInputStream pushback;
+  private DataInputStream in;
+  private boolean realTime;
+  private int bufSize;
+  private long offset;
+  private int recordLeft;
+  private long timestamp;
+  private long startTime;
+  private int version;
+  private int majorVersion, minorVersion;
+  private LinkedList<PixelFormatChange> pfChanges;
+
+  static LogWriter vlog = new LogWriter("ReplayInStream");
+}
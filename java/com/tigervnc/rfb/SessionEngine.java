@@ -0,0 +1,483 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// SessionEngine - runs many client connections without a thread for each.
+// One selector thread does all of the network I/O, and the messages which
+// arrive are processed by a fixed number of worker threads, so hundreds of
+// desktops can be watched from one JVM with a handful of threads.
+//
+// Each connection is a CConnection, and is driven the way the viewer's own
+// thread drives one: processMsg() is called over and over, and it calls
+// the handler methods as messages arrive.  The difference is that it reads
+// from a NonBlockingInStream.  When a message hasn't all arrived yet the
+// stream throws WouldBlock, the engine rewinds it to the start of the
+// message and the worker moves on to other connections.  The message is
+// parsed again once more data is in.  Nothing may act on a message before
+// all of it has been read for this to work, so the reader is made to read
+// the whole of each rect before decoding it.
+//
+// A connection is only processed by one worker at a time, so its handler
+// methods are called in order and never at the same time.  Its writer can
+// be used from other threads as usual.  The handler methods shouldn't
+// block, as that holds up a worker.  Decoding is done by the workers as
+// well, so DecodeThreads should be left at 1.  Security types which use TLS
+// need a blocking stream and can't be used, and neither can setRecorder(),
+// which would record rewound data twice.
+//
+// The viewer itself doesn't use SessionEngine, not even in listen mode, so
+// each of its connections still has a thread of its own (see the
+// VirtualThreads parameter for making those cheap).  CConn blocks on its
+// connection's thread: it asks for the password and shows other modal
+// dialogs from the handler methods, connects with a blocking TcpSocket,
+// and offers the TLS security types by default.  perf.LoadGen is a client
+// that does run on SessionEngine, and perf.StandInServer, which sends
+// updates in pieces of all sizes, can be used to try it out.
+//
+
+package com.tigervnc.rfb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.tigervnc.rdr.*;
+
+public class SessionEngine {
+
+  // How many messages a connection may process before the worker moves on
+  // to the other connections which are waiting
+  static final int maxMsgsPerTurn = 64;
+
+  public SessionEngine(int nWorkers)
+  {
+    try {
+      selector = Selector.open();
+    } catch (IOException e) {
+      throw new Exception(e.getMessage());
+    }
+
+    vlog.info("Using "+nWorkers+" worker thread(s)");
+
+    sessions = new HashSet<Session>();
+    runQueue = new LinkedList<Session>();
+    interestChanges = new ArrayList<Session>();
+
+    workers = new ArrayList<WorkerThread>();
+    for (int i = 0; i < nWorkers; i++) {
+      WorkerThread worker = new WorkerThread("SessionWorker-"+i);
+      workers.add(worker);
+      worker.start();
+    }
+
+    selectorThread = new SelectorThread();
+    selectorThread.start();
+  }
+
+  public SessionEngine() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  // connect() starts connecting to host:port and returns the session.
+  // From then on the connection's handler methods are called on the worker
+  // threads.
+
+  public Session connect(CConnection cc, String host, int port)
+  {
+    SocketChannel channel;
+    try {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      channel.connect(new InetSocketAddress(host, port));
+    } catch (IOException e) {
+      throw new Exception("Unable to connect to "+host+"::"+port+": "+
+                          e.getMessage());
+    }
+    cc.setServerName(host);
+    cc.setServerPort(port);
+    return add(cc, channel);
+  }
+
+  // add() takes over a channel which is connected or connecting, e.g. one
+  // accepted in listen mode.
+
+  public Session add(CConnection cc, SocketChannel channel)
+  {
+    Session session = new Session(cc, channel);
+    synchronized (this) {
+      if (stopRequested)
+        throw new Exception("SessionEngine has been closed");
+      sessions.add(session);
+    }
+    vlog.debug("Added connection to "+session.getName());
+    updateInterest(session);
+    return session;
+  }
+
+  public synchronized int getSessionCount() { return sessions.size(); }
+
+  // close() closes every session and stops the threads once they have
+  // finished with them.
+
+  public void close()
+  {
+    ArrayList<Session> all;
+    synchronized (this) {
+      all = new ArrayList<Session>(sessions);
+    }
+    for (Iterator<Session> i = all.iterator(); i.hasNext(); )
+      close(i.next(), null);
+
+    synchronized (this) {
+      stopRequested = true;
+      notifyAll();
+    }
+    selector.wakeup();
+  }
+
+  // sessionClosed() is called on a worker thread once a session has been
+  // closed.  reason is what closed it, or null if close() was called.
+
+  public void sessionClosed(Session session, java.lang.Exception reason) {}
+
+  void close(Session session, java.lang.Exception reason)
+  {
+    synchronized (this) {
+      if (session.closed)
+        return;
+      session.closed = true;
+      session.closeReason = reason;
+      sessions.remove(session);
+      // A worker tidies up the connection
+      if (!session.scheduled) {
+        session.scheduled = true;
+        runQueue.add(session);
+        notify();
+      }
+    }
+    try {
+      session.channel.close();
+    } catch (IOException e) { }
+  }
+
+  // schedule() queues a session for a worker if it isn't already queued or
+  // being processed, and there is something for it to do.
+
+  void schedule(Session session)
+  {
+    synchronized (this) {
+      if (session.scheduled || session.finished)
+        return;
+      if (!session.closed && !session.is.isReady())
+        return;
+      session.scheduled = true;
+      runQueue.add(session);
+      notify();
+    }
+  }
+
+  // updateInterest() has the selector thread check which events it should
+  // wait for on a session's channel.  Only that thread changes them, as
+  // doing it while it is in select() can block.
+
+  void updateInterest(Session session)
+  {
+    synchronized (interestChanges) {
+      interestChanges.add(session);
+    }
+    selector.wakeup();
+  }
+
+  public class Session {
+
+    Session(CConnection cc_, SocketChannel channel_)
+    {
+      cc = cc_;
+      channel = channel_;
+      try {
+        channel.configureBlocking(false);
+      } catch (IOException e) {
+        throw new Exception(e.getMessage());
+      }
+      is = new NonBlockingInStream();
+      os = new SessionOutStream(this);
+      cc.setStreams(is, os);
+      cc.initialiseProtocol();
+    }
+
+    public CConnection getConnection() { return cc; }
+
+    public String getName() {
+      if (cc.getServerName() != null)
+        return cc.getServerName()+"::"+cc.getServerPort();
+      return String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    public boolean isClosed() {
+      synchronized (SessionEngine.this) {
+        return closed;
+      }
+    }
+
+    public void close() { SessionEngine.this.close(this, null); }
+
+    // interestOps() gives the events to wait for on the channel
+    int interestOps() {
+      if (isClosed())
+        return 0;
+      if (channel.isConnectionPending())
+        return SelectionKey.OP_CONNECT;
+      int ops = 0;
+      if (!is.isFull())
+        ops |= SelectionKey.OP_READ;
+      if (os.hasPending())
+        ops |= SelectionKey.OP_WRITE;
+      return ops;
+    }
+
+    // process() handles the messages that have arrived, up to
+    // maxMsgsPerTurn of them.
+
+    void process()
+    {
+      for (int i = 0; i < maxMsgsPerTurn && !isClosed(); i++) {
+        try {
+          int pos = is.pos();
+          int state = cc.state();
+          int written = os.length();
+          try {
+            cc.processMsg();
+          } catch (WouldBlock e) {
+            is.rewind();
+            break;
+          }
+
+          // Some states wait for data with checkNoWait() rather than
+          // reading it, and return without having done anything
+          if (is.pos() == pos && cc.state() == state &&
+              os.length() == written)
+            break;
+
+          is.mark();
+          if (!readerSetUp && cc.reader() != null) {
+            cc.reader().setReadWholeRects(true);
+            readerSetUp = true;
+          }
+        } catch (java.lang.Exception e) {
+          SessionEngine.this.close(this, e);
+        }
+      }
+
+      if (isClosed())
+        finish();
+    }
+
+    private void finish()
+    {
+      if (cc.reader() != null)
+        cc.reader().close();
+
+      if (closeReason == null)
+        vlog.info("Closed connection to "+getName());
+      else if (closeReason instanceof EndOfStream)
+        vlog.info("Connection to "+getName()+" closed by the server");
+      else
+        vlog.error("Connection to "+getName()+" failed: "+
+                   closeReason.getMessage());
+
+      synchronized (SessionEngine.this) {
+        finished = true;
+      }
+      sessionClosed(this, closeReason);
+    }
+
+    final CConnection cc;
+    final SocketChannel channel;
+    final NonBlockingInStream is;
+    final SessionOutStream os;
+
+    // The following are guarded by the engine's lock
+    boolean scheduled;
+    boolean closed;
+    boolean finished;
+    java.lang.Exception closeReason;
+
+    volatile boolean readPaused;
+    private boolean readerSetUp;
+  }
+
+  // SessionOutStream has the selector thread send whatever a flush()
+  // couldn't.
+
+  class SessionOutStream extends NonBlockingOutStream {
+    SessionOutStream(Session session_) {
+      super(session_.channel);
+      session = session_;
+    }
+
+    public void flush() {
+      super.flush();
+      if (hasPending())
+        updateInterest(session);
+    }
+
+    private final Session session;
+  }
+
+  class WorkerThread extends Thread {
+
+    public WorkerThread(String name) {
+      super(name);
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      while (true) {
+        Session session;
+
+        synchronized (SessionEngine.this) {
+          while (runQueue.isEmpty()) {
+            if (stopRequested)
+              return;
+            try {
+              SessionEngine.this.wait();
+            } catch (InterruptedException e) { }
+          }
+          session = runQueue.removeFirst();
+        }
+
+        session.process();
+
+        synchronized (SessionEngine.this) {
+          session.scheduled = false;
+        }
+        // More data may have arrived in the meantime
+        schedule(session);
+        if (session.readPaused && !session.isClosed())
+          updateInterest(session);
+      }
+    }
+  }
+
+  class SelectorThread extends Thread {
+
+    public SelectorThread() {
+      super("SessionSelector");
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      try {
+        while (true) {
+          ArrayList<Session> changes;
+          synchronized (SessionEngine.this) {
+            if (stopRequested)
+              break;
+          }
+          synchronized (interestChanges) {
+            changes = new ArrayList<Session>(interestChanges);
+            interestChanges.clear();
+          }
+          for (Iterator<Session> i = changes.iterator(); i.hasNext(); )
+            applyInterest(i.next());
+
+          selector.select();
+
+          Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+          while (i.hasNext()) {
+            SelectionKey key = i.next();
+            i.remove();
+            handleKey(key);
+          }
+        }
+      } catch (IOException e) {
+        vlog.error("Selector failed: "+e.getMessage());
+      } finally {
+        try {
+          selector.close();
+        } catch (IOException e) { }
+      }
+    }
+
+    private void applyInterest(Session session)
+    {
+      if (session.isClosed())
+        return;
+      try {
+        SelectionKey key = session.channel.keyFor(selector);
+        if (key == null)
+          key = session.channel.register(selector, 0, session);
+        setInterest(session, key);
+      } catch (ClosedChannelException e) {
+      } catch (CancelledKeyException e) {
+      }
+    }
+
+    private void handleKey(SelectionKey key)
+    {
+      Session session = (Session)key.attachment();
+      try {
+        if (key.isConnectable()) {
+          if (!session.channel.finishConnect())
+            return;
+          vlog.info("Connected to "+session.getName());
+        }
+        if (key.isReadable() && session.is.readFrom(session.channel) != 0)
+          schedule(session);
+        if (key.isWritable())
+          session.os.send();
+        setInterest(session, key);
+      } catch (CancelledKeyException e) {
+        // The session has been closed
+      } catch (java.lang.Exception e) {
+        close(session, e);
+      }
+    }
+
+    // setInterest() sets the events to wait for on a session's channel.
+    // readPaused is set first, so that a worker which makes room for more
+    // data after interestOps() has looked knows to have it checked again.
+
+    private void setInterest(Session session, SelectionKey key)
+    {
+      session.readPaused = true;
+      int ops = session.interestOps();
+      if ((ops & SelectionKey.OP_READ) != 0)
+        session.readPaused = false;
+      key.interestOps(ops);
+    }
+  }
+
+  private Selector selector;
+  private SelectorThread selectorThread;
+  private ArrayList<WorkerThread> workers;
+
+  private HashSet<Session> sessions;
+  private LinkedList<Session> runQueue;
+  private ArrayList<Session> interestChanges;
+  private boolean stopRequested;
+
+  static LogWriter vlog = new LogWriter("SessionEngine");
+}
@@ -0,0 +1,321 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// SessionRecorder - writes the data received from the server to a file.
+//
+// Recording starts once security has been negotiated, so the file holds
+// the decrypted stream from ServerInit onwards.  It consists of a header:
+//
+//   8 bytes   "TVNCREC\n"
+//   U16       file format version (1)
+//   U16, U16  RFB protocol version (major, minor)
+//
+// followed by any number of records:
+//
+//   U8        record type
+//   U64       time since the start of the recording in microseconds
+//   U32       length
+//   ...       data
+//
+// Data records (type 1) hold data from the server.  The server sends
+// pixels in the format the client asked for, which isn't part of that
+// data, so the client switching format is recorded as well (type 2).  It
+// holds the position in the server data at which the switch was made,
+// as a U64, followed by the 16 byte pixel format.  It comes between the
+// data before that position and the data after it, so that a reader
+// knows about the switch before it reads any data in the new format.
+// Version 1 of the format had a U32 position, and didn't always split
+// the data there.
+//
+// All values are big endian.  The file is written by a separate thread so
+// that the RFB thread never waits for the disk.  If that thread falls too
+// far behind, the recording is abandoned rather than stalling the session.
+//
+
+package com.tigervnc.rfb;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+
+import com.tigervnc.rdr.*;
+
+public class SessionRecorder implements StreamRecorder {
+
+  public static final byte[] magic = { 'T', 'V', 'N', 'C', 'R', 'E', 'C', '\n' };
+  public static final int formatVersion = 2;
+
+  public static final int recordTypeData = 1;
+  public static final int recordTypePixelFormat = 2;
+
+  static final int blockSize = 256 * 1024;
+  static final int maxBlocks = 128;
+  static final long maxBlockAge = 1000000000L;
+
+  public SessionRecorder(String filename_) throws IOException
+  {
+    filename = filename_;
+    file = new FileOutputStream(filename);
+    queue = new LinkedList<byte[]>();
+    lengths = new LinkedList<Integer>();
+    freeBlocks = new LinkedList<byte[]>();
+    nBlocks = 0;
+    writerThread = new WriterThread();
+  }
+
+  // start() writes the file header and begins recording.  Called once the
+  // protocol version is known.
+
+  public void start(ConnParams cp)
+  {
+    vlog.info("Recording session to "+filename);
+
+    startTime = System.nanoTime();
+    block = newBlock();
+    blockStart = startTime;
+    writerThread.start();
+
+    append(magic, 0, magic.length);
+    putU16(formatVersion);
+    putU16(cp.majorVersion);
+    putU16(cp.minorVersion);
+  }
+
+  // dataReceived() is called on the RFB thread for every piece of data read
+  // from the server.  The last piece is held back until the next one
+  // arrives, as the client may not have read all of it when it switches
+  // pixel format.
+
+  public void dataReceived(byte[] buf, int offset, int length)
+  {
+    if (block == null)
+      return;
+
+    long now = System.nanoTime();
+
+    flushPending();
+    if (pending == null || pending.length < length)
+      pending = new byte[length];
+    System.arraycopy(buf, offset, pending, 0, length);
+    pendingLength = length;
+    pendingTime = now;
+    received += length;
+
+    // Don't let the file lag too far behind a quiet session
+    if (block != null && now - blockStart > maxBlockAge && blockPtr > 0)
+      submitBlock();
+  }
+
+  // pixelFormatChanged() records that the data from position pos onwards
+  // is in the pixel format pf.  pos is the position of the client's
+  // InStream, so it wraps at 2GB, but the data the client hasn't read yet
+  // is always part of the last piece received.
+
+  public void pixelFormatChanged(PixelFormat pf, int pos)
+  {
+    if (block == null)
+      return;
+
+    int ahead = (int)received - pos;
+    if (ahead < 0 || ahead > pendingLength) {
+      vlog.error("Pixel format changed at an unexpected position");
+      ahead = Math.max(0, Math.min(ahead, pendingLength));
+    }
+
+    writeData(pending, 0, pendingLength - ahead, pendingTime);
+
+    MemOutStream memStream = new MemOutStream(16);
+    pf.write(memStream);
+
+    putU8(recordTypePixelFormat);
+    putU64((System.nanoTime() - startTime) / 1000);
+    putU32(8 + memStream.length());
+    putU64(received - ahead);
+    append(memStream.data(), 0, memStream.length());
+
+    // The rest is still held back, in case the format changes again
+    System.arraycopy(pending, pendingLength - ahead, pending, 0, ahead);
+    pendingLength = ahead;
+  }
+
+  // close() writes out anything still buffered and closes the file.
+
+  public void close()
+  {
+    flushPending();
+    if (block != null && blockPtr > 0)
+      submitBlock();
+    block = null;
+
+    synchronized(this) {
+      stopRequested = true;
+      notifyAll();
+    }
+
+    if (writerThread.isAlive()) {
+      try {
+        writerThread.join();
+      } catch (InterruptedException e) { }
+    }
+
+    try {
+      file.close();
+    } catch (IOException e) {
+      vlog.error("Error closing "+filename+": "+e.getMessage());
+    }
+  }
+
+  private void flushPending() {
+    writeData(pending, 0, pendingLength, pendingTime);
+    pendingLength = 0;
+  }
+
+  private void writeData(byte[] buf, int offset, int length, long time) {
+    if (length == 0)
+      return;
+    putU8(recordTypeData);
+    putU64((time - startTime) / 1000);
+    putU32(length);
+    append(buf, offset, length);
+  }
+
+  private void putU8(int v) {
+    if (block == null) return;
+    if (blockPtr == block.length) submitBlock();
+    if (block == null) return;
+    block[blockPtr++] = (byte)v;
+  }
+
+  private void putU16(int v) { putU8(v >> 8); putU8(v); }
+  private void putU32(int v) { putU16(v >> 16); putU16(v); }
+  private void putU64(long v) { putU32((int)(v >> 32)); putU32((int)v); }
+
+  private void append(byte[] buf, int offset, int length) {
+    while (length > 0 && block != null) {
+      if (blockPtr == block.length) {
+        submitBlock();
+        continue;
+      }
+      int n = Math.min(length, block.length - blockPtr);
+      System.arraycopy(buf, offset, block, blockPtr, n);
+      blockPtr += n;
+      offset += n;
+      length -= n;
+    }
+  }
+
+  // submitBlock() hands the current block to the writer thread and gets
+  // a new one to fill.
+
+  private void submitBlock() {
+    synchronized(this) {
+      queue.add(block);
+      lengths.add(Integer.valueOf(blockPtr));
+      notifyAll();
+    }
+    block = newBlock();
+    blockStart = System.nanoTime();
+  }
+
+  private synchronized byte[] newBlock() {
+    blockPtr = 0;
+
+    if (error == null && !freeBlocks.isEmpty())
+      return freeBlocks.removeFirst();
+
+    if (error == null && nBlocks < maxBlocks) {
+      nBlocks++;
+      return new byte[blockSize];
+    }
+
+    if (error == null)
+      vlog.error("Writing "+filename+" can't keep up, recording stopped");
+    else
+      vlog.error("Error writing "+filename+": "+error.getMessage()+
+                 ", recording stopped");
+    return null;
+  }
+
+  class WriterThread extends Thread {
+
+    public WriterThread() {
+      super("SessionRecorder");
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      while (true) {
+        byte[] buf;
+        int len;
+
+        synchronized(SessionRecorder.this) {
+          while (queue.isEmpty() && !stopRequested) {
+            try {
+              SessionRecorder.this.wait();
+            } catch (InterruptedException e) { }
+          }
+          if (queue.isEmpty())
+            return;
+          buf = queue.removeFirst();
+          len = lengths.removeFirst().intValue();
+        }
+
+        try {
+          file.write(buf, 0, len);
+        } catch (IOException e) {
+          synchronized(SessionRecorder.this) {
+            error = e;
+            queue.clear();
+            lengths.clear();
+          }
+          return;
+        }
+
+        synchronized(SessionRecorder.this) {
+          freeBlocks.add(buf);
+        }
+      }
+    }
+  }
+
+  private String filename;
+  private FileOutputStream file;
+  private WriterThread writerThread;
+  private long startTime;
+
+  // only accessed by the RFB thread:
+  private byte[] block;
+  private int blockPtr;
+  private long blockStart;
+  private byte[] pending;
+  private int pendingLength;
+  private long pendingTime;
+  private long received;
+
+  // access to the following must be synchronized:
+  private LinkedList<byte[]> queue;
+  private LinkedList<Integer> lengths;
+  private LinkedList<byte[]> freeBlocks;
+  private int nBlocks;
+  private boolean stopRequested;
+  private IOException error;
+
+  static LogWriter vlog = new LogWriter("SessionRecorder");
+}
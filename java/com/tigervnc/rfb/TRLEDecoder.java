@@ -0,0 +1,58 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// TRLE is ZRLE without the zlib layer and with smaller tiles.  It costs
+// more bandwidth but much less CPU time, which is what matters on fast
+// LANs.  Unlike ZRLE there is no state carried between rects, so rects
+// can be decoded in any order.
+//
+
+package com.tigervnc.rfb;
+
+import com.tigervnc.rdr.*;
+
+public class TRLEDecoder extends Decoder {
+
+  static final int tileSize = 16;
+
+  public TRLEDecoder(CMsgReader reader_) {
+    super(DecoderPlain);
+    reader = reader_;
+  }
+
+  public void readRect(Rect r, InStream is, ConnParams cp, OutStream os) {
+    int bpp = cp.pf().bpp;
+    RLETileDecoder.copyRect(r, is, os, tileSize, (bpp > 24 ? 3 : bpp / 8));
+  }
+
+  public void decodeRect(Rect r, InStream is, CMsgHandler handler) {
+    RLETileDecoder t = tiles.get();
+    if (t == null) {
+      t = new RLETileDecoder(reader);
+      tiles.set(t);
+    }
+    t.decodeRect(r, is, tileSize, handler);
+  }
+
+  CMsgReader reader;
+
+  // Each decoding thread needs its own tile state
+  private final ThreadLocal<RLETileDecoder> tiles =
+    new ThreadLocal<RLETileDecoder>();
+}
@@ -21,7 +21,10 @@
 
 package com.tigervnc.rfb;
 
+import java.util.Arrays;
+
 import com.tigervnc.rdr.InStream;
+import com.tigervnc.rdr.OutStream;
 import com.tigervnc.rdr.ZlibInStream;
 
 public class TightDecoder extends Decoder {
@@ -41,29 +44,172 @@ public class TightDecoder extends Decoder {
   final static int rfbTightMinToCompress = 12;
 
   public TightDecoder(CMsgReader reader_) {
+    super(DecoderPartiallyOrdered);
     reader = reader_;
     zis = new ZlibInStream[4];
     for (int i = 0; i < 4; i++)
       zis[i] = new ZlibInStream();
   }
 
-  public void readRect(Rect r, CMsgHandler handler)
+  // Buffers used while decoding a rect.  Rects which don't conflict are
+  // decoded in parallel, so each decoding thread has a set of its own.
+  // They are kept between rects rather than allocated for every one.
+
+  static final class Scratch {
+    int[] pix = new int[1];
+    byte[] rgb = new byte[3];
+    int[] palette = new int[256];
+    byte[] tightPalette = new byte[256 * 3];
+    byte[] netbuf = new byte[1024];
+    int[] prevRow = new int[TIGHT_MAX_WIDTH * 3];
+    int[] thisRow = new int[TIGHT_MAX_WIDTH * 3];
+    int[] stride = new int[1];
+    JpegDecompressor jpeg;
+
+    byte[] getNetbuf(int size) {
+      if (netbuf.length < size)
+        netbuf = new byte[Math.max(size, netbuf.length * 2)];
+      return netbuf;
+    }
+
+    // Gradient rows hold three colour components per pixel
+
+    int[] getPrevRow(int width) {
+      if (prevRow.length < width * 3)
+        prevRow = new int[width * 3];
+      return prevRow;
+    }
+
+    int[] getThisRow(int width) {
+      if (thisRow.length < width * 3)
+        thisRow = new int[width * 3];
+      return thisRow;
+    }
+
+    // Most connections never see a JPEG rect
+
+    JpegDecompressor getJpeg() {
+      if (jpeg == null)
+        jpeg = new JpegDecompressor();
+      return jpeg;
+    }
+  }
+
+  private Scratch getScratch() {
+    Scratch s = scratch.get();
+    if (s == null) {
+      s = new Scratch();
+      scratch.set(s);
+    }
+    return s;
+  }
+
+  public void readRect(Rect r, InStream is, ConnParams cp, OutStream os)
   {
-    InStream is = reader.getInStream();
-    boolean cutZeros = false;
-    clientpf = handler.getPreferredPF();
-    serverpf = handler.cp.pf();
+    PixelFormat serverpf = cp.pf();
     int bpp = serverpf.bpp;
-    cutZeros = false;
+    boolean cutZeros = (bpp == 32 && serverpf.is888());
+
+    int comp_ctl = is.readU8();
+    os.writeU8(comp_ctl);
+
+    comp_ctl >>= 4;
+
+    // "Fill" compression type.
+    if (comp_ctl == rfbTightFill) {
+      os.copyBytes(is, cutZeros ? 3 : bpp/8);
+      return;
+    }
+
+    // "JPEG" compression type.
+    if (comp_ctl == rfbTightJpeg) {
+      int len = is.readCompactLength();
+      os.writeCompactLength(len);
+      os.copyBytes(is, len);
+      return;
+    }
+
+    // Quit on unsupported compression type.
+    if (comp_ctl > rfbTightMaxSubencoding) {
+      throw new Exception("TightDecoder: bad subencoding value received");
+    }
+
+    // "Basic" compression type.
+    int palSize = 0;
+
+    if ((comp_ctl & rfbTightExplicitFilter) != 0) {
+      int filterId = is.readU8();
+      os.writeU8(filterId);
+
+      switch (filterId) {
+      case rfbTightFilterPalette:
+        palSize = is.readU8() + 1;
+        os.writeU8(palSize - 1);
+        os.copyBytes(is, palSize * (cutZeros ? 3 : bpp/8));
+        break;
+      case rfbTightFilterGradient:
+      case rfbTightFilterCopy:
+        break;
+      default:
+        throw new Exception("TightDecoder: unknown filter code recieved");
+      }
+    }
+
+    int bppp = bpp;
+    if (palSize != 0) {
+      bppp = (palSize <= 2) ? 1 : 8;
+    } else if (cutZeros) {
+      bppp = 24;
+    }
+
+    int rowSize = (r.width() * bppp + 7) / 8;
+    int dataSize = r.height() * rowSize;
+    if (dataSize < rfbTightMinToCompress) {
+      os.copyBytes(is, dataSize);
+    } else {
+      int length = is.readCompactLength();
+      os.writeCompactLength(length);
+      os.copyBytes(is, length);
+    }
+  }
+
+  // Rects using, or resetting, the same zlib stream have to be decoded in
+  // order.  Everything else (fills, JPEG and the other streams) can go in
+  // parallel.
+
+  public boolean doRectsConflict(Rect rectA, byte[] bufferA, int buflenA,
+                                 Rect rectB, byte[] bufferB, int buflenB,
+                                 ConnParams cp)
+  {
+    int comp_ctl_a = bufferA[0] & 0xff;
+    int comp_ctl_b = bufferB[0] & 0xff;
+
+    // Resets or use of zlib pose the same problem, so merge them
+    if ((comp_ctl_a & 0x80) == 0x00)
+      comp_ctl_a |= 1 << ((comp_ctl_a >> 4) & 0x03);
+    if ((comp_ctl_b & 0x80) == 0x00)
+      comp_ctl_b |= 1 << ((comp_ctl_b >> 4) & 0x03);
+
+    if (((comp_ctl_a & 0x0f) & (comp_ctl_b & 0x0f)) != 0)
+      return true;
+
+    return false;
+  }
+
+  public void decodeRect(Rect r, InStream is, CMsgHandler handler)
+  {
+    PixelFormat serverpf = handler.cp.pf();
+    int bpp = serverpf.bpp;
+    boolean cutZeros = false;
     if (bpp == 32) {
       if (serverpf.is888()) {
         cutZeros = true;
       }
     }
 
-    int comp_ctl = is.readU8();
+    Scratch s = getScratch();
 
-    boolean bigEndian = handler.cp.pf().bigEndian;
+    int comp_ctl = is.readU8();
 
     // Flush zlib streams if we are told by the server to do so.
     for (int i = 0; i < 4; i++) {
@@ -75,15 +221,15 @@ public class TightDecoder extends Decoder {
 
     // "Fill" compression type.
     if (comp_ctl == rfbTightFill) {
-      int[] pix = new int[1];
+      int pix;
       if (cutZeros) {
-        byte[] bytebuf = new byte[3];
-        is.readBytes(bytebuf, 0, 3);
-        serverpf.bufferFromRGB(pix, 0, bytebuf, 0, 1);
+        is.readBytes(s.rgb, 0, 3);
+        serverpf.bufferFromRGB(s.pix, 0, s.rgb, 0, 1);
+        pix = s.pix[0];
       } else {
-        pix[0] = is.readPixel(serverpf.bpp/8, serverpf.bigEndian);
+        pix = is.readPixel(serverpf.bpp/8, serverpf.bigEndian);
       }
-      handler.fillRect(r, pix[0]);
+      handler.fillRect(r, pix);
       return;
     }
 
@@ -100,7 +246,7 @@ public class TightDecoder extends Decoder {
 
     // "Basic" compression type.
     int palSize = 0;
-    int[] palette = new int[256];
+    int[] palette = s.palette;
     boolean useGradient = false;
 
     if ((comp_ctl & rfbTightExplicitFilter) != 0) {
@@ -109,11 +255,9 @@ public class TightDecoder extends Decoder {
       switch (filterId) {
       case rfbTightFilterPalette:
         palSize = is.readU8() + 1;
-        byte[] tightPalette;
         if (cutZeros) {
-          tightPalette = new byte[256 * 3];
-          is.readBytes(tightPalette, 0, palSize * 3);
-          serverpf.bufferFromRGB(palette, 0, tightPalette, 0, palSize);
+          is.readBytes(s.tightPalette, 0, palSize * 3);
+          serverpf.bufferFromRGB(palette, 0, s.tightPalette, 0, palSize);
         } else {
           is.readPixels(palette, palSize, serverpf.bpp/8, serverpf.bigEndian);
         }
@@ -149,86 +293,108 @@ public class TightDecoder extends Decoder {
       input = (ZlibInStream)zis[streamId];
     }
 
-    // Allocate netbuf and read in data
-    byte[] netbuf = new byte[dataSize];
-    input.readBytes(netbuf, 0, dataSize);
+    // Decode straight into the framebuffer if the handler lets us
+    int[] fb = handler.getBufferRW(r, s.stride);
+    int[] buf;
+    int ptr, stride;
+    if (fb != null) {
+      buf = fb;
+      stride = s.stride[0];
+      ptr = r.tl.y * stride + r.tl.x;
+    } else {
+      buf = reader.getImageBuf(r.area());
+      stride = r.width();
+      ptr = 0;
+    }
 
-    int stride = r.width();
-    int[] buf = reader.getImageBuf(r.area());
+    try {
+      decodeBasic(r, input, serverpf, cutZeros, useGradient, palette,
+                  palSize, dataSize, buf, ptr, stride, s);
+    } finally {
+      if (fb != null)
+        handler.commitBufferRW(r);
+    }
+
+    if (fb == null)
+      handler.imageRect(r, buf);
+
+    if (streamId != -1) {
+      zis[streamId].reset();
+    }
+  }
+
+  // decodeBasic() decodes the pixel data of a "basic" rect into buf, where
+  // pixel (x,y) of the rect goes at ptr + y * stride + x.
+
+  final private void decodeBasic(Rect r, InStream input, PixelFormat serverpf,
+                                 boolean cutZeros, boolean useGradient,
+                                 int[] palette, int palSize, int dataSize,
+                                 int[] buf, int ptr, int stride, Scratch s)
+  {
+    int w = r.width(), h = r.height();
+
+    if (palSize == 0 && !cutZeros) {
+      // Truecolor data in the server's pixel format.  Gradient filtered
+      // data is in the same format, so it can be read the same way and
+      // filtered in place.
+      if (stride == w) {
+        input.readPixels(buf, ptr, r.area(), serverpf.bpp/8, serverpf.bigEndian);
+      } else {
+        for (int y = 0; y < h; y++)
+          input.readPixels(buf, ptr + y * stride, w, serverpf.bpp/8,
+                           serverpf.bigEndian);
+      }
+      if (useGradient)
+        FilterGradient(serverpf, buf, ptr, stride, r, s);
+      return;
+    }
+
+    // Read in data
+    byte[] netbuf = s.getNetbuf(dataSize);
+    input.readBytes(netbuf, 0, dataSize);
 
     if (palSize == 0) {
-      // Truecolor data.
+      // Truecolor data with the padding byte cut.
       if (useGradient) {
-        if (bpp == 32 && cutZeros) {
-          FilterGradient24(netbuf, buf, stride, r);
-        } else {
-          FilterGradient(netbuf, buf, stride, r);
-        }
+        FilterGradient24(serverpf, netbuf, buf, ptr, stride, r, s);
       } else {
-        // Copy
-        int h = r.height();
-        int ptr = 0;
-        int srcPtr = 0;
-        int w = r.width();
-        if (cutZeros) {
-          serverpf.bufferFromRGB(buf, ptr, netbuf, srcPtr, w*h);
-        } else {
-          int pixelSize = (bpp >= 24) ? 3 : bpp/8;
-          while (h > 0) {
-            for (int i = 0; i < w; i++) {
-              if (bpp == 8) {
-                buf[ptr+i] = netbuf[srcPtr+i] & 0xff;
-              } else {
-                for (int j = pixelSize-1; j >= 0; j--)
-                  buf[ptr+i] |= ((netbuf[srcPtr+i+j] & 0xff) << j*8);
-              }
-            }
-            ptr += stride;
-            srcPtr += w * pixelSize;
-            h--;
-          }
-        }
+        for (int y = 0; y < h; y++)
+          serverpf.bufferFromRGB(buf, ptr + y * stride, netbuf, y * w * 3, w);
       }
-    } else {
-      // Indexed color
-      int x, h = r.height(), w = r.width(), b, pad = stride - w;
-      int ptr = 0;
-      int srcPtr = 0, bits;
-      if (palSize <= 2) {
-        // 2-color palette
-        while (h > 0) {
-          for (x = 0; x < w / 8; x++) {
-            bits = netbuf[srcPtr++];
-            for(b = 7; b >= 0; b--) {
-              buf[ptr++] = palette[bits >> b & 1];
-            }
-          }
-          if (w % 8 != 0) {
-            bits = netbuf[srcPtr++];
-            for (b = 7; b >= 8 - w % 8; b--) {
-              buf[ptr++] = palette[bits >> b & 1];
-            }
+      return;
+    }
+
+    // Indexed color
+    int x, b, pad = stride - w;
+    int srcPtr = 0, bits;
+    if (palSize <= 2) {
+      // 2-color palette
+      while (h > 0) {
+        for (x = 0; x < w / 8; x++) {
+          bits = netbuf[srcPtr++];
+          for(b = 7; b >= 0; b--) {
+            buf[ptr++] = palette[bits >> b & 1];
           }
-          ptr += pad;
-          h--;
         }
-      } else {
-        // 256-color palette
-        while (h > 0) {
-          int endOfRow = ptr + w;
-          while (ptr < endOfRow) {
-            buf[ptr++] = palette[netbuf[srcPtr++] & 0xff];
+        if (w % 8 != 0) {
+          bits = netbuf[srcPtr++];
+          for (b = 7; b >= 8 - w % 8; b--) {
+            buf[ptr++] = palette[bits >> b & 1];
           }
-          ptr += pad;
-          h--;
         }
+        ptr += pad;
+        h--;
+      }
+    } else {
+      // 256-color palette
+      while (h > 0) {
+        int endOfRow = ptr + w;
+        while (ptr < endOfRow) {
+          buf[ptr++] = palette[netbuf[srcPtr++] & 0xff];
+        }
+        ptr += pad;
+        h--;
       }
-    }
-
-    handler.imageRect(r, buf);
-
-    if (streamId != -1) {
-      zis[streamId].reset();
     }
   }
 
@@ -239,111 +405,148 @@ public class TightDecoder extends Decoder {
     if (compressedLen <= 0)
       vlog.info("Incorrect data received from the server.");
 
-    // Allocate netbuf and read in data
-    byte[] netbuf = new byte[compressedLen];
+    Scratch s = getScratch();
+    byte[] netbuf = s.getNetbuf(compressedLen);
     is.readBytes(netbuf, 0, compressedLen);
 
-    // Create an Image object from the JPEG data.
-    // change to byte[] transfer
-    handler.imageRect(r, netbuf);
+    // Decode straight into the framebuffer if the handler lets us
+    PixelFormat pf = handler.cp.pf();
+    int[] fb = handler.getBufferRW(r, s.stride);
+    if (fb != null) {
+      int stride = s.stride[0];
+      try {
+        s.getJpeg().decompress(netbuf, 0, compressedLen, r.width(), r.height(),
+                               fb, r.tl.y * stride + r.tl.x, stride, pf);
+      } finally {
+        handler.commitBufferRW(r);
+      }
+      return;
+    }
 
+    int[] buf = reader.getImageBuf(r.area());
+    s.getJpeg().decompress(netbuf, 0, compressedLen, r.width(), r.height(),
+                           buf, 0, r.width(), pf);
+    handler.imageRect(r, buf);
   }
 
-  final private void FilterGradient24(byte[] netbuf, int[] buf, int stride,
-                                      Rect r)
-  {
-
-    int x, y, c;
-    byte[] prevRow = new byte[TIGHT_MAX_WIDTH*3];
-    byte[] thisRow = new byte[TIGHT_MAX_WIDTH*3];
-    byte[] pix = new byte[3];
-    int[] est = new int[3];
+  // The gradient filter predicts each colour component from the pixels
+  // above and to the left of it, and the server sends the difference.
+  // Both versions below keep the previous row as colour components in an
+  // int array and work on the current pixel's components in locals.
 
-    // Set up shortcut variables
+  final private void FilterGradient24(PixelFormat serverpf, byte[] netbuf,
+                                      int[] buf, int bufPtr, int stride,
+                                      Rect r, Scratch s)
+  {
     int rectHeight = r.height();
     int rectWidth = r.width();
+    int rs = serverpf.redShift;
+    int gs = serverpf.greenShift;
+    int bs = serverpf.blueShift;
+
+    int[] prevRow = s.getPrevRow(rectWidth);
+    int[] thisRow = s.getThisRow(rectWidth);
+
+    // The buffers are reused, so the row above the rect has to be cleared
+    Arrays.fill(prevRow, 0, rectWidth*3, 0);
+
+    int src = 0;
+    for (int y = 0; y < rectHeight; y++) {
+      int dst = bufPtr + y * stride;
 
-    for (y = 0; y < rectHeight; y++) {
       /* First pixel in a row */
-      for (c = 0; c < 3; c++) {
-        pix[c] = (byte)(netbuf[y*rectWidth*3+c] + prevRow[c]);
-        thisRow[c] = pix[c];
-      }
-      serverpf.bufferFromRGB(buf, y*stride, pix, 0, 1);
+      int pr = ((netbuf[src++] & 0xff) + prevRow[0]) & 0xff;
+      int pg = ((netbuf[src++] & 0xff) + prevRow[1]) & 0xff;
+      int pb = ((netbuf[src++] & 0xff) + prevRow[2]) & 0xff;
+      thisRow[0] = pr;
+      thisRow[1] = pg;
+      thisRow[2] = pb;
+      buf[dst++] = 0xff000000 | pr << rs | pg << gs | pb << bs;
 
       /* Remaining pixels of a row */
-      for (x = 1; x < rectWidth; x++) {
-        for (c = 0; c < 3; c++) {
-          est[c] = (int)(prevRow[x*3+c] + pix[c] - prevRow[(x-1)*3+c]);
-          if (est[c] > 0xFF) {
-            est[c] = 0xFF;
-          } else if (est[c] < 0) {
-            est[c] = 0;
-          }
-          pix[c] = (byte)(netbuf[(y*rectWidth+x)*3+c] + est[c]);
-          thisRow[x*3+c] = pix[c];
-        }
-        serverpf.bufferFromRGB(buf, y*stride+x, pix, 0, 1);
+      for (int x = 3; x < rectWidth*3; x += 3) {
+        int er = prevRow[x] + pr - prevRow[x-3];
+        int eg = prevRow[x+1] + pg - prevRow[x-2];
+        int eb = prevRow[x+2] + pb - prevRow[x-1];
+        er = (er < 0) ? 0 : ((er > 0xff) ? 0xff : er);
+        eg = (eg < 0) ? 0 : ((eg > 0xff) ? 0xff : eg);
+        eb = (eb < 0) ? 0 : ((eb > 0xff) ? 0xff : eb);
+
+        pr = ((netbuf[src++] & 0xff) + er) & 0xff;
+        pg = ((netbuf[src++] & 0xff) + eg) & 0xff;
+        pb = ((netbuf[src++] & 0xff) + eb) & 0xff;
+        thisRow[x] = pr;
+        thisRow[x+1] = pg;
+        thisRow[x+2] = pb;
+        buf[dst++] = 0xff000000 | pr << rs | pg << gs | pb << bs;
       }
 
-      System.arraycopy(thisRow, 0, prevRow, 0, prevRow.length);
+      int[] tmp = prevRow;
+      prevRow = thisRow;
+      thisRow = tmp;
     }
   }
 
-  final private void FilterGradient(byte[] netbuf, int[] buf, int stride,
-                                    Rect r)
-  {
-
-    int x, y, c;
-    byte[] prevRow = new byte[TIGHT_MAX_WIDTH];
-    byte[] thisRow = new byte[TIGHT_MAX_WIDTH];
-    byte[] pix = new byte[3];
-    int[] est = new int[3];
+  // For other formats the components are predicted in their own range,
+  // and the differences are sent packed as pixels.  buf holds those pixels
+  // on entry and is filtered in place.
 
-    // Set up shortcut variables
+  final private void FilterGradient(PixelFormat serverpf, int[] buf,
+                                    int bufPtr, int stride, Rect r, Scratch s)
+  {
     int rectHeight = r.height();
     int rectWidth = r.width();
+    int rs = serverpf.redShift, rm = serverpf.redMax;
+    int gs = serverpf.greenShift, gm = serverpf.greenMax;
+    int bs = serverpf.blueShift, bm = serverpf.blueMax;
 
-    for (y = 0; y < rectHeight; y++) {
-      /* First pixel in a row */
-      // FIXME
-      //serverpf.rgbFromBuffer(pix, 0, netbuf, y*rectWidth, 1, cm);
-      for (c = 0; c < 3; c++)
-        pix[c] += prevRow[c];
+    int[] prevRow = s.getPrevRow(rectWidth);
+    int[] thisRow = s.getThisRow(rectWidth);
 
-      System.arraycopy(pix, 0, thisRow, 0, pix.length);
+    // The buffers are reused, so the row above the rect has to be cleared
+    Arrays.fill(prevRow, 0, rectWidth*3, 0);
 
-      serverpf.bufferFromRGB(buf, y*stride, pix, 0, 1);
+    for (int y = 0; y < rectHeight; y++) {
+      int ptr = bufPtr + y * stride;
 
-      /* Remaining pixels of a row */
-      for (x = 1; x < rectWidth; x++) {
-        for (c = 0; c < 3; c++) {
-          est[c] = (int)(prevRow[x*3+c] + pix[c] - prevRow[(x-1)*3+c]);
-          if (est[c] > 0xff) {
-            est[c] = 0xff;
-          } else if (est[c] < 0) {
-            est[c] = 0;
-          }
-        }
-
-        // FIXME
-        //serverpf.rgbFromBuffer(pix, 0, netbuf, y*rectWidth+x, 1, cm);
-        for (c = 0; c < 3; c++)
-          pix[c] += est[c];
-
-        System.arraycopy(pix, 0, thisRow, x*3, pix.length);
+      /* First pixel in a row */
+      int pix = buf[ptr];
+      int pr = ((pix >>> rs) + prevRow[0]) & rm;
+      int pg = ((pix >>> gs) + prevRow[1]) & gm;
+      int pb = ((pix >>> bs) + prevRow[2]) & bm;
+      thisRow[0] = pr;
+      thisRow[1] = pg;
+      thisRow[2] = pb;
+      buf[ptr++] = 0xff000000 | pr << rs | pg << gs | pb << bs;
 
-        serverpf.bufferFromRGB(buf, y*stride+x, pix, 0, 1);
+      /* Remaining pixels of a row */
+      for (int x = 3; x < rectWidth*3; x += 3) {
+        int er = prevRow[x] + pr - prevRow[x-3];
+        int eg = prevRow[x+1] + pg - prevRow[x-2];
+        int eb = prevRow[x+2] + pb - prevRow[x-1];
+        er = (er < 0) ? 0 : ((er > rm) ? rm : er);
+        eg = (eg < 0) ? 0 : ((eg > gm) ? gm : eg);
+        eb = (eb < 0) ? 0 : ((eb > bm) ? bm : eb);
+
+        pix = buf[ptr];
+        pr = ((pix >>> rs) + er) & rm;
+        pg = ((pix >>> gs) + eg) & gm;
+        pb = ((pix >>> bs) + eb) & bm;
+        thisRow[x] = pr;
+        thisRow[x+1] = pg;
+        thisRow[x+2] = pb;
+        buf[ptr++] = 0xff000000 | pr << rs | pg << gs | pb << bs;
       }
 
-      System.arraycopy(thisRow, 0, prevRow, 0, prevRow.length);
+      int[] tmp = prevRow;
+      prevRow = thisRow;
+      thisRow = tmp;
     }
   }
 
   private CMsgReader reader;
   private ZlibInStream[] zis;
-  private PixelFormat serverpf;
-  private PixelFormat clientpf;
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>();
   static LogWriter vlog = new LogWriter("TightDecoder");
 
 }
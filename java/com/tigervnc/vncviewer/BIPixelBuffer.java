@@ -21,19 +21,38 @@ package com.tigervnc.vncviewer;
 
 import java.awt.*;
 import java.awt.image.*;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 import com.tigervnc.rfb.*;
-import com.tigervnc.rfb.Exception;
 
-public class BIPixelBuffer extends PlatformPixelBuffer implements ImageObserver
+public class BIPixelBuffer extends PlatformPixelBuffer
 {
   public BIPixelBuffer(int w, int h, CConn cc_, DesktopWindow desktop_) {
     super(w, h, cc_, desktop_);
-    clip = new Rectangle();
   }
 
+  // The server is asked for pixels in the layout of the image, in our own
+  // byte order, so that they can be stored as they arrive
+
+  public PixelFormat getNativePF() {
+    boolean bigEndian = (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+    PixelFormat pf = new PixelFormat(32, 24, bigEndian, true, 255, 255, 255,
+                                     16, 8, 0);
+    vlog.debug("Native pixel format is "+pf.print());
+    return pf;
+  }
+
+  // True colour formats are converted to an int RGB image, which is the
+  // layout Java2D draws the fastest.  The converter is chosen here, so
+  // that drawing a rect doesn't have to look at the format again.
+
   public void setPF(PixelFormat pf) {
     super.setPF(pf);
+    if (pf.trueColour)
+      converter = PixelConverter.create(pf, rgbPF);
+    else
+      converter = null;
     createImage(width(), height());
   }
 
@@ -52,92 +71,97 @@ public class BIPixelBuffer extends PlatformPixelBuffer implements ImageObserver
     createImage(w, h);
   }
 
+  // The pixels are written straight into the image's data buffer, so
+  // Java2D is only used to present the image.  For true colour that is
+  // the int array of PixelBuffer, and the drawing methods there are used
+  // as they are.
+
   private void createImage(int w, int h) {
     if (w == 0 || h == 0) return;
-    WritableRaster wr;
-    if (cm instanceof IndexColorModel)
-      wr = ((IndexColorModel)cm).createCompatibleWritableRaster(w, h);
-    else
-      wr = ((DirectColorModel)cm).createCompatibleWritableRaster(w, h);
-    image = new BufferedImage(cm, wr, true, null);
-    db = wr.getDataBuffer();
+    if (converter != null) {
+      image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+      stride = ((SinglePixelPackedSampleModel)image.getSampleModel()).getScanlineStride();
+      data = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+      indices = null;
+    } else {
+      WritableRaster wr = ((IndexColorModel)cm).createCompatibleWritableRaster(w, h);
+      image = new BufferedImage(cm, wr, true, null);
+      stride = ((ComponentSampleModel)wr.getSampleModel()).getScanlineStride();
+      indices = ((DataBufferByte)wr.getDataBuffer()).getData();
+      data = null;
+    }
   }
 
   public void fillRect(int x, int y, int w, int h, int pix) {
-    Graphics2D graphics = (Graphics2D)image.getGraphics();
-    switch (format.depth) {
-    case 24:
-      graphics.setColor(new Color(pix));
-      graphics.fillRect(x, y, w, h);
-      break;
-    default:
-      Color color = new Color((0xff << 24) | (cm.getRed(pix) << 16) |
-                              (cm.getGreen(pix) << 8) | (cm.getBlue(pix)));
-      graphics.setColor(color);
-      graphics.fillRect(x, y, w, h);
-      break;
+    if (converter != null) {
+      super.fillRect(x, y, w, h, converter.convert(pix));
+      return;
     }
-    graphics.dispose();
+    byte index = (byte)pix;
+    for (int ptr = y * stride + x, end = ptr + h * stride; ptr < end;
+         ptr += stride)
+      Arrays.fill(indices, ptr, ptr + w, index);
   }
 
   public void imageRect(int x, int y, int w, int h, Object pix) {
-    if (pix instanceof byte[]) {
-      Image img = tk.createImage((byte[]) pix);
-      img.setAccelerationPriority(1);
-      clip = new Rectangle(x, y, w, h);
-      synchronized(clip) {
-        tk.prepareImage(img, -1, -1, this);
-        try {
-          clip.wait(1000);
-        } catch (InterruptedException e) {
-          throw new Exception("Error decoding JPEG data");
-        }
-      }
-      clip = null;
-      img.flush();
-    } else {
-      if (image.getSampleModel().getTransferType() == DataBuffer.TYPE_BYTE) {
-        byte[] bytes = new byte[((int[])pix).length];
-        for (int i = 0; i < bytes.length; i++)
-          bytes[i] = (byte)((int[])pix)[i];
-        pix = bytes;
-      }
-      image.getSampleModel().setDataElements(x, y, w, h, pix, db);
+    int[] src = (int[])pix;
+    if (converter != null) {
+      converter.convertRect(src, 0, w, data, y * stride + x, stride, w, h);
+      return;
+    }
+    // The colour map index is the pixel value
+    for (int j = 0; j < h; j++) {
+      int s = j * w;
+      int d = (y + j) * stride + x;
+      int end = d + w;
+      while (d < end)
+        indices[d++] = (byte)src[s++];
     }
   }
 
   public void copyRect(int x, int y, int w, int h, int srcX, int srcY) {
-    Graphics2D graphics = (Graphics2D)image.getGraphics();
-    graphics.copyArea(srcX, srcY, w, h, x - srcX, y - srcY);
-    graphics.dispose();
+    if (converter != null) {
+      super.copyRect(x, y, w, h, srcX, srcY);
+      return;
+    }
+    int dest = y * stride + x;
+    int src = srcY * stride + srcX;
+    int inc = stride;
+
+    // Copy from the bottom up if the rect moves down, so that rows aren't
+    // overwritten before they are copied.  arraycopy() copes with overlap
+    // within a row.
+    if (y > srcY) {
+      src += (h-1) * inc;
+      dest += (h-1) * inc;
+      inc = -inc;
+    }
+    for (int j = 0; j < h; j++, src += inc, dest += inc)
+      System.arraycopy(indices, src, indices, dest, w);
   }
 
-  public Image getImage() {
-    return (Image)image;
+  // Decoders can only write to the image directly if their pixels don't
+  // need converting
+
+  public int[] getBufferRW(Rect r, int[] stride_) {
+    if (converter == null || !converter.isIdentity())
+      return null;
+    stride_[0] = stride;
+    return data;
   }
 
-  public boolean imageUpdate(Image img, int infoflags, int x, int y, int w, int h) {
-    if ((infoflags & (ALLBITS | ABORT)) == 0) {
-      return true;
-    } else {
-      if ((infoflags & ALLBITS) != 0) {
-        if (clip != null) {
-          synchronized(clip) {
-            Graphics2D graphics = (Graphics2D)image.getGraphics();
-            graphics.drawImage(img, clip.x, clip.y, clip.width, clip.height, null);
-            graphics.dispose();
-            clip.notify();
-          }
-        }
-      }
-      return false;
-    }
+  public Image getImage() {
+    return (Image)image;
   }
 
   BufferedImage image;
-  DataBuffer db;
-  Rectangle clip;
-  final static Toolkit tk = Toolkit.getDefaultToolkit();
-  
+  byte[] indices;
+  int stride;
+  PixelConverter converter;
+
+  // The layout of TYPE_INT_RGB
+  static final PixelFormat rgbPF =
+    new PixelFormat(32, 24, false, true, 255, 255, 255, 16, 8, 0);
+
   static LogWriter vlog = new LogWriter("BIPixelBuffer");
 }
@@ -55,6 +55,9 @@ import com.tigervnc.rfb.Point;
 import com.tigervnc.rfb.Exception;
 import com.tigervnc.network.Socket;
 import com.tigervnc.network.TcpSocket;
+import com.tigervnc.network.FileDescriptor;
+import com.tigervnc.network.ReadAheadDescriptor;
+import com.tigervnc.network.SocketDescriptor;
 
 public class CConn extends CConnection implements 
   UserPasswdGetter, UserMsgBox, OptionsDialogCallback, 
@@ -83,6 +86,8 @@ public class CConn extends CConnection implements
     fullColour = viewer.fullColour.getValue();
     lowColourLevel = viewer.lowColourLevel.getValue();
     autoSelect = viewer.autoSelect.getValue();
+    selector = new EncodingSelector(Encodings.encodingTight,
+                                    viewer.compressLevel.getValue());
     formatChange = false; encodingChange = false;
     fullScreen = viewer.fullScreen.getValue();
     menuKeyCode = MenuKey.getMenuKeyCode();
@@ -141,7 +146,30 @@ public class CConn extends CConnection implements
       vlog.info("connected to host "+serverHost+" port "+serverPort);
     }
 
-    sock.inStream().setBlockCallback(this);
+    // On a virtual thread the socket is used in blocking mode, so that
+    // waiting for the server parks the thread
+    boolean parkOnRead = VirtualThreads.isVirtual(Thread.currentThread());
+    if (parkOnRead && sock.inStream().getFd() instanceof SocketDescriptor)
+      ((SocketDescriptor)sock.inStream().getFd()).setBlocking(true);
+
+    int readAhead = viewer.readAheadSize.getValue();
+    if (readAhead > 0) {
+      FileDescriptor fd = sock.inStream().getFd();
+      sock.inStream().setFd(new ReadAheadDescriptor(fd, readAhead * 1024));
+    }
+
+    String recordFile = viewer.recordSession.getValue();
+    if (recordFile != null && recordFile.length() > 0) {
+      try {
+        setRecorder(new SessionRecorder(recordFile));
+      } catch (java.io.IOException e) {
+        vlog.error("Unable to record session to "+recordFile+": "+
+                   e.getMessage());
+      }
+    }
+
+    if (!parkOnRead)
+      sock.inStream().setBlockCallback(this);
     setServerName(serverHost);
     setStreams(sock.inStream(), sock.outStream());
     initialiseProtocol();
@@ -236,6 +264,32 @@ public class CConn extends CConnection implements
 
   // CConnection callback methods
 
+  // authSuccess() is called when authentication has succeeded.  The reader
+  // exists by now, so this is where rect decoding gets spread over the
+  // requested number of threads.
+  public void authSuccess() {
+    int threads = viewer.decodeThreads.getValue();
+    if (threads <= 0)
+      threads = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+    reader().setDecodeThreads(threads);
+    reader().setPipelinedInflate(viewer.pipelinedInflate.getValue());
+    reader().setDecodeStats(new DecodeStats());
+    selector.setDecodeThreads(threads);
+  }
+
+  // createReducer() gives the PixelReducer for a FramebufferReduction of
+  // 1/n, or null for none.
+  static PixelReducer createReducer(int n) {
+    switch (n) {
+    case 1:  return null;
+    case 2:  return new PixelReducer(1);
+    case 4:  return new PixelReducer(2);
+    case 8:  return new PixelReducer(3);
+    }
+    vlog.error("FramebufferReduction must be 1, 2, 4 or 8, not "+n);
+    return null;
+  }
+
   // serverInit() is called when the serverInit message has been received.  At
   // this point we create the desktop window and display it.  We also tell the
   // server the pixel format and encodings to use and request the first update.
@@ -249,6 +303,7 @@ public class CConn extends CConnection implements
 
     serverPF = cp.pf();
 
+    reducer = createReducer(viewer.framebufferReduction.getValue());
     desktop = new DesktopWindow(cp.width, cp.height, serverPF, this);
     fullColourPF = desktop.getPreferredPF();
 
@@ -262,7 +317,7 @@ public class CConn extends CConnection implements
     // to help out setting the correct format here.
     assert(pendingPFChange);
     desktop.setServerPF(pendingPF);
-    cp.setPF(pendingPF);
+    setServerPF(pendingPF);
     pendingPFChange = false;
 
     if (viewer.embed.getValue()) {
@@ -430,7 +485,7 @@ public class CConn extends CConnection implements
     // with the old format. Time to active the new one.
     if (pendingPFChange) {
       desktop.setServerPF(pendingPF);
-      cp.setPF(pendingPF);
+      setServerPF(pendingPF);
       pendingPFChange = false;
     }
 
@@ -469,18 +524,48 @@ public class CConn extends CConnection implements
     sock.inStream().stopTiming();
   }
 
+  // With FramebufferReduction the rects are mapped onto the reduced
+  // framebuffer here, so the desktop window only ever sees its own
+  // coordinates.
+
   public void fillRect(Rect r, int p) {
+    if (reducer != null)
+      r = reducer.reduce(r);
     desktop.fillRect(r.tl.x, r.tl.y, r.width(), r.height(), p);
   }
 
   public void imageRect(Rect r, Object p) {
+    if (reducer != null) {
+      p = reducer.reduceImage(r, (int[])p, desktop.getPF());
+      r = reducer.reduce(r);
+    }
     desktop.imageRect(r.tl.x, r.tl.y, r.width(), r.height(), p);
   }
 
   public void copyRect(Rect r, int sx, int sy) {
+    if (reducer != null) {
+      Point src = new Point(0, 0);
+      r = reducer.reduceCopy(r, sx, sy, desktop.fbWidth(), desktop.fbHeight(),
+                             src);
+      if (r == null)
+        return;
+      sx = src.x;
+      sy = src.y;
+    }
     desktop.copyRect(r.tl.x, r.tl.y, r.width(), r.height(), sx, sy);
   }
 
+  // Decoders have to go through imageRect() to have their pixels reduced
+  public int[] getBufferRW(Rect r, int[] stride) {
+    if (reducer != null)
+      return null;
+    return desktop.getBufferRW(r, stride);
+  }
+
+  public void commitBufferRW(Rect r) {
+    desktop.commitBufferRW(r);
+  }
+
   public void setCursor(int width, int height, Point hotspot,
                         int[] data, byte[] mask) {
     desktop.setCursor(width, height, hotspot, data, mask);
@@ -518,7 +603,7 @@ public class CConn extends CConnection implements
       pf.read(memStream);
 
       desktop.setServerPF(pf);
-      cp.setPF(pf);
+      setServerPF(pf);
     }
   }
 
@@ -610,7 +695,13 @@ public class CConn extends CConnection implements
   // autoSelectFormatAndEncoding() chooses the format and encoding appropriate
   // to the connection speed:
   //
-  //   First we wait for at least one second of bandwidth measurement.
+  //   The encoding is left to the EncodingSelector, which weighs up how
+  //   long each encoding would take to receive and to decode, given how
+  //   fast the network and this machine turn out to be.  Unless a
+  //   compression level has been given, it chooses that too.  We start out
+  //   with Tight.
+  //
+  //   For the rest we wait for at least one second of bandwidth measurement.
   //
   //   Above 16Mbps (i.e. LAN), we choose the second highest JPEG quality,
   //   which should be perceptually lossless.
@@ -628,10 +719,35 @@ public class CConn extends CConnection implements
     boolean newFullColour = fullColour;
     int newQualityLevel = cp.qualityLevel;
 
-    // Always use Tight
-    if (currentEncoding != Encodings.encodingTight) {
-      currentEncoding = Encodings.encodingTight;
-      encodingChange = true;
+    // The selector starts over if the encoding was chosen by hand
+    if (currentEncoding != selector.getEncoding()) {
+      selector.reset(currentEncoding);
+      if (currentEncoding != selector.getEncoding()) {
+        currentEncoding = selector.getEncoding();
+        encodingChange = true;
+      }
+    }
+
+    DecodeStats stats = reader().getDecodeStats();
+    if (stats != null &&
+        selector.update(stats, sock.inStream().bytesTimed(),
+                        sock.inStream().nanosWaited(), cp.pf().bpp,
+                        System.nanoTime())) {
+      if (selector.getEncoding() != currentEncoding) {
+        vlog.info("Changing to "+
+                  Encodings.encodingName(selector.getEncoding())+
+                  " encoding");
+        currentEncoding = selector.getEncoding();
+        encodingChange = true;
+      }
+      if (!viewer.customCompressLevel.getValue() &&
+          selector.getCompressLevel() != cp.compressLevel) {
+        vlog.info("Changing to compression level "+
+                  selector.getCompressLevel());
+        cp.customCompressLevel = true;
+        cp.compressLevel = selector.getCompressLevel();
+        encodingChange = true;
+      }
     }
 
     // Check that we have a decent bandwidth measurement
@@ -813,6 +929,7 @@ public class CConn extends CConnection implements
                              "Requested encoding: %s%n"+
                              "Last used encoding: %s%n"+
                              "Line speed estimate: %d kbit/s%n"+
+                             "Frame rate: %.1f fps (%.1f updates/s received)%n"+
                              "Protocol version: %d.%d%n"+
                              "Security method: %s [%s]%n");
     String msg =
@@ -824,6 +941,7 @@ public class CConn extends CConnection implements
                     Encodings.encodingName(currentEncoding),
                     Encodings.encodingName(lastServerEncoding),
                     sock.inStream().kbitsPerSecond(),
+                    desktop.getFrameRate(), desktop.getUpdateRate(),
                     cp.majorVersion, cp.minorVersion,
                     Security.secTypeName(csecurity.getType()),
                     csecurity.description());
@@ -859,6 +977,7 @@ public class CConn extends CConnection implements
     options.mediumColour.setSelected(!fullColour && lowColourLevel == 2);
     options.tight.setSelected(currentEncoding == Encodings.encodingTight);
     options.zrle.setSelected(currentEncoding == Encodings.encodingZRLE);
+    options.trle.setSelected(currentEncoding == Encodings.encodingTRLE);
     options.hextile.setSelected(currentEncoding == Encodings.encodingHextile);
     options.raw.setSelected(currentEncoding == Encodings.encodingRaw);
 
@@ -1022,6 +1141,7 @@ public class CConn extends CConnection implements
       }
     }
     int newEncoding = (options.zrle.isSelected() ?  Encodings.encodingZRLE :
+                       options.trle.isSelected() ?  Encodings.encodingTRLE :
                        options.hextile.isSelected() ?  Encodings.encodingHextile :
                        options.tight.isSelected() ?  Encodings.encodingTight :
                        Encodings.encodingRaw);
@@ -1438,6 +1558,7 @@ public class CConn extends CConnection implements
   private Socket sock;
 
   protected DesktopWindow desktop;
+  PixelReducer reducer;
 
   // FIXME: should be private
   public PixelFormat serverPF;
@@ -1447,6 +1568,7 @@ public class CConn extends CConnection implements
   private PixelFormat pendingPF;
 
   private int currentEncoding, lastServerEncoding;
+  private EncodingSelector selector;
 
   private boolean formatChange;
   private boolean encodingChange;
@@ -37,6 +37,7 @@ import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.Clipboard;
 import java.io.BufferedReader;
 import java.nio.CharBuffer;
+import java.util.ArrayList;
 import javax.swing.*;
 
 import com.tigervnc.rfb.*;
@@ -66,7 +67,7 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
     } else {
       vlog.debug("GraphicsDevice does not support HW acceleration.");
     }
-    im = new BIPixelBuffer(width, height, cc, this);
+    im = new BIPixelBuffer(fbWidth(), fbHeight(), cc, this);
 
     cursor = new Cursor();
     cursorBacking = new ManagedPixelBuffer();
@@ -93,6 +94,14 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
     });
     setFocusTraversalKeysEnabled(false);
     setFocusable(true);
+
+    presentTimer = new Timer(0, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        present();
+      }
+    });
+    presentTimer.setRepeats(false);
+    statsStart = System.nanoTime();
   }
 
   public int width() {
@@ -103,6 +112,16 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
     return getHeight();
   }
 
+  // The size of the framebuffer, which is the desktop's size reduced by
+  // FramebufferReduction
+  public int fbWidth() {
+    return (cc.reducer != null) ? cc.reducer.reduce(cc.cp.width) : cc.cp.width;
+  }
+
+  public int fbHeight() {
+    return (cc.reducer != null) ? cc.reducer.reduce(cc.cp.height) : cc.cp.height;
+  }
+
   public final PixelFormat getPF() { return im.getPF(); }
 
   public void setViewport(Viewport viewport) {
@@ -220,35 +239,137 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
     }
   }
 
-  // Update the actual window with the changed parts of the framebuffer.
+  // updateWindow() is called by the RFB thread at the end of each update.
+  // It never paints anything itself, so that decoding doesn't wait for
+  // Swing: the damage is painted by present() on the GUI thread, at most
+  // MaxFrameRate times a second.  If nothing has been painted for a frame
+  // interval the damage is painted straight away, so an update after an
+  // idle period isn't delayed.  Damage from updates that arrive while a
+  // frame is pending is painted with it.
   public void updateWindow() {
-    Rect r = damage;
-    if (!r.is_empty()) {
-      if (cc.cp.width != scaledWidth || cc.cp.height != scaledHeight) {
-        int x = (int)Math.floor(r.tl.x * scaleWidthRatio);
-        int y = (int)Math.floor(r.tl.y * scaleHeightRatio);
+    long delay;
+    synchronized(this) {
+      updates++;
+      if (damage.is_empty() || presentPending)
+        return;
+      presentPending = true;
+      int maxFrameRate = cc.viewer.maxFrameRate.getValue();
+      delay = 0;
+      if (maxFrameRate > 0)
+        delay = lastPresent + 1000000000L / maxFrameRate - System.nanoTime();
+    }
+    if (delay <= 0) {
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() { present(); }
+      });
+    } else {
+      presentTimer.setInitialDelay((int)((delay + 999999) / 1000000));
+      presentTimer.restart();
+    }
+  }
+
+  // present() paints the damage.  Each rect of it is painted on its own,
+  // unless they cover most of their bounding box anyway, in which case
+  // painting that once is cheaper.  When the desktop is scaled, the
+  // scaled image is brought up to date first.
+  void present() {
+    ArrayList<Rect> rects = new ArrayList<Rect>();
+    synchronized(this) {
+      presentPending = false;
+      lastPresent = System.nanoTime();
+      if (damage.is_empty())
+        return;
+      Rect bounds = damage.get_bounding_rect();
+      if (damage.area() * 4 >= (long)bounds.area() * 3)
+        rects.add(bounds);
+      else
+        damage.get_rects(rects);
+      damage.clear();
+      frames++;
+      updateFrameStats();
+    }
+    if (fbWidth() != scaledWidth || fbHeight() != scaledHeight) {
+      if (prepareScaledImage()) {
+        repaint();
+        return;
+      }
+      for (Rect r : rects) {
+        if (scaledImage != null) {
+          r = scaledImage.update(r);
+          paintImmediately(r.tl.x, r.tl.y, r.width(), r.height());
+          continue;
+        }
+        float xRatio = (float)scaledWidth / fbWidth();
+        float yRatio = (float)scaledHeight / fbHeight();
+        int x = (int)Math.floor(r.tl.x * xRatio);
+        int y = (int)Math.floor(r.tl.y * yRatio);
         // Need one extra pixel to account for rounding.
-        int width = (int)Math.ceil(r.width() * scaleWidthRatio) + 1;
-        int height = (int)Math.ceil(r.height() * scaleHeightRatio) + 1;
+        int width = (int)Math.ceil(r.width() * xRatio) + 1;
+        int height = (int)Math.ceil(r.height() * yRatio) + 1;
         paintImmediately(x, y, width, height);
-      } else {
-        paintImmediately(r.tl.x, r.tl.y, r.width(), r.height());
       }
-      damage.clear();
+    } else {
+      for (Rect r : rects)
+        paintImmediately(r.tl.x, r.tl.y, r.width(), r.height());
     }
   }
 
+  // prepareScaledImage() makes sure that scaledImage is a scaled copy of
+  // the framebuffer, if it has one that can be scaled.  That is only the
+  // case for true colour, otherwise Java2D scales the image as it is
+  // painted.  It returns true if all of the scaled image has changed.
+  boolean prepareScaledImage() {
+    if (im.data == null || scaledWidth <= 0 || scaledHeight <= 0) {
+      scaledImage = null;
+      return false;
+    }
+    if (scaledImage == null)
+      scaledImage = new ScaledImage();
+    return scaledImage.prepare(im.data, im.width(), im.height(),
+                               scaledWidth, scaledHeight);
+  }
+
+  // The frame rate and the rate of updates from the server are measured
+  // over periods of statsInterval.  mutex MUST be held.
+  private void updateFrameStats() {
+    long elapsed = lastPresent - statsStart;
+    if (elapsed < statsInterval)
+      return;
+    frameRate = frames * 1e9 / elapsed;
+    updateRate = updates * 1e9 / elapsed;
+    vlog.debug(String.format("%.1f frames/s presented, %.1f updates/s "+
+                             "received", frameRate, updateRate));
+    frames = 0;
+    updates = 0;
+    statsStart = lastPresent;
+  }
+
+  public synchronized double getFrameRate() { return frameRate; }
+  public synchronized double getUpdateRate() { return updateRate; }
+
   // resize() is called when the desktop has changed size
   public void resize() {
-    int w = cc.cp.width;
-    int h = cc.cp.height;
+    int w = fbWidth();
+    int h = fbHeight();
     hideLocalCursor();
     setSize(w, h);
     im.resize(w, h);
   }
 
+  // With more than one decoder thread these can be called concurrently for
+  // rects that don't overlap.  Only drawing under the cursor has to hold
+  // the mutex, so that it can't be shown again half way through.
+
   public final void fillRect(int x, int y, int w, int h, int pix) {
-    if (overlapsCursor(x, y, w, h)) hideLocalCursor();
+    synchronized(this) {
+      if (overlapsCursor(x, y, w, h)) {
+        hideLocalCursor();
+        im.fillRect(x, y, w, h, pix);
+        damageRect(new Rect(x, y, x+w, y+h));
+        showLocalCursor();
+        return;
+      }
+    }
     im.fillRect(x, y, w, h, pix);
     damageRect(new Rect(x, y, x+w, y+h));
     showLocalCursor();
@@ -256,7 +377,15 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
 
   public final void imageRect(int x, int y, int w, int h,
                               Object pix) {
-    if (overlapsCursor(x, y, w, h)) hideLocalCursor();
+    synchronized(this) {
+      if (overlapsCursor(x, y, w, h)) {
+        hideLocalCursor();
+        im.imageRect(x, y, w, h, pix);
+        damageRect(new Rect(x, y, x+w, y+h));
+        showLocalCursor();
+        return;
+      }
+    }
     im.imageRect(x, y, w, h, pix);
     damageRect(new Rect(x, y, x+w, y+h));
     showLocalCursor();
@@ -264,14 +393,46 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
 
   public final void copyRect(int x, int y, int w, int h,
                              int srcX, int srcY) {
-    if (overlapsCursor(x, y, w, h) || overlapsCursor(srcX, srcY, w, h))
-      hideLocalCursor();
+    synchronized(this) {
+      if (overlapsCursor(x, y, w, h) || overlapsCursor(srcX, srcY, w, h)) {
+        hideLocalCursor();
+        im.copyRect(x, y, w, h, srcX, srcY);
+        damageRect(new Rect(x, y, x+w, y+h));
+        showLocalCursor();
+        return;
+      }
+    }
     im.copyRect(x, y, w, h, srcX, srcY);
     damageRect(new Rect(x, y, x+w, y+h));
     showLocalCursor();
   }
 
 
+  // getBufferRW() lets a decoder write a whole rect straight into the
+  // image.  The local cursor is kept off that part of the image until
+  // commitBufferRW(), which also records the damage for the entire rect.
+
+  public final int[] getBufferRW(Rect r, int[] stride) {
+    int[] data = im.getBufferRW(r, stride);
+    if (data == null)
+      return null;
+    synchronized(this) {
+      if (overlapsCursor(r.tl.x, r.tl.y, r.width(), r.height()))
+        hideLocalCursor();
+      buffersRW++;
+    }
+    return data;
+  }
+
+  public final void commitBufferRW(Rect r) {
+    im.commitBufferRW(r);
+    synchronized(this) {
+      buffersRW--;
+      damageRect(r);
+      showLocalCursor();
+    }
+  }
+
   // mutex MUST be held when overlapsCursor() is called
   final boolean overlapsCursor(int x, int y, int w, int h) {
     return (x < cursorBackingX + cursorBacking.width() &&
@@ -310,19 +471,22 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
     return new Dimension(scaledWidth, scaledHeight);
   }
 
+  // The scaling factor applies to the framebuffer, which is smaller than
+  // the desktop if FramebufferReduction is set
+
   public void setScaledSize() {
     String scaleString = cc.viewer.scalingFactor.getValue();
     if (!scaleString.equalsIgnoreCase("Auto") &&
         !scaleString.equalsIgnoreCase("FixedRatio")) {
       int scalingFactor = Integer.parseInt(scaleString);
       scaledWidth =
-        (int)Math.floor((float)cc.cp.width * (float)scalingFactor/100.0);
+        (int)Math.floor((float)fbWidth() * (float)scalingFactor/100.0);
       scaledHeight =
-        (int)Math.floor((float)cc.cp.height * (float)scalingFactor/100.0);
+        (int)Math.floor((float)fbHeight() * (float)scalingFactor/100.0);
     } else {
       if (cc.viewport == null) {
-        scaledWidth = cc.cp.width;
-        scaledHeight = cc.cp.height;
+        scaledWidth = fbWidth();
+        scaledHeight = fbHeight();
       } else {
         Dimension vpSize = cc.viewport.getSize();
         Insets vpInsets = cc.viewport.getInsets();
@@ -330,30 +494,38 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
           new Dimension(vpSize.width - vpInsets.left - vpInsets.right,
                         vpSize.height - vpInsets.top - vpInsets.bottom);
         if (availableSize.width == 0 || availableSize.height == 0)
-          availableSize = new Dimension(cc.cp.width, cc.cp.height);
+          availableSize = new Dimension(fbWidth(), fbHeight());
         if (scaleString.equalsIgnoreCase("FixedRatio")) {
-          float widthRatio = (float)availableSize.width / (float)cc.cp.width;
-          float heightRatio = (float)availableSize.height / (float)cc.cp.height;
+          float widthRatio = (float)availableSize.width / (float)fbWidth();
+          float heightRatio = (float)availableSize.height / (float)fbHeight();
           float ratio = Math.min(widthRatio, heightRatio);
-          scaledWidth = (int)Math.floor(cc.cp.width * ratio);
-          scaledHeight = (int)Math.floor(cc.cp.height * ratio);
+          scaledWidth = (int)Math.floor(fbWidth() * ratio);
+          scaledHeight = (int)Math.floor(fbHeight() * ratio);
         } else {
           scaledWidth = availableSize.width;
           scaledHeight = availableSize.height;
         }
       }
     }
+    // The ratios are from the desktop's own size, e.g. for mapping the
+    // pointer position back to it
     scaleWidthRatio = (float)scaledWidth / (float)cc.cp.width;
     scaleHeightRatio = (float)scaledHeight / (float)cc.cp.height;
   }
 
   public void paintComponent(Graphics g) {
     Graphics2D g2 = (Graphics2D) g;
-    if (cc.cp.width != scaledWidth || cc.cp.height != scaledHeight) {
-      g2.setRenderingHint(RenderingHints.KEY_RENDERING,
-                          RenderingHints.VALUE_RENDER_QUALITY);
-      g2.drawImage(im.getImage(), 0, 0, scaledWidth, scaledHeight, null);
+    if (fbWidth() != scaledWidth || fbHeight() != scaledHeight) {
+      prepareScaledImage();
+      if (scaledImage != null) {
+        g2.drawImage(scaledImage.getImage(), 0, 0, null);
+      } else {
+        g2.setRenderingHint(RenderingHints.KEY_RENDERING,
+                            RenderingHints.VALUE_RENDER_QUALITY);
+        g2.drawImage(im.getImage(), 0, 0, scaledWidth, scaledHeight, null);
+      }
     } else {
+      scaledImage = null;
       g2.drawImage(im.getImage(), 0, 0, null);
     }
     g2.dispose();
@@ -492,11 +664,18 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
   // are called.
 
   private synchronized void hideLocalCursor() {
-    // - Blit the cursor backing store over the cursor
+    // - Blit the cursor backing store over the cursor.  It holds pixels of
+    //   the image, so they are copied back as they are rather than going
+    //   through imageRect(), which would convert them again.
     if (cursorVisible) {
       cursorVisible = false;
-      im.imageRect(cursorBackingX, cursorBackingY, cursorBacking.width(),
-                   cursorBacking.height(), cursorBacking.data);
+      int w = cursorBacking.width(), h = cursorBacking.height();
+      if (im.data != null) {
+        for (int j = 0; j < h; j++)
+          System.arraycopy(cursorBacking.data, j * w, im.data,
+                           (cursorBackingY + j) * im.width() + cursorBackingX,
+                           w);
+      }
       damageRect(new Rect(cursorBackingX, cursorBackingY,
                           cursorBackingX+cursorBacking.width(),
                           cursorBackingY+cursorBacking.height()));
@@ -504,7 +683,10 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
   }
 
   private synchronized void showLocalCursor() {
-    if (cursorAvailable && !cursorVisible) {
+    if (cursorAvailable && !cursorVisible && buffersRW == 0) {
+      // The cursor can only be drawn into a true colour image
+      if (im.data == null)
+        return;
       if (!im.getPF().equal(cursor.getPF()) ||
           cursor.width() == 0 || cursor.height() == 0) {
         vlog.debug("attempting to render invalid local cursor");
@@ -531,19 +713,23 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
         System.arraycopy(im.data, (y + j) * im.width() + x,
                          cursorBacking.data, j * w, w);
 
+      // setCursor() has already converted the cursor to 0xRRGGBB, which is
+      // the layout of the image, so it is masked in without converting
       im.maskRect(cursorLeft, cursorTop, cursor.width(), cursor.height(),
                   cursor.data, cursor.mask);
       damageRect(new Rect(x, y, x+w, y+h));
     }
   }
 
-  void damageRect(Rect r) {
-    if (damage.is_empty()) {
-      damage.setXYWH(r.tl.x, r.tl.y, r.width(), r.height());
-    } else {
-      r = damage.union_boundary(r);
-      damage.setXYWH(r.tl.x, r.tl.y, r.width(), r.height());
-    }
+  // The damage is only kept as separate rects up to maxDamageRects of
+  // them.  After that it becomes its bounding box, so that lots of small
+  // rects don't make every union slower.
+
+  synchronized void damageRect(Rect r) {
+    damagedRect.reset(r);
+    damage.assign_union(damagedRect);
+    if (damage.numRects() > maxDamageRects)
+      damage.reset(damage.get_bounding_rect());
   }
 
   // run() is executed by the setColourMapEntriesTimerThread - it sleeps for
@@ -569,15 +755,30 @@ class DesktopWindow extends JPanel implements Runnable, MouseListener,
   int cursorPosX, cursorPosY;
   ManagedPixelBuffer cursorBacking;
   int cursorBackingX, cursorBackingY;
+  Region damage = new Region();
+  Region damagedRect = new Region();
+  int buffersRW;
   java.awt.Cursor softCursor, nullCursor;
   static Toolkit tk = Toolkit.getDefaultToolkit();
 
   public int scaledWidth = 0, scaledHeight = 0;
   float scaleWidthRatio, scaleHeightRatio;
 
+  static final int maxDamageRects = 16;
+
+  // the scaled copy of the framebuffer is only used by the GUI thread
+  ScaledImage scaledImage;
+
+  // access to these is also synchronized
+  boolean presentPending;
+  long lastPresent, statsStart;
+  int updates, frames;
+  double frameRate, updateRate;
+  Timer presentTimer;
+  static final long statsInterval = 5000000000L;
+
   // the following are only ever accessed by the GUI thread:
   int lastX, lastY;
-  Rect damage = new Rect();
 
   static LogWriter vlog = new LogWriter("DesktopWindow");
 }
@@ -42,7 +42,7 @@ class OptionsDialog extends Dialog implements
   @SuppressWarnings({"rawtypes"})
   JComboBox menuKey, compressLevel, qualityLevel, scalingFactor;
   ButtonGroup encodingGroup, colourGroup;
-  JRadioButton zrle, hextile, tight, raw;
+  JRadioButton zrle, trle, hextile, tight, raw;
   JRadioButton fullColour, mediumColour, lowColour, veryLowColour;
   JCheckBox viewOnly, acceptClipboard, sendClipboard, acceptBell;
   JCheckBox fullScreen, shared, useLocalCursor;
@@ -76,6 +76,7 @@ class OptionsDialog extends Dialog implements
     JPanel encodingPanel = new JPanel(new GridBagLayout());
     encodingPanel.setBorder(BorderFactory.createTitledBorder("Preferred encoding"));
     zrle = addRadioCheckbox("ZRLE", encodingGroup, encodingPanel);
+    trle = addRadioCheckbox("TRLE", encodingGroup, encodingPanel);
     hextile = addRadioCheckbox("Hextile", encodingGroup, encodingPanel);
     tight = addRadioCheckbox("Tight", encodingGroup, encodingPanel);
     raw = addRadioCheckbox("Raw", encodingGroup, encodingPanel);
@@ -281,6 +282,7 @@ class OptionsDialog extends Dialog implements
   public void initDialog() {
     if (cc != null) cc.setOptions();
     zrle.setEnabled(!autoSelect.isSelected());
+    trle.setEnabled(!autoSelect.isSelected());
     hextile.setEnabled(!autoSelect.isSelected());
     tight.setEnabled(!autoSelect.isSelected());
     raw.setEnabled(!autoSelect.isSelected());
@@ -301,6 +303,8 @@ class OptionsDialog extends Dialog implements
       UserPreferences.set("global", "AutoSelect", false);
       if (zrle.isSelected()) {
         UserPreferences.set("global", "PreferredEncoding", "ZRLE");
+      } else if (trle.isSelected()) {
+        UserPreferences.set("global", "PreferredEncoding", "TRLE");
       } else if (hextile.isSelected()) {
         UserPreferences.set("global", "PreferredEncoding", "hextile");
       } else if (tight.isSelected()) {
@@ -382,6 +386,9 @@ class OptionsDialog extends Dialog implements
         case Encodings.encodingZRLE:
           zrle.setSelected(true);
           break;
+        case Encodings.encodingTRLE:
+          trle.setSelected(true);
+          break;
         case Encodings.encodingHextile:
           hextile.setSelected(true);
           break;
@@ -540,6 +547,7 @@ class OptionsDialog extends Dialog implements
     Object s = e.getSource();
     if (s instanceof JCheckBox && (JCheckBox)s == autoSelect) {
       zrle.setEnabled(!autoSelect.isSelected());
+      trle.setEnabled(!autoSelect.isSelected());
       hextile.setEnabled(!autoSelect.isSelected());
       tight.setEnabled(!autoSelect.isSelected());
       raw.setEnabled(!autoSelect.isSelected());
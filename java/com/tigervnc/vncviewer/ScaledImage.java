@@ -0,0 +1,268 @@
+/* Copyright (C) 2014 TigerVNC Team
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301,
+ * USA.
+ */
+
+//
+// ScaledImage keeps a scaled copy of the framebuffer, so that painting a
+// scaled desktop is a plain blit.  Only the parts of it that the damage
+// affects are scaled again.
+//
+// Each axis has a table giving, for every pixel of the scaled image, the
+// source pixels it is made of and their weights.  When scaling down a
+// pixel is the average of the source pixels it covers, weighted by how
+// much of each it covers; when scaling up it is interpolated between the
+// two nearest source pixels.  A damaged source rect therefore changes the
+// scaled pixels it maps to plus a margin of about one pixel.
+//
+// Large updates are split into bands of rows which are scaled on worker
+// threads as well as the calling one.  ScaledImage is only used from the
+// GUI thread, so all instances share one set of workers, which only refer
+// to an instance while they are scaling it.  An instance that is dropped
+// doesn't leave any threads behind.
+//
+
+package com.tigervnc.vncviewer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import com.tigervnc.rfb.*;
+
+class ScaledImage {
+
+  // Updates of more than this many scaled pixels are split across threads
+  static final int parallelArea = 128 * 1024;
+  static final int maxThreads = 8;
+
+  // prepare() makes sure the image is w x h and a copy of the srcW x srcH
+  // true colour framebuffer in src, scaling all of it if anything has
+  // changed.  It returns true if it did, in which case the whole image
+  // needs painting.
+
+  boolean prepare(int[] src, int srcW, int srcH, int w, int h) {
+    if (src == srcData && srcW == srcWidth && srcH == srcHeight &&
+        image != null && w == image.getWidth() && h == image.getHeight())
+      return false;
+
+    if (image == null || w != image.getWidth() || h != image.getHeight()) {
+      image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+      data = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+    }
+    xTaps = new Taps(srcW, w);
+    yTaps = new Taps(srcH, h);
+    srcData = src;
+    srcWidth = srcW;
+    srcHeight = srcH;
+
+    scale(0, 0, w, h);
+    return true;
+  }
+
+  // update() scales the part of the image that the source rect r affects
+  // again, and returns that part.
+
+  Rect update(Rect r) {
+    int w = image.getWidth(), h = image.getHeight();
+    int x1 = Math.max(0, (int)Math.floor((r.tl.x - 1) * (double)w / srcWidth));
+    int y1 = Math.max(0, (int)Math.floor((r.tl.y - 1) * (double)h / srcHeight));
+    int x2 = Math.min(w, (int)Math.ceil((r.br.x + 1) * (double)w / srcWidth));
+    int y2 = Math.min(h, (int)Math.ceil((r.br.y + 1) * (double)h / srcHeight));
+    if (x1 < x2 && y1 < y2)
+      scale(x1, y1, x2, y2);
+    return new Rect(x1, y1, x2, y2);
+  }
+
+  BufferedImage getImage() { return image; }
+
+  private void scale(int x1, int y1, int x2, int y2) {
+    int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                           maxThreads);
+    if (threads < 2 || (x2 - x1) * (y2 - y1) < parallelArea) {
+      scaleRows(x1, y1, x2, y2);
+      return;
+    }
+
+    synchronized (pool) {
+      if (workers == null) {
+        workers = new ScaleThread[threads - 1];
+        for (int i = 0; i < workers.length; i++) {
+          workers[i] = new ScaleThread(i + 1);
+          workers[i].start();
+        }
+      }
+
+      jobImage = this;
+      jobX1 = x1;
+      jobY1 = y1;
+      jobX2 = x2;
+      jobY2 = y2;
+      pending = workers.length;
+      job++;
+      pool.notifyAll();
+    }
+    scaleBand(0);
+    synchronized (pool) {
+      while (pending > 0) {
+        try {
+          pool.wait();
+        } catch (InterruptedException e) { }
+      }
+      jobImage = null;
+    }
+  }
+
+  // scaleBand() scales band i of the current job, where the rows are
+  // shared out between the workers and the calling thread
+
+  private void scaleBand(int i) {
+    int bands = workers.length + 1;
+    int rows = jobY2 - jobY1;
+    scaleRows(jobX1, jobY1 + rows * i / bands, jobX2,
+              jobY1 + rows * (i + 1) / bands);
+  }
+
+  private void scaleRows(int x1, int y1, int x2, int y2) {
+    int[] src = srcData, dst = data;
+    int srcStride = srcWidth, stride = image.getWidth();
+    Taps xt = xTaps, yt = yTaps;
+
+    for (int y = y1; y < y2; y++) {
+      int yFirst = yt.first[y], yCount = yt.count[y], yOff = yt.offset[y];
+      int ptr = y * stride + x1;
+      for (int x = x1; x < x2; x++) {
+        int xFirst = xt.first[x], xCount = xt.count[x], xOff = xt.offset[x];
+        int r = 0, g = 0, b = 0;
+        for (int j = 0; j < yCount; j++) {
+          int row = (yFirst + j) * srcStride + xFirst;
+          int wy = yt.weights[yOff + j];
+          for (int i = 0; i < xCount; i++) {
+            int p = src[row + i];
+            int wt = wy * xt.weights[xOff + i];
+            r += ((p >> 16) & 0xff) * wt;
+            g += ((p >> 8) & 0xff) * wt;
+            b += (p & 0xff) * wt;
+          }
+        }
+        // The weights add up to 1 << 16, so the sums fit in 24 bits
+        dst[ptr++] = ((r + 0x8000) >> 16) << 16 | ((g + 0x8000) >> 16) << 8 |
+                     ((b + 0x8000) >> 16);
+      }
+    }
+  }
+
+  // Taps is the table for one axis.  The source pixels that make up
+  // scaled pixel d are first[d] onwards, count[d] of them, with weights
+  // from offset[d] in weights.  The weights of each pixel add up to 256.
+
+  static final class Taps {
+    Taps(int srcSize, int size) {
+      first = new int[size];
+      count = new int[size];
+      offset = new int[size];
+      int maxCount = (srcSize + size - 1) / size + 2;
+      weights = new int[size * maxCount];
+
+      int n = 0;
+      for (int d = 0; d < size; d++) {
+        offset[d] = n;
+        if (size < srcSize) {
+          // Scaled pixel d covers source positions d * srcSize / size up
+          // to (d + 1) * srcSize / size.  Work in units of 1 / size.
+          long start = (long)d * srcSize, end = (long)(d + 1) * srcSize;
+          int s = (int)(start / size);
+          int largest = n, total = 0;
+          first[d] = s;
+          for (; s < srcSize && (long)s * size < end; s++) {
+            long overlap = (Math.min(end, (long)(s + 1) * size) -
+                            Math.max(start, (long)s * size));
+            int w = (int)((overlap * 256 + srcSize / 2) / srcSize);
+            weights[n] = w;
+            total += w;
+            if (w > weights[largest])
+              largest = n;
+            n++;
+          }
+          // Make rounding errors up on the largest weight
+          weights[largest] += 256 - total;
+        } else {
+          // Interpolate between the source pixels either side of the
+          // centre of scaled pixel d, in 1/256ths of a pixel
+          long pos = (((2L * d + 1) * srcSize * 256) / (2L * size)) - 128;
+          if (pos < 0)
+            pos = 0;
+          int s = (int)(pos >> 8), frac = (int)(pos & 0xff);
+          first[d] = s;
+          weights[n++] = 256 - frac;
+          if (frac != 0 && s + 1 < srcSize)
+            weights[n++] = frac;
+          else
+            weights[n - 1] = 256;
+        }
+        count[d] = n - offset[d];
+      }
+    }
+
+    final int[] first, count, offset, weights;
+  }
+
+  static class ScaleThread extends Thread {
+    ScaleThread(int band_) {
+      super("ScaleThread-"+band_);
+      band = band_;
+      setDaemon(true);
+    }
+
+    public void run() {
+      int done = 0;
+      while (true) {
+        ScaledImage image;
+        synchronized (pool) {
+          while (job == done) {
+            try {
+              pool.wait();
+            } catch (InterruptedException e) { }
+          }
+          done = job;
+          image = jobImage;
+        }
+        try {
+          image.scaleBand(band);
+        } finally {
+          synchronized (pool) {
+            pending--;
+            pool.notifyAll();
+          }
+        }
+      }
+    }
+
+    private final int band;
+  }
+
+  private BufferedImage image;
+  private int[] data;
+  private int[] srcData;
+  private int srcWidth, srcHeight;
+  private Taps xTaps, yTaps;
+
+  // The workers and the job they are doing, guarded by pool
+  private static final Object pool = new Object();
+  private static ScaleThread[] workers;
+  private static ScaledImage jobImage;
+  private static int job, pending;
+  private static int jobX1, jobY1, jobX2, jobY2;
+}
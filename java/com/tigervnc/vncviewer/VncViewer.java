@@ -133,6 +133,16 @@ public class VncViewer extends javax.swing.JApplet
     setLookAndFeel();
     VncViewer viewer = new VncViewer(argv);
     viewer.start();
+
+    // Virtual threads don't keep the JVM running, so wait here until
+    // exit() ends it
+    if (VirtualThreads.isVirtual(viewer.thread)) {
+      while (true) {
+        try {
+          Thread.sleep(Long.MAX_VALUE);
+        } catch (InterruptedException e) { }
+      }
+    }
   }
 
 
@@ -387,7 +397,16 @@ public class VncViewer extends javax.swing.JApplet
       }
     }
     nViewers++;
-    thread = new Thread(this);
+    if (virtualThreads.getValue()) {
+      if (!VirtualThreads.isSupported() && !virtualThreadsWarned) {
+        vlog.info("Virtual threads need Java 21 or later, using ordinary "+
+                  "threads instead");
+        virtualThreadsWarned = true;
+      }
+      thread = VirtualThreads.newThread(this, "VncViewer-"+nViewers);
+    } else {
+      thread = new Thread(this);
+    }
     thread.start();
   }
 
@@ -455,6 +474,11 @@ public class VncViewer extends javax.swing.JApplet
 
       vlog.info("Listening on port "+port);
 
+      // Wait for connections in a blocking accept(), so that a virtual
+      // thread is parked rather than holding on to its carrier
+      if (VirtualThreads.isVirtual(Thread.currentThread()))
+        listener.setBlocking(true);
+
       while (true) {
         Socket new_sock = listener.accept();
         if (new_sock != null)
@@ -464,8 +488,14 @@ public class VncViewer extends javax.swing.JApplet
 
     try {
       cc = new CConn(this, sock, vncServerName.getValue());
-      while (!cc.shuttingDown)
-        cc.processMsg();
+      try {
+        while (!cc.shuttingDown)
+          cc.processMsg();
+      } finally {
+        if (cc.reader() != null)
+          cc.reader().close();
+        cc.stopRecording();
+      }
     } catch (java.lang.Exception e) {
       if (cc == null || !cc.shuttingDown) {
         reportException(e);
@@ -538,7 +568,7 @@ public class VncViewer extends javax.swing.JApplet
                        lowColourLevel);
   StringParameter preferredEncoding
   = new StringParameter("PreferredEncoding",
-                        "Preferred encoding to use (Tight, ZRLE, "+
+                        "Preferred encoding to use (Tight, ZRLE, TRLE, "+
                         "hextile or raw) - implies AutoSelect=0",
                         "Tight");
   BoolParameter viewOnly
@@ -656,6 +686,48 @@ public class VncViewer extends javax.swing.JApplet
                      "JPEG quality level. "+
                      "0 = Low, 9 = High",
                      8);
+  IntParameter decodeThreads
+  = new IntParameter("DecodeThreads",
+                     "Number of threads to use for decoding rectangles. "+
+                     "0 = one per CPU core (up to 4), 1 = decode on "+
+                     "the connection's own thread",
+                     0);
+  BoolParameter pipelinedInflate
+  = new BoolParameter("PipelinedInflate",
+                      "Inflate large ZRLE rectangles on a separate thread "+
+                      "while they are being decoded",
+                      false);
+  IntParameter framebufferReduction
+  = new IntParameter("FramebufferReduction",
+                     "Keep the framebuffer at 1/N of the desktop's width "+
+                     "and height, for showing it as a small tile. Each "+
+                     "pixel is the average of an NxN block of the desktop. "+
+                     "N = 1, 2, 4 or 8",
+                     1);
+  IntParameter maxFrameRate
+  = new IntParameter("MaxFrameRate",
+                     "Maximum number of times per second the desktop "+
+                     "window is repainted. Updates received in between "+
+                     "are painted together. 0 = no limit",
+                     60);
+  StringParameter recordSession
+  = new StringParameter("RecordSession",
+                        "Record everything received from the server to "+
+                        "the given file, for replaying later",
+                        null);
+  IntParameter readAheadSize
+  = new IntParameter("ReadAheadSize",
+                     "Read data from the network on a separate thread, "+
+                     "buffering up to this many KB while the viewer is "+
+                     "busy decoding. 0 = read only when needed",
+                     0);
+
+  static BoolParameter virtualThreads
+  = new BoolParameter("VirtualThreads",
+                      "Run each connection on a virtual thread, which "+
+                      "takes far less memory than an ordinary thread, when "+
+                      "the Java runtime has them (Java 21 or later)",
+                      false);
 
   StringParameter config
   = new StringParameter("config",
@@ -664,5 +736,6 @@ public class VncViewer extends javax.swing.JApplet
   Thread thread;
   Socket sock;
   static int nViewers;
+  static boolean virtualThreadsWarned;
   static LogWriter vlog = new LogWriter("main");
 }